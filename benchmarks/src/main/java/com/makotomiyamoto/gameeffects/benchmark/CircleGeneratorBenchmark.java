@@ -0,0 +1,97 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating a circle through each of CircleGenerator's entry points,
+ * with the shape cache either missing on every call (cold) or already holding
+ * the circle (warm).
+ *
+ * Cold runs bound the cache to zero points for the whole trial, so every
+ * lookup generates the circle and evicts it right away, without a setup call
+ * per invocation that would cost more than the shortest of these calls.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CircleGeneratorBenchmark {
+
+    @Param({ "8", "32", "128", "512" })
+    public int radius;
+
+    @Param({ "XZ", "XY", "ZY" })
+    public CircleGenerator.Plane plane;
+
+    @Param({ "true", "false" })
+    public boolean ignoreEnclosed;
+
+    @Param({ "true", "false" })
+    public boolean allowBurrs;
+
+    @Param({ "cold", "warm" })
+    public String cache;
+
+    private Location center;
+
+    private long maxWeight;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        center = new Location(new StubWorld().getWorld(), 100.5, 64, -200.5);
+
+        maxWeight = CircleGenerator.getCache().getMaxWeight();
+        CircleGenerator.getCache().invalidateAll();
+        if (cache.equals("cold"))
+            CircleGenerator.getCache().setMaxWeight(0);
+        else
+            CircleGenerator.generateCircleMask(radius, plane, ignoreEnclosed, allowBurrs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CircleGenerator.getCache().setMaxWeight(maxWeight);
+    }
+
+    @Benchmark
+    public Object generateCircle() {
+        return CircleGenerator.generateCircle(center, radius, plane, ignoreEnclosed, allowBurrs);
+    }
+
+    @Benchmark
+    public Object generateCircleMask() {
+        return CircleGenerator.generateCircleMask(radius, plane, ignoreEnclosed, allowBurrs);
+    }
+
+    @Benchmark
+    public void forEachBlock(Blackhole blackhole) {
+        CircleGenerator.forEachBlock(center, radius, plane, ignoreEnclosed, allowBurrs, (world, x, y, z) -> {
+            blackhole.consume(x);
+            blackhole.consume(y);
+            blackhole.consume(z);
+        });
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.task.BlockChangeScheduler;
+import com.makotomiyamoto.gameeffects.task.DrawTemporaryCircle;
+import com.makotomiyamoto.gameeffects.task.EffectTimeline;
+import com.makotomiyamoto.gameeffects.task.TemporaryBlockEffect;
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Cost of running a whole temporary thick ring on the stub world: applying it
+ * through the block scheduler, holding it on the timeline, and restoring it.
+ * The scheduler's budget is unbounded so each invocation is one complete
+ * effect.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EffectApplicationBenchmark {
+
+    @Param({ "16", "64", "256" })
+    public int radius;
+
+    @Param({ "1", "4" })
+    public int decrementRadii;
+
+    private StubWorld world;
+
+    private long[] positions;
+
+    private BlockChangeScheduler scheduler;
+
+    private EffectTimeline timeline;
+
+    private BlockOwnershipIndex ownership;
+
+    @Setup
+    public void setUp() {
+        world = new StubWorld();
+        positions = DrawTemporaryCircle.buildRing(new Location(world.getWorld(), 0, 64, 0), radius, decrementRadii);
+        scheduler = new BlockChangeScheduler(Long.MAX_VALUE / 2);
+        timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        ownership = new BlockOwnershipIndex();
+    }
+
+    @Benchmark
+    public int applyAndRestore() {
+
+        timeline.start(new TemporaryBlockEffect(scheduler, null, null, ownership, world.getWorld(), positions,
+                BlockStates.AIR, 1L), 0L);
+
+        int ticks = 0;
+        while (timeline.getActiveEffects() > 0) {
+            timeline.run();
+            scheduler.run();
+            ticks++;
+        }
+
+        return ticks;
+    }
+
+}
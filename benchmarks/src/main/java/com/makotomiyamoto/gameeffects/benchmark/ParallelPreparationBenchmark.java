@@ -0,0 +1,85 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.task.DrawTemporaryCircle;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * Preparing a large, uncached thick ring on a fork/join pool of increasing
+ * size. One thread prepares it on the calling thread, as without a pool.
+ * streamThickRing walks the same ring without generating or caching it.
+ *
+ * Each call is timed on its own, with the shape cache emptied before it
+ * outside the measurement.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 30)
+@Fork(1)
+public class ParallelPreparationBenchmark {
+
+    @Param({ "256", "1024" })
+    public int radius;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private Location center;
+
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        center = new Location(new StubWorld().getWorld(), 100.5, 64, -200.5);
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Setup(Level.Iteration)
+    public void clearCache() {
+        CircleGenerator.getCache().invalidateAll();
+    }
+
+    @Benchmark
+    public long[] filledDisc() {
+        return DrawTemporaryCircle.buildRing(center, radius, radius, pool);
+    }
+
+    @Benchmark
+    public long[] thickRing() {
+        return DrawTemporaryCircle.buildRing(center, radius, radius / 8, pool);
+    }
+
+    @Benchmark
+    public long streamThickRing() {
+        LongStream offsets = CircleGenerator.streamAnnulus(radius - radius / 8, radius - 1, CircleGenerator.Plane.XZ);
+        return pool == null ? offsets.sum() : pool.submit(() -> offsets.parallel().sum()).join();
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.RingAnimation;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.task.AnimatedRingEffect;
+import com.makotomiyamoto.gameeffects.task.BlockChangeScheduler;
+import com.makotomiyamoto.gameeffects.task.EffectTimeline;
+import com.makotomiyamoto.gameeffects.task.TemporaryBlockEffect;
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Cost of an expanding ring from radius 1 to the given radius on the stub
+ * world, drawn either from frame deltas or by clearing and redrawing the whole
+ * ring every frame. The ring's deltas and rings are cached before measuring.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingAnimationBenchmark {
+
+    @Param({ "16", "64" })
+    public int radius;
+
+    @Param({ "1", "4" })
+    public int thickness;
+
+    private StubWorld world;
+
+    private Location center;
+
+    private RingAnimation animation;
+
+    private long[][] rings;
+
+    private BlockChangeScheduler scheduler;
+
+    private EffectTimeline timeline;
+
+    private BlockOwnershipIndex ownership;
+
+    @Setup
+    public void setUp() {
+        world = new StubWorld();
+        center = new Location(world.getWorld(), 0, 64, 0);
+        animation = new RingAnimation(1, radius, thickness, CircleGenerator.Plane.XZ);
+        scheduler = new BlockChangeScheduler(Long.MAX_VALUE / 2);
+        timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        ownership = new BlockOwnershipIndex();
+
+        rings = new long[animation.getFrameCount()][];
+        for (int frame = 0; frame < rings.length; frame++)
+            rings[frame] = toPositions(RingAnimation.generateRingMask(animation.getRadius(frame), thickness,
+                    CircleGenerator.Plane.XZ));
+    }
+
+    @Benchmark
+    public int deltas() {
+
+        timeline.start(AnimatedRingEffect.inWorld(scheduler, null, null, ownership, timeline, center, animation,
+                BlockStates.AIR, 1L, 1L), 0L);
+
+        return runUntilFinished();
+    }
+
+    @Benchmark
+    public int fullRedraws() {
+
+        int ticks = 0;
+        for (long[] ring : rings) {
+            timeline.start(new TemporaryBlockEffect(scheduler, null, null, ownership, world.getWorld(), ring,
+                    BlockStates.AIR, 1L), 0L);
+            ticks += runUntilFinished();
+        }
+
+        return ticks;
+    }
+
+    private static long[] toPositions(ShapeMask ring) {
+
+        long[] positions = new long[ring.size()];
+        for (int i = 0; i < ring.size(); i++)
+            positions[i] = BlockPos.pack(ring.getX(i), 64 + ring.getY(i), ring.getZ(i));
+
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private int runUntilFinished() {
+
+        int ticks = 0;
+        while (timeline.getActiveEffects() > 0) {
+            timeline.run();
+            scheduler.run();
+            ticks++;
+        }
+
+        return ticks;
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeAtlas;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeKey;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of copying an annulus out of a mapped atlas into a heap mask, which
+ * ShapeCache does once per miss instead of generating it. Compare with the
+ * cold generateCircleMask runs of CircleGeneratorBenchmark.
+ *
+ * A thickness of 0 stands for a full disc.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShapeAtlasBenchmark {
+
+    @Param({ "64", "512" })
+    public int radius;
+
+    @Param({ "8", "0" })
+    public int thickness;
+
+    private File file;
+
+    private ShapeAtlas atlas;
+
+    private ShapeKey key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        CircleGenerator.getCache().invalidateAll();
+        CircleGenerator.generateAnnulusMask(thickness == 0 ? 0 : radius - thickness, radius,
+                CircleGenerator.Plane.XZ);
+        Map<ShapeKey, ShapeMask> masks = CircleGenerator.getCache().snapshot();
+        CircleGenerator.getCache().invalidateAll();
+
+        file = File.createTempFile("shapes", ".atlas");
+        ShapeAtlas.write(file, masks);
+        atlas = ShapeAtlas.load(file);
+        key = masks.keySet().iterator().next();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.deleteOnExit(); // still mapped, which some systems refuse to delete
+    }
+
+    @Benchmark
+    public ShapeMask copyFromAtlas() {
+        return atlas.get(key);
+    }
+
+}
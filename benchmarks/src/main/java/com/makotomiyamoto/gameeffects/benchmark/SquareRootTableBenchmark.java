@@ -0,0 +1,67 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.IntSqrt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the boxed square root table CircleGenerator used to build when it
+ * was first loaded, against computing every root it held with IntSqrt, which
+ * replaced it.
+ *
+ * Each call is timed on its own in a fresh JVM, since "first load" only means
+ * something before the JIT has seen the code. Run with -prof gc for the bytes
+ * each allocates; the table's are what it kept on the heap, plus the arrays
+ * its resizes dropped.
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, jvmArgs = "-Xmx1g")
+public class SquareRootTableBenchmark {
+
+    private static final int MAX_SQUARE = 1000; // the largest root the old table held
+
+    /**
+     * @return the table CircleGenerator's static initializer built, the same way
+     *         it built it
+     */
+    @Benchmark
+    public HashMap<Integer, Integer> boxedTable() {
+
+        HashMap<Integer, Integer> squareRootCache = new HashMap<Integer, Integer>();
+        for (int i = 0; i <= MAX_SQUARE; i++)
+            squareRootCache.put(i * i, i);
+
+        int greatestPerfectSquare = 0;
+        for (int i = 0; i <= MAX_SQUARE * MAX_SQUARE; i++) {
+            if (squareRootCache.containsKey(i))
+                greatestPerfectSquare = squareRootCache.get(i);
+            else
+                squareRootCache.put(i, greatestPerfectSquare);
+        }
+
+        return squareRootCache;
+    }
+
+    @Benchmark
+    public long intSqrt() {
+
+        long sum = 0;
+        for (int i = 0; i <= MAX_SQUARE * MAX_SQUARE; i++)
+            sum += IntSqrt.floor(i);
+
+        return sum;
+    }
+
+}
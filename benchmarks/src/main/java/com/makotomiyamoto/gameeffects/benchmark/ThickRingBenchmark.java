@@ -0,0 +1,84 @@
+package com.makotomiyamoto.gameeffects.benchmark;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.task.DrawTemporaryCircle;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of building the thick ring DrawTemporaryCircle draws, from
+ * the command's arguments to the packed block positions handed to the
+ * scheduler.
+ *
+ * Warm calls find the ring's annulus cached. Cold calls are timed one at a time
+ * on an emptied cache: whether a ring is streamed depends on the cache's
+ * bound, so the cache cannot be bounded to force misses, and emptying it
+ * before every call of a throughput run would cost more than the call itself.
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ThickRingBenchmark {
+
+    @Param({ "16", "64", "256" })
+    public int radius;
+
+    @Param({ "1", "4", "16" })
+    public int decrementRadii;
+
+    private Location center;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        center = new Location(new StubWorld().getWorld(), 100.5, 64, -200.5);
+        CircleGenerator.getCache().invalidateAll();
+        DrawTemporaryCircle.buildRing(center, radius, decrementRadii);
+    }
+
+    /**
+     * Empties the shape cache before every single-shot call
+     *
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyCache {
+
+        @Setup(Level.Iteration)
+        public void invalidate() {
+            CircleGenerator.getCache().invalidateAll();
+        }
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public long[] buildRingWarm() {
+        return DrawTemporaryCircle.buildRing(center, radius, decrementRadii);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 1000)
+    @Measurement(iterations = 200)
+    public long[] buildRingCold(EmptyCache emptyCache) {
+        return DrawTemporaryCircle.buildRing(center, radius, decrementRadii);
+    }
+
+}
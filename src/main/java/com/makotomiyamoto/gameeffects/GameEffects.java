@@ -1,23 +1,323 @@
 package com.makotomiyamoto.gameeffects;
 
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeAtlas;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeCache;
 import com.makotomiyamoto.gameeffects.command.CreateTestCircle;
+import com.makotomiyamoto.gameeffects.command.GameEffectsCommand;
+import com.makotomiyamoto.gameeffects.metrics.EffectMetrics;
+import com.makotomiyamoto.gameeffects.metrics.MetricsDump;
+import com.makotomiyamoto.gameeffects.task.AdmissionController;
+import com.makotomiyamoto.gameeffects.task.BlockChangeScheduler;
+import com.makotomiyamoto.gameeffects.task.ChunkSnapshotFilter;
+import com.makotomiyamoto.gameeffects.task.EffectTimeline;
+import com.makotomiyamoto.gameeffects.task.GhostBlockSender;
+import com.makotomiyamoto.gameeffects.task.SnapshotRecovery;
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.SnapshotJournal;
+import org.bukkit.World;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 public final class GameEffects extends JavaPlugin {
 
+    private BlockChangeScheduler blockChangeScheduler;
+
+    private EffectTimeline effectTimeline;
+
+    private GhostBlockSender ghostBlockSender;
+
+    private SnapshotJournal snapshotJournal;
+
+    private EffectMetrics metrics;
+
+    private ForkJoinPool preparationPool;
+
+    private AdmissionController admissionController;
+
+    private ChunkSnapshotFilter chunkSnapshotFilter;
+
+    private int maxEffectRadius;
+
+    private final ConcurrentHashMap<UUID, BlockOwnershipIndex> blockOwnership = new ConcurrentHashMap<>();
+
+    private boolean skipUnloadedChunks;
+
+    private boolean prefilterBlocks;
+
+    public GameEffects() {
+        super();
+    }
+
+    /**
+     * Creates the plugin outside of a server's plugin class loader, e.g. to
+     * drive it from a load simulation; servers use the constructor above
+     */
+    public GameEffects(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     @Override
     public void onEnable() {
 
+        saveDefaultConfig();
+        CircleGenerator.getCache().setMaxWeight(getConfig().getLong("shape-cache.max-points"));
+        loadShapeAtlas();
+        skipUnloadedChunks = getConfig().getBoolean("block-changes.skip-unloaded-chunks");
+        prefilterBlocks = getConfig().getBoolean("block-changes.prefilter");
+
+        startTasks();
+        restoreJournaledSnapshots();
         registerCommands();
 
         this.getServer().getConsoleSender().sendMessage("GameEffects enabled!");
 
     }
 
+    @Override
+    public void onDisable() {
+
+        if (blockChangeScheduler == null)
+            return;
+
+        // let preparations in progress hand their effects over, so the loop below
+        // restores them too
+        preparationPool.shutdown();
+        try {
+            if (!preparationPool.awaitTermination(10, TimeUnit.SECONDS))
+                getLogger().warning("Gave up waiting for effects still being prepared.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // restore every temporary effect before the server stops; applying a
+        // change may schedule its restore, so keep going until both are empty
+        while (effectTimeline.getPendingEvents() > 0 || blockChangeScheduler.getQueuedChanges() > 0
+                || ghostBlockSender.getQueuedChanges() > 0) {
+            effectTimeline.flush();
+            blockChangeScheduler.flush();
+            ghostBlockSender.flush();
+        }
+
+        if (snapshotJournal != null) {
+            try {
+                snapshotJournal.close();
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Could not close the snapshot journal", e);
+            }
+        }
+
+        if (getConfig().getBoolean("shape-cache.save-atlas-on-disable")) {
+            try {
+                ShapeCache cache = CircleGenerator.getCache();
+                ShapeAtlas.write(getShapeAtlasFile(), cache.snapshot(cache.getMaxWeight()));
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Could not save the shape atlas", e);
+            }
+        }
+
+    }
+
+    /**
+     * Maps the shapes precomputed by earlier runs or by ShapeAtlasGenerator, if
+     * there are any
+     */
+    private void loadShapeAtlas() {
+
+        File file = getShapeAtlasFile();
+        if (!getConfig().getBoolean("shape-cache.load-atlas") || !file.isFile())
+            return;
+
+        try {
+            ShapeAtlas atlas = ShapeAtlas.load(file);
+            CircleGenerator.getCache().setAtlas(atlas);
+            getLogger().info("Mapped " + atlas.size() + " precomputed shapes.");
+        } catch (IOException e) {
+            getLogger().warning("Could not load the shape atlas, shapes will be generated instead: " + e);
+        }
+    }
+
+    private File getShapeAtlasFile() {
+        return new File(getDataFolder(), "shapes.atlas");
+    }
+
+    private void startTasks() {
+
+        int parallelism = getConfig().getInt("preparation.parallelism");
+        if (parallelism < 1)
+            parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        preparationPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("GameEffects Preparation #" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        blockChangeScheduler = new BlockChangeScheduler(getConfig().getLong("block-changes.tick-budget-nanos"));
+        this.getServer().getScheduler().runTaskTimer(this, blockChangeScheduler, 1L, 1L);
+
+        effectTimeline = new EffectTimeline(getLogger());
+        this.getServer().getScheduler().runTaskTimer(this, effectTimeline, 1L, 1L);
+
+        ghostBlockSender = new GhostBlockSender(getConfig().getInt("ghost-blocks.max-changes-per-player-per-tick"));
+        this.getServer().getScheduler().runTaskTimer(this, ghostBlockSender, 1L, 1L);
+
+        chunkSnapshotFilter = new ChunkSnapshotFilter(effectTimeline, preparationPool,
+                Math.max(1, getConfig().getInt("block-changes.max-snapshots-per-tick")));
+
+        AdmissionController.Policy policy;
+        try {
+            policy = AdmissionController.Policy.valueOf(getConfig().getString("admission.policy")
+                    .toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            getLogger().warning("Unknown admission.policy, queueing effects over budget.");
+            policy = AdmissionController.Policy.QUEUE;
+        }
+        admissionController = new AdmissionController(policy, getConfig().getLong("admission.player-burst"),
+                getConfig().getLong("admission.player-refill-per-tick"), getConfig().getLong("admission.global-burst"),
+                getConfig().getLong("admission.global-refill-per-tick"),
+                getConfig().getInt("admission.max-queued-per-player"));
+        this.getServer().getScheduler().runTaskTimer(this, admissionController, 1L, 1L);
+        maxEffectRadius = Math.max(0, Math.min(getConfig().getInt("admission.max-radius"), CircleGenerator.MAX_RADIUS));
+
+        metrics = new EffectMetrics(CircleGenerator.getCache(), blockChangeScheduler, effectTimeline, ghostBlockSender,
+                chunkSnapshotFilter, admissionController);
+
+        long dumpInterval = getConfig().getLong("metrics.dump-interval-ticks");
+        if (dumpInterval > 0) {
+            MetricsDump.Format format;
+            try {
+                format = MetricsDump.Format.valueOf(getConfig().getString("metrics.dump-format").toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                getLogger().warning("Unknown metrics.dump-format, dumping metrics as CSV.");
+                format = MetricsDump.Format.CSV;
+            }
+
+            File file = new File(getDataFolder(), "metrics." + format.name().toLowerCase(Locale.ROOT));
+            this.getServer().getScheduler().runTaskTimerAsynchronously(this,
+                    new MetricsDump(metrics, file, format, getLogger()), dumpInterval, dumpInterval);
+        }
+
+    }
+
+    /**
+     * Puts back the blocks of every effect that was still in progress when the
+     * server last stopped without disabling the plugin, e.g. on a crash. Worlds
+     * that are not loaded yet are restored once they load.
+     */
+    private void restoreJournaledSnapshots() {
+
+        try {
+            snapshotJournal = new SnapshotJournal(new File(getDataFolder(), "snapshots.journal"));
+        } catch (IOException e) {
+            getLogger().severe("Could not open the snapshot journal, effects will not survive a crash: " + e);
+            return;
+        }
+
+        SnapshotRecovery recovery = new SnapshotRecovery(snapshotJournal, blockChangeScheduler, getLogger());
+        int restored = 0;
+        for (World world : getServer().getWorlds())
+            restored += recovery.restore(world);
+
+        blockChangeScheduler.flush();
+
+        if (restored > 0)
+            getLogger().info("Restored " + restored + " blocks left behind by interrupted effects.");
+
+        int pending = recovery.getPendingBlocks();
+        if (pending > 0) {
+            getLogger().warning("Will restore " + pending + " blocks left behind by interrupted effects once their "
+                    + "worlds load.");
+            getServer().getPluginManager().registerEvents(recovery, this);
+        }
+    }
+
     private void registerCommands() {
 
         this.getCommand("CreateTestCircle").setExecutor(new CreateTestCircle(this));
+        this.getCommand("gameeffects").setExecutor(new GameEffectsCommand(this));
+
+    }
+
+    public BlockChangeScheduler getBlockChangeScheduler() {
+        return blockChangeScheduler;
+    }
+
+    public EffectTimeline getEffectTimeline() {
+        return effectTimeline;
+    }
+
+    public GhostBlockSender getGhostBlockSender() {
+        return ghostBlockSender;
+    }
+
+    /**
+     * @return the journal of effects in progress, or null if it could not be
+     *         opened
+     */
+    public SnapshotJournal getSnapshotJournal() {
+        return snapshotJournal;
+    }
+
+    /**
+     * @param world - a world effects change blocks in
+     * @return the index of the world's blocks held by temporary effects, to be
+     *         used from the main thread only
+     */
+    public BlockOwnershipIndex getBlockOwnership(World world) {
+        return blockOwnership.computeIfAbsent(world.getUID(), id -> new BlockOwnershipIndex());
+    }
+
+    /**
+     * @return the pool large effects are prepared on before they are handed to
+     *         the main thread
+     */
+    public ForkJoinPool getPreparationPool() {
+        return preparationPool;
+    }
+
+    /**
+     * @return decides which requested effects may start; use it from the main
+     *         thread only
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * @return the largest radius effect commands accept
+     */
+    public int getMaxEffectRadius() {
+        return maxEffectRadius;
+    }
+
+    /**
+     * @return finds the blocks effects would not change, off the main thread
+     */
+    public ChunkSnapshotFilter getChunkSnapshotFilter() {
+        return chunkSnapshotFilter;
+    }
+
+    public EffectMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isSkippingUnloadedChunks() {
+        return skipUnloadedChunks;
+    }
 
+    public boolean isPrefilteringBlocks() {
+        return prefilterBlocks;
     }
 
 }
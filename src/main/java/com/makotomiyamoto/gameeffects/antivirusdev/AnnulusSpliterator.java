@@ -0,0 +1,223 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Streams the squares of a rasterized annulus one at a time, in constant
+ * memory, without generating or caching the whole shape.
+ *
+ * Yields the same offsets as {@link CircleGenerator#generateAnnulusMask}, packed
+ * with ShapeMask.pack but in no particular order. Octant 2 is walked column by
+ * column and each square is cloned into the octants that do not already share
+ * it. The edges of each column are stepped down from the previous column's by
+ * comparing squares, as a midpoint circle algorithm does, so only the first
+ * column of each split takes a square root.
+ *
+ * Splitting hands off the first half of the remaining columns, so parallel
+ * streams divide the annulus into bands.
+ *
+ */
+public final class AnnulusSpliterator implements Spliterator.OfLong {
+
+    private static final int MIN_SPLIT_COLUMNS = 64;
+
+    private final long innerSquared, outerSquared;
+
+    private final CircleGenerator.Plane plane;
+
+    private final int endU; // exclusive
+
+    private int u, v, image;
+
+    private long top, innerEdge; // the highest square of the column, and the inner circle's height past it
+
+    /**
+     * @param innerRadius - the radius of the inner edge
+     * @param outerRadius - the radius of the outer edge
+     * @param plane       - which plane the annulus is on
+     * @throws IllegalArgumentException if plane is null, innerRadius is less than
+     *                                  zero or greater than outerRadius, or
+     *                                  outerRadius is greater than
+     *                                  ShapeMask.MAX_OFFSET
+     */
+    public AnnulusSpliterator(int innerRadius, int outerRadius, CircleGenerator.Plane plane) {
+
+        if (innerRadius < 0 || innerRadius > outerRadius || outerRadius > ShapeMask.MAX_OFFSET || plane == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        this.innerSquared = (long) innerRadius * innerRadius;
+        this.outerSquared = (long) outerRadius * outerRadius;
+        this.plane = plane;
+        this.endU = (int) IntSqrt.floor(outerSquared / 2) + 1; // past the diagonal, octant 1 is covered by symmetry
+        startColumn(0);
+    }
+
+    private AnnulusSpliterator(AnnulusSpliterator source, int endU) {
+        this.innerSquared = source.innerSquared;
+        this.outerSquared = source.outerSquared;
+        this.plane = source.plane;
+        this.endU = endU;
+        this.u = source.u;
+        this.v = source.v;
+        this.image = source.image;
+        this.top = source.top;
+        this.innerEdge = source.innerEdge;
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+
+        while (u < endU) {
+            if (v <= top) {
+                action.accept(image(image));
+                if (++image == imageCount()) {
+                    image = 0;
+                    v++;
+                }
+                return true;
+            }
+            nextColumn();
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(LongConsumer action) {
+
+        for (; u < endU; nextColumn()) {
+            for (; v <= top; v++) {
+                for (int count = imageCount(); image < count; image++)
+                    action.accept(image(image));
+                image = 0;
+            }
+        }
+    }
+
+    @Override
+    public Spliterator.OfLong trySplit() {
+
+        if (endU - u < 2 * MIN_SPLIT_COLUMNS)
+            return null;
+
+        int middle = (u + endU) >>> 1;
+        AnnulusSpliterator prefix = new AnnulusSpliterator(this, middle);
+        startColumn(middle);
+        return prefix;
+    }
+
+    /**
+     * @return about how many squares are left, assuming every remaining column
+     *         is as tall as the current one
+     */
+    @Override
+    public long estimateSize() {
+        return u < endU ? 8L * (endU - u) * Math.max(top - v + 1, 1) : 0;
+    }
+
+    /**
+     * Not ORDERED: no order is promised, so parallel streams need not keep
+     * their bands in encounter order
+     */
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL | IMMUTABLE;
+    }
+
+    private void startColumn(int column) {
+
+        u = column;
+        image = 0;
+        if (u >= endU)
+            return;
+
+        top = IntSqrt.floor(outerSquared - (long) u * u);
+        long next = (long) (u + 1) * (u + 1);
+        innerEdge = next < innerSquared ? IntSqrt.floor(innerSquared - next) : 0;
+        v = (int) Math.max(u, innerEdge);
+    }
+
+    private void nextColumn() {
+
+        u++;
+        image = 0;
+        if (u >= endU)
+            return;
+
+        // both edges only fall as u grows, so step each down until it is back
+        // inside its circle
+        long rest = outerSquared - (long) u * u;
+        while (top * top > rest)
+            top--;
+
+        long next = (long) (u + 1) * (u + 1);
+        if (next >= innerSquared) {
+            innerEdge = 0;
+        } else {
+            rest = innerSquared - next;
+            while (innerEdge * innerEdge > rest)
+                innerEdge--;
+        }
+
+        v = (int) Math.max(u, innerEdge);
+    }
+
+    /**
+     * @return how many distinct octants the square (u, v) lands in
+     */
+    private int imageCount() {
+        return v == 0 ? 1 : u == 0 || u == v ? 4 : 8;
+    }
+
+    private long image(int index) {
+
+        if (v == 0) // only the center lies on both axes
+            return CircleGenerator.at(plane, 0, 0);
+
+        if (u == 0) {
+            switch (index) {
+                case 0:
+                    return CircleGenerator.at(plane, 0, v);
+                case 1:
+                    return CircleGenerator.at(plane, 0, -v);
+                case 2:
+                    return CircleGenerator.at(plane, v, 0);
+                default:
+                    return CircleGenerator.at(plane, -v, 0);
+            }
+        }
+
+        if (u == v) {
+            switch (index) {
+                case 0:
+                    return CircleGenerator.at(plane, u, u);
+                case 1:
+                    return CircleGenerator.at(plane, -u, u);
+                case 2:
+                    return CircleGenerator.at(plane, -u, -u);
+                default:
+                    return CircleGenerator.at(plane, u, -u);
+            }
+        }
+
+        switch (index) {
+            case 0:
+                return CircleGenerator.at(plane, u, v); // octant 2
+            case 1:
+                return CircleGenerator.at(plane, v, u); // octant 1
+            case 2:
+                return CircleGenerator.at(plane, -u, v); // octant 3
+            case 3:
+                return CircleGenerator.at(plane, -v, u); // octant 4
+            case 4:
+                return CircleGenerator.at(plane, -v, -u); // octant 5
+            case 5:
+                return CircleGenerator.at(plane, -u, -v); // octant 6
+            case 6:
+                return CircleGenerator.at(plane, u, -v); // octant 7
+            default:
+                return CircleGenerator.at(plane, v, -u); // octant 8
+        }
+    }
+
+}
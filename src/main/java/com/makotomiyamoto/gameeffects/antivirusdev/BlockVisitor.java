@@ -0,0 +1,22 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import org.bukkit.World;
+
+/**
+ * Callback that receives the absolute block coordinates of a generated shape
+ * one at a time, so callers can use the blocks without a Location being
+ * allocated for each of them.
+ *
+ */
+@FunctionalInterface
+public interface BlockVisitor {
+
+    /**
+     * @param world - the world of the shape's center, may be null
+     * @param x     - block x coordinate
+     * @param y     - block y coordinate
+     * @param z     - block z coordinate
+     */
+    void visit(World world, int x, int y, int z);
+
+}
@@ -1,9 +1,10 @@
 package com.makotomiyamoto.gameeffects.antivirusdev;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 import org.bukkit.Location;
 
@@ -30,81 +31,19 @@ import org.bukkit.Location;
  */
 public class CircleGenerator {
 
-    private final static int MAX_SQUARE = 1000; // the maximum radius whose square the generator will cache.
+    public final static int MAX_RADIUS = 46340; // the largest radius whose square fits in an int.
 
     private static final double SQUARE_ROOT_OF_TWO = 1.4142135624;
 
-    // cache circle location sets by radius and whether enclosed locations are
-    // allowed
+    private static final long DEFAULT_CACHE_POINTS = 4000000; // roughly 32 MB of packed offsets
 
-    private static HashMap<Integer, HashSet<RelativeLocation>> cacheXZEnclosed = new HashMap<>();
+    private static final long PARALLEL_POINTS = 1 << 16; // smaller shapes are not worth splitting up
 
-    private static HashMap<Integer, HashSet<RelativeLocation>> cacheXYEnclosed = new HashMap<>();
+    private static final int MIN_SLICE_COLUMNS = 8;
 
-    private static HashMap<Integer, HashSet<RelativeLocation>> cacheZYEnclosed = new HashMap<>();
-
-    private static HashMap<Integer, HashSet<RelativeLocation>> cacheXZIgnoreEnclosed = new HashMap<>();
-
-    private static HashMap<Integer, HashSet<RelativeLocation>> cacheXYIgnoreEnclosed = new HashMap<>();
-
-    private static HashMap<Integer, HashSet<RelativeLocation>> cacheZYIgnoreEnclosed = new HashMap<>();
-
-    private static HashMap<Integer, Integer> squareRootCache = new HashMap<Integer, Integer>();
-    static {
-        for (int i = 0; i <= MAX_SQUARE; i++) {
-
-            squareRootCache.put(i * i, i);
-
-        }
-
-        int greatestPerfectSquare = 0; // for this particular application, the "square root" of a non-perfect square
-        // integer is the
-        // square root of the greatest perfect square below that integer
-        // i.e. the "square root" of 20 is 4.
-        for (int i = 0; i <= MAX_SQUARE * MAX_SQUARE; i++) {
-
-            if (squareRootCache.containsKey(i)) {
-                greatestPerfectSquare = squareRootCache.get(i);
-            } else {
-                squareRootCache.put(i, greatestPerfectSquare);
-            }
-        }
-    }
-
-    /**
-     *
-     * Helper class to store relative locations, since all computed circles are
-     * based at (0,0)
-     *
-     */
-    private static class RelativeLocation {
-
-        int rX, rY, rZ;
-
-        public RelativeLocation(int relX, int relY, int relZ) {
-            this.rY = relY;
-            this.rZ = relZ;
-            this.rX = relX;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof RelativeLocation))
-                return false;
-
-            RelativeLocation rl = (RelativeLocation) o;
-            return rl.rX == rX && rl.rY == rY && rl.rZ == rZ;
-
-        }
-
-        @Override
-        public int hashCode() {
-
-            return rX * rX + rY * rY + rZ * rZ;
-
-        }
-
-    }
+    // cache circle masks by plane, radius, and whether enclosed locations and
+    // burrs are allowed; shared by every thread that generates circles
+    private static final ShapeCache cache = new ShapeCache(DEFAULT_CACHE_POINTS);
 
     /**
      * Enumeration representing the three axis-aligned planes in the game
@@ -128,288 +67,399 @@ public class CircleGenerator {
      *                       @param allowBurrs - whether the circle should have 'burrs' or single blocks jutting out at the tips of the axes
      * @return a set of locations representing a rasterized circle
      * @throws IllegalArgumentException if centerpoint is null, plane is null, or
-     *                                  radius is less than zero
+     *                                  radius is less than zero or greater than
+     *                                  46340
      */
     public static HashSet<Location> generateCircle(Location center, int radius, Plane plane, boolean ignoreEnclosed, boolean allowBurrs) {
 
-        if (center == null || radius < 0 || plane == null)
-            throw new IllegalArgumentException("Incorrect parameter(s)!"); // either of these three conditions would
-        // make the parameters invalid
-
         HashSet<Location> set = new HashSet<>();
 
-        HashMap<Integer, HashSet<RelativeLocation>> whichCacheToUse = null; // since there are 6 caches, the correct one
-        // for the plane must be stored
-        switch (plane) { // switch statement is very fast performance-wise
-            case XZ:
-                whichCacheToUse = ignoreEnclosed ? cacheXZIgnoreEnclosed : cacheXZEnclosed;
-                break;
-            case XY:
-                whichCacheToUse = ignoreEnclosed ? cacheXYIgnoreEnclosed : cacheXYEnclosed;
-                break;
-            case ZY:
-                whichCacheToUse = ignoreEnclosed ? cacheZYIgnoreEnclosed : cacheZYEnclosed;
-                break;
-            default:
-                break;
-        }
+        forEachBlock(center, radius, plane, ignoreEnclosed, allowBurrs,
+                (world, x, y, z) -> set.add(new Location(world, x, y, z)));
 
-        if (whichCacheToUse.containsKey(new Integer(radius))) { // optimized caching return
+        return set;
+    }
 
-            HashSet<RelativeLocation> locs = whichCacheToUse.get(radius);
-            locs = (HashSet<RelativeLocation>) locs.clone();
+    /**
+     * Visits the blocks of a rasterized circle without allocating anything per
+     * block. Uses cached results to improve efficiency
+     *
+     * @param center         - the centerpoint of the circle
+     * @param radius         - the radius of the circle
+     * @param plane          - which plane to generate the circle on
+     * @param ignoreEnclosed - whether to ignore 'enclosed' squares
+     * @param allowBurrs     - whether the circle should have 'burrs' at the tips of
+     *                       the axes
+     * @param visitor        - receives the world and block coordinates of each
+     *                       block of the circle
+     * @throws IllegalArgumentException if centerpoint is null, plane is null, or
+     *                                  radius is less than zero or greater than
+     *                                  46340
+     */
+    public static void forEachBlock(Location center, int radius, Plane plane, boolean ignoreEnclosed, boolean allowBurrs,
+                                    BlockVisitor visitor) {
 
+        if (center == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
 
-            if(!allowBurrs) {
+        generateCircleMask(radius, plane, ignoreEnclosed, allowBurrs).forEach(center.getWorld(),
+                center.getBlockX(), center.getBlockY(), center.getBlockZ(), visitor);
+    }
 
-                switch (plane) {
-                    case XZ:
-                        locs.remove(new RelativeLocation(0,0, radius));
-                        locs.add(new RelativeLocation(0, 0, radius-1));
+    /**
+     * Generates the offsets of a rasterized circle centered at (0,0,0). Uses cached
+     * results to improve efficiency
+     *
+     * @param radius         - the radius of the circle
+     * @param plane          - which plane to generate the circle on
+     * @param ignoreEnclosed - whether to ignore 'enclosed' squares
+     * @param allowBurrs     - whether the circle should have 'burrs' at the tips of
+     *                       the axes
+     * @return a mask of the circle's offsets; a radius of zero gives the center
+     *         square alone
+     * @throws IllegalArgumentException if plane is null, or radius is less than
+     *                                  zero or greater than 46340
+     */
+    public static ShapeMask generateCircleMask(int radius, Plane plane, boolean ignoreEnclosed, boolean allowBurrs) {
 
-                        locs.remove(new RelativeLocation(-radius,0, 0));
-                        locs.add(new RelativeLocation(-radius+1, 0, 0));
+        if (radius < 0 || radius > MAX_RADIUS || plane == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!"); // either of these conditions would
+        // make the parameters invalid
 
-                        locs.remove(new RelativeLocation(radius,0, 0));
-                        locs.add(new RelativeLocation( radius-1, 0, 0));
+        int flags = ignoreEnclosed ? ShapeKey.IGNORE_ENCLOSED : 0;
 
-                        locs.remove(new RelativeLocation(0,0, -radius));
-                        locs.add(new RelativeLocation(0, 0, -radius+1));
-                        break;
-                    case XY:
-                        locs.remove(new RelativeLocation(0,radius, 0));
-                        locs.add(new RelativeLocation(0, radius-1, 0));
+        if (allowBurrs)
+            return cache.get(new ShapeKey(ShapeKey.Shape.CIRCLE, plane, radius, 0, flags),
+                    () -> rasterizeCircle(radius, plane, ignoreEnclosed));
 
-                        locs.remove(new RelativeLocation(0,-radius, 0));
-                        locs.add(new RelativeLocation(0, -radius+1, 0));
+        return cache.get(new ShapeKey(ShapeKey.Shape.CIRCLE, plane, radius, 0, flags | ShapeKey.NO_BURRS),
+                () -> removeBurrs(generateCircleMask(radius, plane, ignoreEnclosed, true), radius, plane));
+    }
 
-                        locs.remove(new RelativeLocation(radius,0, 0));
-                        locs.add(new RelativeLocation( radius-1, 0, 0));
-                        locs.remove(new RelativeLocation(-radius,0, 0));
-                        locs.add(new RelativeLocation( -radius+1, 0, 0));
+    /**
+     * Generates the offsets of a rasterized annulus, or thick ring, centered at
+     * (0,0,0): every square between the circle of the inner radius and the circle
+     * of the outer radius, both included. An inner radius of 0 gives a filled
+     * disc. Uses cached results to improve efficiency
+     *
+     * Each square of octant 2 is visited once, column by column, and cloned into
+     * the octants that do not already share it, so every square of the annulus
+     * is produced exactly once.
+     *
+     * @param innerRadius - the radius of the inner edge
+     * @param outerRadius - the radius of the outer edge
+     * @param plane       - which plane to generate the annulus on
+     * @return a mask of the annulus's offsets
+     * @throws IllegalArgumentException if plane is null, innerRadius is less than
+     *                                  zero or greater than outerRadius, or
+     *                                  outerRadius is greater than 46340
+     */
+    public static ShapeMask generateAnnulusMask(int innerRadius, int outerRadius, Plane plane) {
+        return generateAnnulusMask(innerRadius, outerRadius, plane, null);
+    }
 
-                        break;
-                    case ZY:
-                        locs.remove(new RelativeLocation(0,radius, 0));
-                        locs.add(new RelativeLocation(0, radius-1, 0));
+    /**
+     * Like generateAnnulusMask(innerRadius, outerRadius, plane), but a large
+     * annulus that is not cached yet is rasterized on a fork/join pool. Octant 2
+     * is split into slices of columns, each slice is rasterized and sorted by its
+     * own task, and the sorted slices are merged back together pairwise.
+     *
+     * @param innerRadius - the radius of the inner edge
+     * @param outerRadius - the radius of the outer edge
+     * @param plane       - which plane to generate the annulus on
+     * @param pool        - the pool to rasterize on, or null to rasterize on the
+     *                    calling thread
+     * @return a mask of the annulus's offsets
+     * @throws IllegalArgumentException if plane is null, innerRadius is less than
+     *                                  zero or greater than outerRadius, or
+     *                                  outerRadius is greater than 46340
+     * @throws java.util.concurrent.RejectedExecutionException if the pool has
+     *                                  been shut down
+     */
+    public static ShapeMask generateAnnulusMask(int innerRadius, int outerRadius, Plane plane, ForkJoinPool pool) {
 
-                        locs.remove(new RelativeLocation(0,-radius, 0));
-                        locs.add(new RelativeLocation(0, -radius+1, 0));
+        if (innerRadius < 0 || innerRadius > outerRadius || outerRadius > MAX_RADIUS || plane == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
 
-                        locs.remove(new RelativeLocation(0,0, radius));
-                        locs.add(new RelativeLocation(0 , 0, radius-1));
-                        locs.remove(new RelativeLocation(0,0, -radius));
-                        locs.add(new RelativeLocation( 0, 0, -radius+1));
-                        break;
-                    default:
-                        break;
-                }
+        return cache.get(new ShapeKey(ShapeKey.Shape.ANNULUS, plane, outerRadius, innerRadius, 0), () -> {
+            int innerSquared = innerRadius * innerRadius;
+            int outerSquared = outerRadius * outerRadius;
+            int columns = IntSqrt.floor(outerSquared / 2) + 1; // past the diagonal, octant 1 is covered by symmetry
 
-            }
-            for (RelativeLocation rl : locs)
-                set.add(new Location(center.getWorld(), center.getX() + rl.rX, center.getY() + rl.rY,
-                        center.getZ() + rl.rZ));
-            return set;
-        }
-        HashSet<RelativeLocation> locs = new HashSet<>();
+            if (pool == null || pool.getParallelism() < 2
+                    || estimatePoints(innerSquared, outerSquared, outerRadius) < PARALLEL_POINTS)
+                return rasterizeAnnulus(innerSquared, outerSquared, plane, 0, columns);
+
+            int sliceColumns = Math.max(MIN_SLICE_COLUMNS, columns / (pool.getParallelism() * 4));
+            return pool.invoke(new AnnulusSlice(innerSquared, outerSquared, plane, 0, columns, sliceColumns));
+        });
+    }
+
+    /**
+     * Streams the offsets of a rasterized annulus without generating the whole
+     * shape, for shapes too large or too short-lived to be worth caching. The
+     * stream never touches the cache, takes constant memory whatever the radius,
+     * and can be made parallel. Offsets are the same as generateAnnulusMask's,
+     * but in no particular order.
+     *
+     * @param innerRadius - the radius of the inner edge
+     * @param outerRadius - the radius of the outer edge, up to
+     *                    ShapeMask.MAX_OFFSET
+     * @param plane       - which plane to generate the annulus on
+     * @return a sequential stream of the annulus's packed offsets
+     * @throws IllegalArgumentException if plane is null, innerRadius is less than
+     *                                  zero or greater than outerRadius, or
+     *                                  outerRadius is greater than
+     *                                  ShapeMask.MAX_OFFSET
+     */
+    public static LongStream streamAnnulus(int innerRadius, int outerRadius, Plane plane) {
+        return StreamSupport.longStream(new AnnulusSpliterator(innerRadius, outerRadius, plane), false);
+    }
+
+    /**
+     * Estimates how many squares an annulus covers from its area, without
+     * generating it. The estimate includes a margin for the edges, so it is
+     * never much below the real count.
+     *
+     * @param innerRadius - the radius of the inner edge
+     * @param outerRadius - the radius of the outer edge
+     * @return about how many squares generateAnnulusMask would return
+     * @throws IllegalArgumentException if innerRadius is less than zero or
+     *                                  greater than outerRadius, or outerRadius
+     *                                  is greater than 46340
+     */
+    public static long estimateAnnulusPoints(int innerRadius, int outerRadius) {
+
+        if (innerRadius < 0 || innerRadius > outerRadius || outerRadius > MAX_RADIUS)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        return estimatePoints(innerRadius * innerRadius, outerRadius * outerRadius, outerRadius);
+    }
+
+    /**
+     * @return the cache shared by all generated shapes
+     */
+    public static ShapeCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Rasterizes octant 2 of the circle, prunes enclosed squares if requested, and
+     * mirrors what is left into the other seven octants
+     *
+     */
+    private static ShapeMask rasterizeCircle(int radius, Plane plane, boolean ignoreEnclosed) {
 
-        HashSet<RelativeLocation> remainingOctants = new HashSet<>(); // create a separate set to hold the filled
-        // octants, to avoid repeated filling
+        if (radius == 0) // the arc below steps one square past the center, which has no square root
+            return new ShapeMask.Builder(1).add(0, 0, 0).build();
 
-        final int unchanging_axis = 0; // the axis that does not have a component in the plane of the circle
         int radiusSquared = radius * radius;
 
         int stopValue = ((int) (radius / SQUARE_ROOT_OF_TWO)) + 1; // represents the midpoint along the edge of the
         // circle in quadrant 1, or the dividing point
         // between octant 2 and octant 1
 
-        RelativeLocation lastAdded = null; // track the location last added to the set
-        switch (plane) {
-            case XZ:
+        // octant 2 is stored in-plane as (u, v), where u is the independent axis
+        // and v the dependent one
+        ShapeMask.Builder octant = new ShapeMask.Builder(stopValue + radius + 1);
+        long lastAdded = 0; // track the location last added to the octant
+
+        for (int ind = 0; ind < stopValue; ind++) { // iterates from pi/2 to the stop point (90 deg. to 45 deg.)
+            // Derived from the equation a^2 = radius^2 - b^2
+            int prevDep = IntSqrt.floor(radiusSquared - (ind * ind)); // get the dependent value corresponding
+            // to the 'previous' integer independent variable
+            int nextDep = IntSqrt.floor(radiusSquared - ((ind + 1) * (ind + 1))); // get the dependent value
+            // corresponding to the 'next' integer independent value
+
+            for (int i = 0; i <= (prevDep - nextDep); i++) { // compute the delta between prevValue and nextValue,
+                // then add all blocks that fall in that delta
+                lastAdded = ShapeMask.pack(ind, prevDep - i, 0);
+                octant.addPacked(lastAdded);
+            }
+        }
 
-                for (int ind = 0; ind < stopValue; ind++) { // iterates from pi/2 to the stop point (90 deg. to 45 deg.)
-                    // Derived from the equation a^2 = radius^2 - b^2
-                    int prevDep = squareRootCache.get(radiusSquared - (ind * ind)); // get the dependent value corresponding
-                    // to
-                    // the
-                    // 'previous' integer independent
-                    // variable
-                    int nextDep = squareRootCache.get(radiusSquared - ((ind + 1) * (ind + 1))); // get the dependent value
-                    // corresponding to the
-                    // 'next'
-                    // integer independent value
-
-                    for (int i = 0; i <= (prevDep - nextDep); i++) { // compute the delta between prevValue and nextValue,
-                        // then
-                        // add all
-                        // blocks that fall in that delta
-
-                        RelativeLocation add = new RelativeLocation(ind, unchanging_axis, prevDep - i);
-                        locs.add(add);
-                        lastAdded = add;
-                    }
-                }
-
-                if (ignoreEnclosed) {
-                    locs.remove(lastAdded); // the last added element often becomes enclosed when the octants are filled, so
-                    // remove it
-                    Iterator<RelativeLocation> iteratorXZ = locs.iterator();
-
-                    while (iteratorXZ.hasNext()) {
-
-                        RelativeLocation rl = iteratorXZ.next();
-
-                        if (locs.contains(new RelativeLocation(rl.rX + 1, rl.rY, rl.rZ))
-                                && locs.contains(new RelativeLocation(rl.rX, rl.rY, rl.rZ + 1))) {
-
-                            iteratorXZ.remove();
-                        }
-
-                    }
-                }
-
-                for (RelativeLocation rl : locs) {
-                    fillOctantsXZ(remainingOctants, rl);
-                }
-                break;
-            case XY:
+        ShapeMask arc = octant.build();
 
-                for (int ind = 0; ind < stopValue; ind++) {
-                    int prevDep = squareRootCache.get(radiusSquared - (ind * ind));
-                    int nextDep = squareRootCache.get(radiusSquared - ((ind + 1) * (ind + 1)));
+        ShapeMask.Builder circle = new ShapeMask.Builder(arc.size() * 8);
 
-                    for (int i = 0; i <= (prevDep - nextDep); i++) {
-                        RelativeLocation add = new RelativeLocation(ind, prevDep - i, unchanging_axis);
-                        locs.add(add);
-                        lastAdded = add;
-                    }
-                }
+        for (int i = 0; i < arc.size(); i++) {
 
-                if (ignoreEnclosed) {
-                    locs.remove(lastAdded);
-                    Iterator<RelativeLocation> iteratorXY = locs.iterator();
+            int u = arc.getX(i);
+            int v = arc.getY(i);
 
-                    while (iteratorXY.hasNext()) {
+            if (ignoreEnclosed) {
+                // the last added element often becomes enclosed when the octants are
+                // filled, so it is dropped along with every square that has a
+                // neighbor in both axial directions
+                if (arc.get(i) == lastAdded || (arc.contains(u + 1, v, 0) && arc.contains(u, v + 1, 0)))
+                    continue;
+            }
 
-                        RelativeLocation rl = iteratorXY.next();
-                        if (locs.contains(new RelativeLocation(rl.rX + 1, rl.rY, rl.rZ))
-                                && locs.contains(new RelativeLocation(rl.rX, rl.rY + 1, rl.rZ))) {
+            fillOctants(circle, plane, u, v);
+        }
 
-                            iteratorXY.remove();
-                        }
+        return circle.build();
+    }
 
-                    }
-                }
+    /**
+     * Scans columns fromU up to toU of octant 2 (0 <= u <= v) one at a time,
+     * filling each column from the inner circle's lowest square in it up to the
+     * outer circle
+     *
+     */
+    private static ShapeMask rasterizeAnnulus(int innerSquared, int outerSquared, Plane plane, int fromU, int toU) {
 
-                for (RelativeLocation rl : locs) {
+        // the annulus covers about pi * (outer^2 - inner^2) squares plus its edges;
+        // a slice of columns covers its share of that
+        int outerRadius = IntSqrt.floor(outerSquared);
+        int columns = IntSqrt.floor(outerSquared / 2) + 1;
+        ShapeMask.Builder annulus = new ShapeMask.Builder((int) (estimatePoints(innerSquared, outerSquared,
+                outerRadius) * (toU - fromU) / columns) + 8);
 
-                    fillOctantsXY(remainingOctants, rl);
-                }
-                break;
-            case ZY:
+        for (int u = fromU; u < toU; u++) {
 
-                for (int ind = 0; ind < stopValue; ind++) {
-                    int prevDep = squareRootCache.get(radiusSquared - (ind * ind));
-                    int nextDep = squareRootCache.get(radiusSquared - ((ind + 1) * (ind + 1)));
+            int top = IntSqrt.floor(outerSquared - u * u);
+            int nextColumn = (u + 1) * (u + 1);
+            int bottom = Math.max(u, nextColumn < innerSquared ? IntSqrt.floor(innerSquared - nextColumn) : 0);
 
-                    for (int i = 0; i <= (prevDep - nextDep); i++) {
-                        RelativeLocation add = new RelativeLocation(unchanging_axis, prevDep - i, ind);
-                        locs.add(add);
-                        lastAdded = add;
-                    }
-                }
+            for (int v = bottom; v <= top; v++)
+                fillDistinctOctants(annulus, plane, u, v);
+        }
 
-                if (ignoreEnclosed) {
-                    locs.remove(lastAdded);
-                    Iterator<RelativeLocation> iteratorZY = locs.iterator();
+        return annulus.build();
+    }
 
-                    while (iteratorZY.hasNext()) {
+    private static long estimatePoints(int innerSquared, int outerSquared, int outerRadius) {
+        return (long) (Math.PI * ((long) outerSquared - innerSquared)) + 8L * (outerRadius + 1);
+    }
 
-                        RelativeLocation rl = iteratorZY.next();
-                        if (locs.contains(new RelativeLocation(rl.rX, rl.rY, rl.rZ + 1))
-                                && locs.contains(new RelativeLocation(rl.rX, rl.rY + 1, rl.rZ))) {
+    /**
+     * Rasterizes a range of columns of an annulus, splitting it in half until
+     * each task has at most sliceColumns columns. Every column clones its
+     * squares into octants no other column reaches, so the slices never overlap.
+     *
+     */
+    private static final class AnnulusSlice extends RecursiveTask<ShapeMask> {
 
-                            iteratorZY.remove();
-                        }
+        private final int innerSquared, outerSquared;
 
-                    }
-                }
+        private final Plane plane;
 
-                for (RelativeLocation rl : locs) {
+        private final int fromU, toU, sliceColumns;
 
-                    fillOctantsZY(remainingOctants, rl);
-                }
-                break;
+        AnnulusSlice(int innerSquared, int outerSquared, Plane plane, int fromU, int toU, int sliceColumns) {
+            this.innerSquared = innerSquared;
+            this.outerSquared = outerSquared;
+            this.plane = plane;
+            this.fromU = fromU;
+            this.toU = toU;
+            this.sliceColumns = sliceColumns;
         }
 
-        locs.addAll(remainingOctants); // finally, add the clones locations in the seven other octants to the set of
-        // original locations
+        @Override
+        protected ShapeMask compute() {
+
+            if (toU - fromU <= sliceColumns)
+                return rasterizeAnnulus(innerSquared, outerSquared, plane, fromU, toU);
 
-        whichCacheToUse.put(new Integer(radius), locs);
+            int middle = (fromU + toU) >>> 1;
+            AnnulusSlice right = new AnnulusSlice(innerSquared, outerSquared, plane, middle, toU, sliceColumns);
+            right.fork();
+            ShapeMask left = new AnnulusSlice(innerSquared, outerSquared, plane, fromU, middle, sliceColumns).compute();
 
-        if(!allowBurrs) {
-            return generateCircle(center, radius, plane, ignoreEnclosed, allowBurrs);
+            return ShapeMask.union(left, right.join());
         }
 
-        for (RelativeLocation rl : locs)
-            set.add(new Location(center.getWorld(), center.getBlockX() + rl.rX, center.getBlockY() + rl.rY,
-                    center.getBlockZ() + rl.rZ));
+    }
 
-        return set;
+    /**
+     * Like fillOctants, but squares on an axis or on a diagonal are only added
+     * once rather than once per octant that shares them
+     *
+     */
+    private static void fillDistinctOctants(ShapeMask.Builder builder, Plane plane, int u, int v) {
+
+        if (v == 0) { // only the center lies on both axes
+            builder.addPacked(at(plane, 0, 0));
+        } else if (u == 0) {
+            builder.addPacked(at(plane, 0, v));
+            builder.addPacked(at(plane, 0, -v));
+            builder.addPacked(at(plane, v, 0));
+            builder.addPacked(at(plane, -v, 0));
+        } else if (u == v) {
+            builder.addPacked(at(plane, u, u));
+            builder.addPacked(at(plane, -u, u));
+            builder.addPacked(at(plane, -u, -u));
+            builder.addPacked(at(plane, u, -u));
+        } else {
+            fillOctants(builder, plane, u, v);
+        }
     }
 
     /**
-     * Helper method to clone the blocks in one octant to the other seven in the XZ
-     * plane
+     * Replaces the single squares at the tips of the axes with the squares just
+     * inside them
      *
-     * @param set      - set that will ultimately contain the locations of the seven
-     *                 points
-     * @param location - location in octant 2 to be cloned
      */
-    private static void fillOctantsXZ(Set<RelativeLocation> set, RelativeLocation location) {
-        set.add(new RelativeLocation(location.rZ, location.rY, location.rX)); // octant 1
-        set.add(new RelativeLocation(-location.rX, location.rY, location.rZ)); // octant 3
-        set.add(new RelativeLocation(-location.rZ, location.rY, location.rX)); // octant 4
-        set.add(new RelativeLocation(-location.rZ, location.rY, -location.rX)); // octant 5
-        set.add(new RelativeLocation(-location.rX, location.rY, -location.rZ)); // octant 6
-        set.add(new RelativeLocation(location.rX, location.rY, -location.rZ)); // octant 7
-        set.add(new RelativeLocation(location.rZ, location.rY, -location.rX)); // octant 8
+    private static ShapeMask removeBurrs(ShapeMask mask, int radius, Plane plane) {
+
+        if (radius == 0) // a lone center square has no tips to pull in
+            return mask;
+
+        ShapeMask.Builder builder = new ShapeMask.Builder(mask.size() + 4);
+
+        long[] burrs = new long[] { at(plane, 0, radius), at(plane, 0, -radius), at(plane, radius, 0),
+                at(plane, -radius, 0) };
+
+        for (int i = 0; i < mask.size(); i++) {
+            long point = mask.get(i);
+            if (point != burrs[0] && point != burrs[1] && point != burrs[2] && point != burrs[3])
+                builder.addPacked(point);
+        }
+
+        builder.addPacked(at(plane, 0, radius - 1));
+        builder.addPacked(at(plane, 0, -radius + 1));
+        builder.addPacked(at(plane, radius - 1, 0));
+        builder.addPacked(at(plane, -radius + 1, 0));
+
+        return builder.build();
     }
 
     /**
-     * Helper method to clone the blocks in one octant to the other seven in the ZY
+     * Helper method to clone a square in octant 2 to all eight octants of the
      * plane
      *
-     * @param set      - set that will ultimately contain the locations of the seven
-     *                 points
-     * @param location - location in octant 2 to be cloned
+     * @param builder - builder that will ultimately contain the eight points
+     * @param plane   - the plane of the circle
+     * @param u       - independent in-plane coordinate of the square in octant 2
+     * @param v       - dependent in-plane coordinate of the square in octant 2
      */
-    private static void fillOctantsZY(Set<RelativeLocation> set, RelativeLocation location) {
-        set.add(new RelativeLocation(location.rX, location.rZ, location.rY)); // octant 1
-        set.add(new RelativeLocation(location.rX, -location.rY, location.rZ)); // octant 3
-        set.add(new RelativeLocation(location.rX, -location.rZ, location.rY)); // octant 4
-        set.add(new RelativeLocation(location.rX, -location.rZ, -location.rY)); // octant 5
-        set.add(new RelativeLocation(location.rX, -location.rY, -location.rZ)); // octant 6
-        set.add(new RelativeLocation(location.rX, location.rY, -location.rZ)); // octant 7
-        set.add(new RelativeLocation(location.rX, location.rZ, -location.rY)); // octant 8
+    private static void fillOctants(ShapeMask.Builder builder, Plane plane, int u, int v) {
+        builder.addPacked(at(plane, u, v)); // octant 2
+        builder.addPacked(at(plane, v, u)); // octant 1
+        builder.addPacked(at(plane, -u, v)); // octant 3
+        builder.addPacked(at(plane, -v, u)); // octant 4
+        builder.addPacked(at(plane, -v, -u)); // octant 5
+        builder.addPacked(at(plane, -u, -v)); // octant 6
+        builder.addPacked(at(plane, u, -v)); // octant 7
+        builder.addPacked(at(plane, v, -u)); // octant 8
     }
 
     /**
-     * Helper method to clone the blocks in one octant to the other seven in the XY
-     * plane
+     * Maps in-plane coordinates to a packed offset; the axis without a component
+     * in the plane is always 0
      *
-     * @param set      - set that will ultimately contain the locations of the seven
-     *                 points
-     * @param location - location in octant 2 to be cloned
      */
-    private static void fillOctantsXY(Set<RelativeLocation> set, RelativeLocation location) {
-        set.add(new RelativeLocation(location.rY, location.rX, location.rZ)); // octant 1
-        set.add(new RelativeLocation(-location.rX, location.rY, location.rZ)); // octant 3
-        set.add(new RelativeLocation(-location.rY, location.rX, location.rZ)); // octant 4
-        set.add(new RelativeLocation(-location.rY, -location.rX, location.rZ)); // octant 5
-        set.add(new RelativeLocation(-location.rX, -location.rY, location.rZ)); // octant 6
-        set.add(new RelativeLocation(location.rX, -location.rY, location.rZ)); // octant 7
-        set.add(new RelativeLocation(location.rY, -location.rX, location.rZ)); // octant 8
+    static long at(Plane plane, int u, int v) {
+        switch (plane) {
+            case XY:
+                return ShapeMask.pack(u, v, 0);
+            case ZY:
+                return ShapeMask.pack(0, v, u);
+            case XZ:
+            default:
+                return ShapeMask.pack(u, 0, v);
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+/**
+ * Integer floor square root, used by the generators in place of a lookup
+ * table.
+ *
+ * For this application the "square root" of a non-perfect square is the square
+ * root of the greatest perfect square below it, i.e. the "square root" of 20 is
+ * 4.
+ *
+ */
+public final class IntSqrt {
+
+    private static final long MAX_LONG_ROOT = 3037000499L; // floor(sqrt(Long.MAX_VALUE))
+
+    private IntSqrt() {
+    }
+
+    /**
+     * Returns the greatest integer whose square does not exceed n.
+     *
+     * A double holds every int exactly and Math.sqrt is correctly rounded, so
+     * the truncated result is exact for the whole non-negative int range.
+     *
+     * @param n - a non-negative integer
+     * @return floor(sqrt(n))
+     * @throws IllegalArgumentException if n is negative
+     */
+    public static int floor(int n) {
+
+        if (n < 0)
+            throw new IllegalArgumentException("Cannot take the square root of " + n);
+
+        return (int) Math.sqrt(n);
+    }
+
+    /**
+     * Returns the greatest integer whose square does not exceed n.
+     *
+     * Above 2^53 a double no longer holds every long, so the result of
+     * Math.sqrt is nudged until it is exact.
+     *
+     * @param n - a non-negative integer
+     * @return floor(sqrt(n))
+     * @throws IllegalArgumentException if n is negative
+     */
+    public static long floor(long n) {
+
+        if (n < 0)
+            throw new IllegalArgumentException("Cannot take the square root of " + n);
+
+        long root = Math.min((long) Math.sqrt(n), MAX_LONG_ROOT); // squares up to here cannot overflow
+        while (root * root > n)
+            root--;
+        while (root < MAX_LONG_ROOT && (root + 1) * (root + 1) <= n)
+            root++;
+
+        return root;
+    }
+
+}
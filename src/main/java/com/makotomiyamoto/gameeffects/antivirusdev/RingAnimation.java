@@ -0,0 +1,145 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator.Plane;
+
+/**
+ * A ring of fixed thickness that expands or contracts by one radius per frame,
+ * stored as the changes between consecutive frames rather than as whole rings.
+ *
+ * Frame 0 adds the whole first ring. Every later frame adds the squares the
+ * new ring has that the previous one did not and removes the squares it lost,
+ * so drawing a frame costs as much as the ring changes rather than the size of
+ * the ring. The change between two radii is the same whichever way the ring
+ * moves, with added and removed swapped, so both directions share the same
+ * cached deltas.
+ *
+ * All deltas are generated when the animation is created, so create it off
+ * the main thread if the range is large.
+ *
+ */
+public final class RingAnimation {
+
+    private final int fromRadius, toRadius, thickness;
+
+    private final Plane plane;
+
+    private final ShapeMask[] added, removed;
+
+    /**
+     * @param fromRadius - the outer radius of the first frame
+     * @param toRadius   - the outer radius of the last frame; smaller than
+     *                   fromRadius for a contracting ring
+     * @param thickness  - how many radii inward each ring is thick
+     * @param plane      - which plane to animate the ring on
+     * @throws IllegalArgumentException if plane is null, thickness is less than
+     *                                  one, or either radius is less than zero
+     *                                  or greater than 46340
+     */
+    public RingAnimation(int fromRadius, int toRadius, int thickness, Plane plane) {
+
+        if (fromRadius < 0 || fromRadius > CircleGenerator.MAX_RADIUS || toRadius < 0
+                || toRadius > CircleGenerator.MAX_RADIUS || thickness < 1 || plane == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        this.fromRadius = fromRadius;
+        this.toRadius = toRadius;
+        this.thickness = thickness;
+        this.plane = plane;
+
+        int frames = Math.abs(toRadius - fromRadius) + 1;
+        int step = toRadius >= fromRadius ? 1 : -1;
+
+        added = new ShapeMask[frames];
+        removed = new ShapeMask[frames];
+
+        added[0] = generateRingMask(fromRadius, thickness, plane);
+        removed[0] = ShapeMask.EMPTY;
+
+        for (int frame = 1; frame < frames; frame++) {
+            int larger = Math.max(getRadius(frame), getRadius(frame) - step); // the step between the radii
+            // larger - 1 and larger
+            ShapeMask growth = generateGrowthMask(larger, thickness, plane);
+            ShapeMask shrink = generateShrinkMask(larger, thickness, plane);
+            added[frame] = step > 0 ? growth : shrink;
+            removed[frame] = step > 0 ? shrink : growth;
+        }
+    }
+
+    /**
+     * Generates a ring centered at (0,0,0): the annulus from radius - thickness
+     * + 1 up to radius. Uses cached results to improve efficiency
+     *
+     * @param radius    - the outer radius of the ring
+     * @param thickness - how many radii inward the ring is thick
+     * @param plane     - which plane to generate the ring on
+     * @return a mask of the ring's offsets
+     */
+    public static ShapeMask generateRingMask(int radius, int thickness, Plane plane) {
+        return CircleGenerator.generateAnnulusMask(Math.max(radius - thickness + 1, 0), radius, plane);
+    }
+
+    /**
+     * @return the squares a ring gains when its radius grows to this radius
+     */
+    private static ShapeMask generateGrowthMask(int radius, int thickness, Plane plane) {
+        return CircleGenerator.getCache().get(new ShapeKey(ShapeKey.Shape.RING_GROWTH, plane, radius, thickness, 0),
+                () -> ShapeMask.difference(generateRingMask(radius, thickness, plane),
+                        generateRingMask(radius - 1, thickness, plane)));
+    }
+
+    /**
+     * @return the squares a ring loses when its radius grows to this radius
+     */
+    private static ShapeMask generateShrinkMask(int radius, int thickness, Plane plane) {
+        return CircleGenerator.getCache().get(new ShapeKey(ShapeKey.Shape.RING_SHRINK, plane, radius, thickness, 0),
+                () -> ShapeMask.difference(generateRingMask(radius - 1, thickness, plane),
+                        generateRingMask(radius, thickness, plane)));
+    }
+
+    /**
+     * @return the number of frames, one per radius from fromRadius to toRadius
+     */
+    public int getFrameCount() {
+        return added.length;
+    }
+
+    /**
+     * @param frame - between 0 and getFrameCount() - 1
+     * @return the outer radius of the ring in that frame
+     */
+    public int getRadius(int frame) {
+        return toRadius >= fromRadius ? fromRadius + frame : fromRadius - frame;
+    }
+
+    /**
+     * @param frame - between 0 and getFrameCount() - 1
+     * @return the squares that frame adds to the previous frame's ring
+     */
+    public ShapeMask getAdded(int frame) {
+        return added[frame];
+    }
+
+    /**
+     * @param frame - between 0 and getFrameCount() - 1
+     * @return the squares of the previous frame's ring that frame removes
+     */
+    public ShapeMask getRemoved(int frame) {
+        return removed[frame];
+    }
+
+    /**
+     * @return the whole ring shown by the last frame
+     */
+    public ShapeMask getLastFrame() {
+        return generateRingMask(toRadius, thickness, plane);
+    }
+
+    public int getThickness() {
+        return thickness;
+    }
+
+    public Plane getPlane() {
+        return plane;
+    }
+
+}
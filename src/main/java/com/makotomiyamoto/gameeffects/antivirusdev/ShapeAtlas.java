@@ -0,0 +1,213 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator.Plane;
+
+/**
+ * A read-only file of precomputed shapes, memory-mapped so that loading it
+ * generates nothing. Each lookup copies the shape to the heap, allocating 8
+ * bytes per point.
+ *
+ * The file starts with a header (magic, version, entry count) followed by an
+ * index with one fixed-size entry per shape: shape, plane, flags, radius,
+ * extent, point count and the offset of its points. The points of every shape
+ * follow as the packed, sorted longs a ShapeMask holds, big-endian, so
+ * looking one up is a single bulk copy out of the mapped file. Shapes and
+ * planes are stored by ordinal, so the version must change whenever either
+ * enum does.
+ *
+ * Looked up shapes are copied rather than read from the mapping, since masks
+ * backed by a buffer made every read in the hot loops a bounds-checked,
+ * byte-swapping buffer get. A copy takes as much heap as a generated shape,
+ * and ShapeCache keeps it within max-points. ShapeAtlasBenchmark times the
+ * copy, CircleGeneratorBenchmark the generation it saves.
+ *
+ */
+public final class ShapeAtlas {
+
+    private static final int MAGIC = 0x47454131; // "GEA1"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    private static final Plane[] PLANES = Plane.values();
+
+    private static final ShapeKey.Shape[] SHAPES = ShapeKey.Shape.values();
+
+    public static final ShapeAtlas EMPTY = new ShapeAtlas(Collections.emptyMap());
+
+    private final Map<ShapeKey, LongBuffer> points; // views of the mapped file
+
+    private ShapeAtlas(Map<ShapeKey, LongBuffer> points) {
+        this.points = points;
+    }
+
+    /**
+     * Maps an atlas file. On most systems the file may be replaced afterwards and
+     * the mapping keeps reading the contents it was opened with; Windows refuses
+     * to replace a file while it is mapped, see {@link #write(File, Map)}.
+     *
+     * @param file - the atlas file
+     * @return the shapes in the file
+     * @throws IOException if the file cannot be read or is not a valid atlas
+     */
+    public static ShapeAtlas load(File file) throws IOException {
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is larger than 2 GB");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException(file + " is not a version " + VERSION + " shape atlas");
+
+        int count = buffer.getInt(8);
+        if (count < 0 || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > buffer.capacity())
+            throw new IOException(file + " has a truncated index");
+
+        HashMap<ShapeKey, LongBuffer> points = new HashMap<>(count * 2);
+
+        for (int i = 0; i < count; i++) {
+
+            int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            int shape = buffer.get(entry), plane = buffer.get(entry + 1);
+            int flags = buffer.getShort(entry + 2);
+            int radius = buffer.getInt(entry + 4), extent = buffer.getInt(entry + 8);
+            int size = buffer.getInt(entry + 12);
+            long offset = buffer.getLong(entry + 16);
+
+            if (shape < 0 || shape >= SHAPES.length || plane < -1 || plane >= PLANES.length || size < 0
+                    || offset < HEADER_SIZE || offset + 8L * size > buffer.capacity())
+                throw new IOException(file + " has a corrupt index entry at " + entry);
+
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset);
+            view.limit((int) offset + 8 * size);
+
+            points.put(new ShapeKey(SHAPES[shape], plane < 0 ? null : PLANES[plane], radius, extent, flags),
+                    view.slice().asLongBuffer());
+        }
+
+        return new ShapeAtlas(points);
+    }
+
+    /**
+     * Writes shapes to an atlas file. The atlas is written next to the file,
+     * forced to disk and then moved over it, so a file that is currently mapped
+     * is never modified and a crash never leaves half an atlas behind.
+     *
+     * A mapping is only released once its buffers are garbage collected, and
+     * Windows does not allow replacing a file that is still mapped. There the
+     * move fails while this JVM still maps the old file, e.g. one loaded at
+     * startup, and the atlas is left at the temporary file next to it.
+     *
+     * @param file  - the atlas file
+     * @param masks - the shapes to write
+     * @throws IOException if the file cannot be written or replaced
+     */
+    public static void write(File file, Map<ShapeKey, ShapeMask> masks) throws IOException {
+
+        File temporary = new File(file.getPath() + ".tmp");
+        long offset = HEADER_SIZE + (long) masks.size() * INDEX_ENTRY_SIZE;
+
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer index = ByteBuffer.allocate((int) offset);
+            index.putInt(MAGIC);
+            index.putInt(VERSION);
+            index.putInt(masks.size());
+            index.putInt(0);
+
+            for (Map.Entry<ShapeKey, ShapeMask> entry : masks.entrySet()) {
+                ShapeKey key = entry.getKey();
+                index.put((byte) key.getShape().ordinal());
+                index.put((byte) (key.getPlane() == null ? -1 : key.getPlane().ordinal()));
+                index.putShort((short) key.getFlags());
+                index.putInt(key.getRadius());
+                index.putInt(key.getExtent());
+                index.putInt(entry.getValue().size());
+                index.putLong(offset);
+                offset += 8L * entry.getValue().size();
+            }
+
+            index.flip();
+            while (index.hasRemaining())
+                channel.write(index);
+
+            for (ShapeMask mask : masks.values()) {
+                ByteBuffer points = ByteBuffer.allocate(8 * mask.size());
+                mask.copyTo(points.asLongBuffer());
+                while (points.hasRemaining())
+                    channel.write(points);
+            }
+
+            channel.force(true); // the move must not become durable before the contents
+        }
+
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copies a shape out of the mapped file, so each call allocates; keep the
+     * result, as ShapeCache does
+     *
+     * @param key - the shape to look up
+     * @return the shape, or null if the atlas does not have it
+     */
+    public ShapeMask get(ShapeKey key) {
+
+        LongBuffer shape = points.get(key);
+        return shape == null ? null : ShapeMask.copyOf(shape);
+    }
+
+    /**
+     * @param key - the shape to look up
+     * @return the number of points of the shape, or -1 if the atlas does not
+     *         have it
+     */
+    public int getSize(ShapeKey key) {
+
+        LongBuffer shape = points.get(key);
+        return shape == null ? -1 : shape.remaining();
+    }
+
+    /**
+     * @return the keys of every shape in the atlas; not to be modified
+     */
+    public Set<ShapeKey> getKeys() {
+        return points.keySet();
+    }
+
+    /**
+     * @return the number of shapes in the atlas
+     */
+    public int size() {
+        return points.size();
+    }
+
+}
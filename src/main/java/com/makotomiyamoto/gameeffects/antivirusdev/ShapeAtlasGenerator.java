@@ -0,0 +1,56 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator.Plane;
+
+/**
+ * Builds a shape atlas offline, so a server can map shapes at startup instead
+ * of generating them on first use.
+ *
+ * Usage, with the plugin jar and the Spigot API on the classpath:
+ * {@code ShapeAtlasGenerator <output file> <max radius> [max ring thickness]}
+ *
+ * Every circle variant on every plane is generated for radii from 1 to the
+ * max radius, along with every annulus up to the given thickness.
+ *
+ */
+public final class ShapeAtlasGenerator {
+
+    private ShapeAtlasGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+            System.err.println("Usage: ShapeAtlasGenerator <output file> <max radius> [max ring thickness]");
+            System.exit(1);
+        }
+
+        File output = new File(args[0]);
+        int maxRadius = Integer.parseInt(args[1]);
+        int maxThickness = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        if (maxRadius < 0 || maxRadius > CircleGenerator.MAX_RADIUS || maxThickness < 0)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        ShapeCache cache = CircleGenerator.getCache();
+        cache.setMaxWeight(Long.MAX_VALUE); // keep everything generated so it can be written out
+
+        for (Plane plane : Plane.values()) {
+            for (int radius = 1; radius <= maxRadius; radius++) {
+
+                for (int variant = 0; variant < 4; variant++)
+                    CircleGenerator.generateCircleMask(radius, plane, (variant & 1) != 0, (variant & 2) != 0);
+
+                for (int inner = Math.max(radius - maxThickness + 1, 0); inner <= radius && maxThickness > 0; inner++)
+                    CircleGenerator.generateAnnulusMask(inner, radius, plane);
+            }
+        }
+
+        ShapeAtlas.write(output, cache.snapshot());
+        System.out.println("Wrote " + cache.size() + " shapes (" + cache.getWeight() + " points) to " + output);
+    }
+
+}
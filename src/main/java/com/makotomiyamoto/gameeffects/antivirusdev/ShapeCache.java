@@ -0,0 +1,347 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import com.makotomiyamoto.gameeffects.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe cache of generated shapes, bounded by the total number of
+ * points it holds.
+ *
+ * Entries are evicted least recently used first once the bound is exceeded.
+ * Concurrent requests for a shape that is not cached yet wait on a single
+ * computation instead of each generating it. Shapes in the cache's
+ * {@link ShapeAtlas} are copied out of it instead of being generated, and are
+ * then cached and evicted like any other.
+ *
+ * Hits, misses, evictions and the time spent generating shapes are counted
+ * without locking, and the number of shapes and points cached are mirrored
+ * into atomics as entries come and go, so all of them can be read at any time
+ * without contending with lookups.
+ *
+ */
+public final class ShapeCache {
+
+    private static final int[] RADIUS_BUCKETS = { 16, 64, 256, 1024 }; // exclusive upper bounds; larger radii
+    // share one more bucket
+
+    private final LinkedHashMap<ShapeKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private volatile ShapeAtlas atlas = ShapeAtlas.EMPTY;
+
+    private final LongAdder hits = new LongAdder(), atlasHits = new LongAdder(), misses = new LongAdder(),
+            evictions = new LongAdder();
+
+    private final Histogram[] generationNanos = new Histogram[RADIUS_BUCKETS.length + 1];
+
+    private long maxWeight;
+
+    private final AtomicLong weight = new AtomicLong(), shapes = new AtomicLong(); // only changed while holding
+    // the lock, but read without it
+
+    /**
+     * @param maxWeight - the maximum number of points to keep cached across all
+     *                  shapes
+     */
+    public ShapeCache(long maxWeight) {
+        for (int i = 0; i < generationNanos.length; i++)
+            generationNanos[i] = new Histogram();
+        setMaxWeight(maxWeight);
+    }
+
+    /**
+     * Returns the cached shape for a key, copying it from the atlas or
+     * generating it with the loader if it is not cached. If another thread is
+     * already loading the same shape, this waits for its result.
+     *
+     * @param key    - the shape to look up
+     * @param loader - generates the shape on a miss
+     * @return the cached or freshly generated shape
+     */
+    public ShapeMask get(ShapeKey key, Supplier<ShapeMask> loader) {
+
+        Entry entry;
+        boolean owner = false;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                shapes.incrementAndGet();
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            hits.increment(); // waiting on another thread's generation still saves generating it again
+            return await(entry);
+        }
+
+        long start = System.nanoTime();
+
+        ShapeMask mask, precomputed = null;
+        try {
+            precomputed = atlas.get(key);
+            mask = precomputed != null ? precomputed : loader.get();
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                if (entries.remove(key, entry))
+                    shapes.decrementAndGet();
+            }
+            entry.future.completeExceptionally(e);
+            throw e;
+        }
+
+        if (precomputed != null) {
+            atlasHits.increment();
+        } else {
+            misses.increment();
+            generationNanos[getRadiusBucket(key.getRadius())].record(System.nanoTime() - start);
+        }
+
+        synchronized (this) {
+            if (entries.get(key) == entry) {
+                entry.weight = mask.size();
+                weight.addAndGet(entry.weight);
+                evict();
+            }
+        }
+        entry.future.complete(mask);
+
+        return mask;
+    }
+
+    /**
+     * Changes the point bound, evicting entries right away if the cache is now
+     * over it
+     *
+     * @param maxWeight - the maximum number of points to keep cached
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+
+        if (maxWeight < 0)
+            throw new IllegalArgumentException("Cache weight cannot be negative!");
+
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the number of points currently cached, read without locking
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return the number of shapes currently cached or being generated, read
+     *         without locking
+     */
+    public int size() {
+        return (int) shapes.get();
+    }
+
+    /**
+     * Replaces the atlas consulted before generating shapes. Shapes already
+     * cached stay cached.
+     *
+     * @param atlas - the precomputed shapes, or ShapeAtlas.EMPTY for none
+     */
+    public void setAtlas(ShapeAtlas atlas) {
+
+        if (atlas == null)
+            throw new IllegalArgumentException("Atlas cannot be null!");
+
+        this.atlas = atlas;
+    }
+
+    public ShapeAtlas getAtlas() {
+        return atlas;
+    }
+
+    /**
+     * Collects every shape the cache can serve without generating it, e.g. to
+     * write a new atlas
+     *
+     * @return the shapes in the atlas and the completed cache entries
+     */
+    public Map<ShapeKey, ShapeMask> snapshot() {
+        return snapshot(Long.MAX_VALUE);
+    }
+
+    /**
+     * Collects the shapes the cache can serve without generating it, up to a
+     * number of points: the most recently used cache entries first, then the
+     * shapes in the atlas. Bounding it keeps an atlas that is rewritten from
+     * its own snapshot on every run from growing without end.
+     *
+     * @param maxWeight - the maximum number of points to collect
+     * @return the shapes collected
+     */
+    public Map<ShapeKey, ShapeMask> snapshot(long maxWeight) {
+
+        ArrayList<ShapeKey> keys = new ArrayList<>();
+        ArrayList<ShapeMask> masks = new ArrayList<>();
+
+        synchronized (this) {
+            for (Map.Entry<ShapeKey, Entry> entry : entries.entrySet()) {
+                ShapeMask mask = entry.getValue().future.getNow(null); // skip shapes still being generated
+                if (mask != null) {
+                    keys.add(entry.getKey());
+                    masks.add(mask);
+                }
+            }
+        }
+
+        LinkedHashMap<ShapeKey, ShapeMask> collected = new LinkedHashMap<>();
+        long collectedWeight = 0;
+
+        for (int i = keys.size() - 1; i >= 0; i--) { // entries are kept least recently used first
+            if (collectedWeight + masks.get(i).size() <= maxWeight) {
+                collected.put(keys.get(i), masks.get(i));
+                collectedWeight += masks.get(i).size();
+            }
+        }
+
+        ShapeAtlas atlas = this.atlas;
+        for (ShapeKey key : atlas.getKeys()) {
+            int size = atlas.getSize(key);
+            if (collectedWeight + size <= maxWeight && !collected.containsKey(key)) {
+                collected.put(key, atlas.get(key));
+                collectedWeight += size;
+            }
+        }
+
+        return collected;
+    }
+
+    /**
+     * Drops every completed entry. Shapes still being generated finish normally
+     * and are cached.
+     */
+    public synchronized void invalidateAll() {
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.weight >= 0) {
+                weight.addAndGet(-entry.weight);
+                shapes.decrementAndGet();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return how many lookups found their shape already cached or being
+     *         generated by another thread
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return how many lookups copied their shape from the atlas instead of
+     *         generating it
+     */
+    public long getAtlasHits() {
+        return atlasHits.sum();
+    }
+
+    /**
+     * @return how many lookups had to generate their shape
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return how many shapes were evicted to stay under the point bound
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of radius buckets generation time is recorded in
+     */
+    public int getRadiusBucketCount() {
+        return generationNanos.length;
+    }
+
+    /**
+     * @param bucket - between 0 and getRadiusBucketCount() - 1
+     * @return the range of radii in the bucket, e.g. "16-63"
+     */
+    public String getRadiusBucketName(int bucket) {
+
+        int low = bucket == 0 ? 0 : RADIUS_BUCKETS[bucket - 1];
+        return bucket == RADIUS_BUCKETS.length ? low + "+" : low + "-" + (RADIUS_BUCKETS[bucket] - 1);
+    }
+
+    /**
+     * @param bucket - between 0 and getRadiusBucketCount() - 1
+     * @return how long generating shapes with a radius in the bucket took, in
+     *         nanoseconds, including shapes generated along the way
+     */
+    public Histogram getGenerationNanos(int bucket) {
+        return generationNanos[bucket];
+    }
+
+    private static int getRadiusBucket(int radius) {
+
+        int bucket = 0;
+        while (bucket < RADIUS_BUCKETS.length && radius >= RADIUS_BUCKETS[bucket])
+            bucket++;
+
+        return bucket;
+    }
+
+    private void evict() {
+
+        Iterator<Map.Entry<ShapeKey, Entry>> iterator = entries.entrySet().iterator();
+        while (weight.get() > maxWeight && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.weight >= 0) { // pending entries have no weight yet and cannot be evicted
+                weight.addAndGet(-entry.weight);
+                shapes.decrementAndGet();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private static ShapeMask await(Entry entry) {
+        try {
+            return entry.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static final class Entry {
+
+        final CompletableFuture<ShapeMask> future = new CompletableFuture<>();
+
+        long weight = -1; // -1 while the shape is being generated
+
+    }
+
+}
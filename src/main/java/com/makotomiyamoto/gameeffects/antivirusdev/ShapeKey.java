@@ -0,0 +1,98 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import java.util.Objects;
+
+/**
+ * Identifies one cached shape: what kind of shape it is, the plane it lies
+ * on, its radius, a second dimension for shapes that need one, and the flags it
+ * was generated with.
+ *
+ */
+public final class ShapeKey {
+
+    /**
+     * Flag for shapes whose 'enclosed' squares have been dropped; for solids this
+     * makes them hollow
+     */
+    public static final int IGNORE_ENCLOSED = 1;
+
+    /**
+     * Flag for shapes whose burrs at the tips of the axes have been pulled in
+     */
+    public static final int NO_BURRS = 1 << 1;
+
+    /**
+     * Enumeration of the kinds of shape the generators can produce. RING_GROWTH
+     * and RING_SHRINK are the squares a ring of some thickness gains and loses
+     * when its radius grows by one. New kinds go at the end, since atlases
+     * store shapes by ordinal.
+     *
+     */
+    public static enum Shape {
+        CIRCLE, ANNULUS, SPHERE, CYLINDER, CONE, RING_GROWTH, RING_SHRINK
+    }
+
+    private final Shape shape;
+
+    private final CircleGenerator.Plane plane;
+
+    private final int radius;
+
+    private final int extent; // the inner radius of an annulus, the height of a cylinder or cone, or the
+    // thickness of a ring, 0 for shapes without a second dimension
+
+    private final int flags;
+
+    public ShapeKey(Shape shape, CircleGenerator.Plane plane, int radius, int extent, int flags) {
+        this.shape = shape;
+        this.plane = plane;
+        this.radius = radius;
+        this.extent = extent;
+        this.flags = flags;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public CircleGenerator.Plane getPlane() {
+        return plane;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public int getExtent() {
+        return extent;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ShapeKey))
+            return false;
+
+        ShapeKey key = (ShapeKey) o;
+        return key.shape == shape && key.plane == plane && key.radius == radius && key.extent == extent
+                && key.flags == flags;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(shape, plane, radius, extent, flags);
+    }
+
+    @Override
+    public String toString() {
+        return shape + "(" + plane + ", r=" + radius + ", extent=" + extent + ", flags=" + flags + ")";
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.bukkit.World;
+
+/**
+ * An immutable set of block offsets relative to the center of a shape.
+ *
+ * Each offset is packed into a single long (21 signed bits per axis) and the
+ * offsets are kept sorted and distinct in a primitive array, so a cached shape
+ * costs 8 bytes per point and membership tests are a binary search. Masks in a
+ * {@link ShapeAtlas} are copied out of the mapped file into an array too, so
+ * every read in a hot loop is a plain array access.
+ *
+ */
+public final class ShapeMask {
+
+    private static final int BITS = 21;
+
+    private static final long MASK = (1L << BITS) - 1;
+
+    private static final int SIGN_SHIFT = 32 - BITS;
+
+    /**
+     * The largest magnitude any axis of an offset may have.
+     */
+    public static final int MAX_OFFSET = (1 << (BITS - 1)) - 1;
+
+    public static final ShapeMask EMPTY = new ShapeMask(new long[0]);
+
+    private final long[] points;
+
+    private ShapeMask(long[] points) {
+        this.points = points;
+    }
+
+    /**
+     * Copies offsets that are already packed, sorted and distinct
+     *
+     * @param points - the offsets between the buffer's position and limit,
+     *               which are left as they are
+     */
+    static ShapeMask copyOf(LongBuffer points) {
+
+        long[] copy = new long[points.remaining()];
+        points.duplicate().get(copy);
+        return copy.length == 0 ? EMPTY : new ShapeMask(copy);
+    }
+
+    /**
+     * Packs a relative offset into a long
+     *
+     * @param x - offset on the x axis
+     * @param y - offset on the y axis
+     * @param z - offset on the z axis
+     * @return the packed offset
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & MASK) << (2 * BITS)) | ((y & MASK) << BITS) | (z & MASK);
+    }
+
+    public static int unpackX(long packed) {
+        return ((int) (packed >>> (2 * BITS))) << SIGN_SHIFT >> SIGN_SHIFT;
+    }
+
+    public static int unpackY(long packed) {
+        return ((int) (packed >>> BITS)) << SIGN_SHIFT >> SIGN_SHIFT;
+    }
+
+    public static int unpackZ(long packed) {
+        return ((int) packed) << SIGN_SHIFT >> SIGN_SHIFT;
+    }
+
+    /**
+     * Collects the offsets of one mask that are not in another, in a single
+     * merge of the two sorted masks
+     *
+     * @param mask    - the offsets to keep
+     * @param removed - the offsets to leave out
+     * @return the offsets of mask that are not in removed
+     */
+    public static ShapeMask difference(ShapeMask mask, ShapeMask removed) {
+
+        long[] kept = new long[mask.size()];
+        int count = 0, j = 0;
+
+        for (int i = 0; i < mask.size(); i++) {
+            long point = mask.points[i];
+            while (j < removed.size() && removed.points[j] < point)
+                j++;
+            if (j == removed.size() || removed.points[j] != point)
+                kept[count++] = point;
+        }
+
+        if (count == 0)
+            return EMPTY;
+
+        return new ShapeMask(count == kept.length ? kept : Arrays.copyOf(kept, count));
+    }
+
+    /**
+     * Collects the offsets that are in either of two masks, in a single merge of
+     * the two sorted masks
+     *
+     * @param first  - some of the offsets
+     * @param second - the other offsets
+     * @return the offsets of both masks, without duplicates
+     */
+    public static ShapeMask union(ShapeMask first, ShapeMask second) {
+
+        if (second.size() == 0)
+            return first;
+        if (first.size() == 0)
+            return second;
+
+        long[] merged = new long[first.size() + second.size()];
+        int count = 0, i = 0, j = 0;
+
+        while (i < first.size() && j < second.size()) {
+            long a = first.points[i], b = second.points[j];
+            if (a <= b)
+                i++;
+            if (b <= a)
+                j++;
+            merged[count++] = Math.min(a, b);
+        }
+        while (i < first.size())
+            merged[count++] = first.points[i++];
+        while (j < second.size())
+            merged[count++] = second.points[j++];
+
+        return new ShapeMask(count == merged.length ? merged : Arrays.copyOf(merged, count));
+    }
+
+    /**
+     * @return the number of offsets in this mask
+     */
+    public int size() {
+        return points.length;
+    }
+
+    /**
+     * @param index - position in the mask, between 0 and size() - 1
+     * @return the packed offset at that position
+     */
+    public long get(int index) {
+        return points[index];
+    }
+
+    public int getX(int index) {
+        return unpackX(points[index]);
+    }
+
+    public int getY(int index) {
+        return unpackY(points[index]);
+    }
+
+    public int getZ(int index) {
+        return unpackZ(points[index]);
+    }
+
+    public boolean contains(int x, int y, int z) {
+
+        long key = pack(x, y, z);
+        int low = 0, high = points.length - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long point = points[mid];
+            if (point < key)
+                low = mid + 1;
+            else if (point > key)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Visits every offset in this mask translated to absolute block coordinates
+     *
+     * @param world   - the world passed on to the visitor
+     * @param centerX - block x coordinate of the shape's center
+     * @param centerY - block y coordinate of the shape's center
+     * @param centerZ - block z coordinate of the shape's center
+     * @param visitor - receives each block
+     */
+    public void forEach(World world, int centerX, int centerY, int centerZ, BlockVisitor visitor) {
+        for (long point : points) {
+            visitor.visit(world, centerX + unpackX(point), centerY + unpackY(point), centerZ + unpackZ(point));
+        }
+    }
+
+    /**
+     * Copies the offsets into a buffer at its current position
+     */
+    void copyTo(LongBuffer destination) {
+        destination.put(points);
+    }
+
+    /**
+     * Collects offsets into a new mask. Offsets may be added in any order and
+     * more than once; build() sorts them and drops duplicates.
+     *
+     */
+    public static final class Builder {
+
+        private long[] points;
+
+        private int size;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int expectedSize) {
+            this.points = new long[Math.max(expectedSize, 1)];
+        }
+
+        public Builder add(int x, int y, int z) {
+            return addPacked(pack(x, y, z));
+        }
+
+        public Builder addPacked(long packed) {
+
+            if (size == points.length)
+                points = Arrays.copyOf(points, size * 2);
+
+            points[size++] = packed;
+            return this;
+        }
+
+        public Builder addAll(ShapeMask mask) {
+
+            int count = mask.size();
+            if (size + count > points.length)
+                points = Arrays.copyOf(points, Math.max(size * 2, size + count));
+
+            System.arraycopy(mask.points, 0, points, size, count);
+            size += count;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public ShapeMask build() {
+
+            if (size == 0)
+                return EMPTY;
+
+            long[] sorted = Arrays.copyOf(points, size);
+            Arrays.sort(sorted);
+
+            int distinct = 1;
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i] != sorted[distinct - 1])
+                    sorted[distinct++] = sorted[i];
+            }
+
+            return new ShapeMask(distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct));
+        }
+
+    }
+
+}
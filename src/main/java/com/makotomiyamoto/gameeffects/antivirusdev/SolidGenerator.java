@@ -0,0 +1,201 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+/**
+ * Generates rasterized spheres, hollow shells, cylinders and cones, built on
+ * the same symmetry tricks, masks and cache as {@link CircleGenerator}.
+ *
+ * Spheres are computed only in the 1/48 of space where 0 <= x <= y <= z and
+ * cloned into the rest by every permutation and reflection of the axes.
+ * Cylinders and cones only have the symmetry of their base circle, so they are
+ * stacked from cached octant-mirrored discs and rings instead.
+ *
+ */
+public final class SolidGenerator {
+
+    // every ordering of the three axes
+    private static final int[][] PERMUTATIONS = { { 0, 1, 2 }, { 0, 2, 1 }, { 1, 0, 2 }, { 1, 2, 0 }, { 2, 0, 1 },
+            { 2, 1, 0 } };
+
+    private static final int MAX_SOLID_POINTS = 1 << 24; // initial builder capacity is capped here and grows as needed
+
+    private SolidGenerator() {
+    }
+
+    /**
+     * Generates the offsets of a rasterized sphere centered at (0,0,0), made of
+     * every block whose center lies within the radius. Uses cached results to
+     * improve efficiency
+     *
+     * @param radius - the radius of the sphere
+     * @param hollow - whether to drop 'enclosed' blocks, or those whose six
+     *               neighbors are all in the sphere, leaving a one block thick
+     *               shell
+     * @return a mask of the sphere's offsets
+     * @throws IllegalArgumentException if radius is less than zero or greater than
+     *                                  46340
+     */
+    public static ShapeMask generateSphereMask(int radius, boolean hollow) {
+
+        if (radius < 0 || radius > CircleGenerator.MAX_RADIUS)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        return CircleGenerator.getCache().get(
+                new ShapeKey(ShapeKey.Shape.SPHERE, null, radius, 0, hollow ? ShapeKey.IGNORE_ENCLOSED : 0),
+                () -> rasterizeSphere(radius, hollow));
+    }
+
+    /**
+     * Generates the offsets of a rasterized cylinder whose base is centered at
+     * (0,0,0) and which extends along the positive axis normal to the plane.
+     * Uses cached results to improve efficiency
+     *
+     * @param radius - the radius of the cylinder
+     * @param height - how many blocks the cylinder extends along its axis
+     * @param plane  - the plane of the cylinder's base
+     * @param hollow - whether to leave only the wall, made of the base circle with
+     *               its 'enclosed' squares ignored
+     * @return a mask of the cylinder's offsets
+     * @throws IllegalArgumentException if plane is null, radius is less than zero
+     *                                  or greater than 46340, or height is less
+     *                                  than one
+     */
+    public static ShapeMask generateCylinderMask(int radius, int height, CircleGenerator.Plane plane, boolean hollow) {
+
+        if (radius < 0 || radius > CircleGenerator.MAX_RADIUS || height < 1 || height > ShapeMask.MAX_OFFSET
+                || plane == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        return CircleGenerator.getCache().get(
+                new ShapeKey(ShapeKey.Shape.CYLINDER, plane, radius, height, hollow ? ShapeKey.IGNORE_ENCLOSED : 0),
+                () -> {
+                    ShapeMask base = hollow ? CircleGenerator.generateCircleMask(radius, plane, true, true)
+                            : CircleGenerator.generateAnnulusMask(0, radius, plane);
+
+                    ShapeMask.Builder cylinder = new ShapeMask.Builder(capacity((long) base.size() * height));
+                    for (int layer = 0; layer < height; layer++)
+                        addLayer(cylinder, base, plane, layer);
+
+                    return cylinder.build();
+                });
+    }
+
+    /**
+     * Generates the offsets of a rasterized cone whose base is centered at
+     * (0,0,0) and whose tip lies on the positive axis normal to the plane. The
+     * radius shrinks linearly from the base to a single block at the tip. Uses
+     * cached results to improve efficiency
+     *
+     * @param radius - the radius of the cone's base
+     * @param height - how many blocks the cone extends along its axis
+     * @param plane  - the plane of the cone's base
+     * @param hollow - whether to leave only the cone's surface, made of the ring
+     *               between each layer's radius and the next one's
+     * @return a mask of the cone's offsets
+     * @throws IllegalArgumentException if plane is null, radius is less than zero
+     *                                  or greater than 46340, or height is less
+     *                                  than one
+     */
+    public static ShapeMask generateConeMask(int radius, int height, CircleGenerator.Plane plane, boolean hollow) {
+
+        if (radius < 0 || radius > CircleGenerator.MAX_RADIUS || height < 1 || height > ShapeMask.MAX_OFFSET
+                || plane == null)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        return CircleGenerator.getCache().get(
+                new ShapeKey(ShapeKey.Shape.CONE, plane, radius, height, hollow ? ShapeKey.IGNORE_ENCLOSED : 0),
+                () -> {
+                    ShapeMask.Builder cone = new ShapeMask.Builder(
+                            capacity((long) (Math.PI * radius * radius * height / 3) + height));
+
+                    for (int layer = 0; layer < height; layer++) {
+                        int layerRadius = coneRadius(radius, height, layer);
+                        int inner = hollow && layer + 1 < height ? coneRadius(radius, height, layer + 1) : 0;
+
+                        addLayer(cone, CircleGenerator.generateAnnulusMask(inner, layerRadius, plane), plane, layer);
+                    }
+
+                    return cone.build();
+                });
+    }
+
+    private static int coneRadius(int radius, int height, int layer) {
+        return height == 1 ? radius : (int) ((long) radius * (height - 1 - layer) / (height - 1));
+    }
+
+    /**
+     * Walks the 1/48 of the sphere where 0 <= x <= y <= z and clones each block
+     * into the rest of it
+     *
+     */
+    private static ShapeMask rasterizeSphere(int radius, boolean hollow) {
+
+        long radiusSquared = (long) radius * radius;
+
+        ShapeMask.Builder sphere = new ShapeMask.Builder(capacity(hollow ? (long) (4 * Math.PI * radiusSquared) + 1
+                : (long) (4 * Math.PI * radiusSquared * radius / 3) + 1));
+        int[] axes = new int[3];
+
+        for (int x = 0; 3L * x * x <= radiusSquared; x++) {
+            for (int y = x; (long) x * x + 2L * y * y <= radiusSquared; y++) {
+
+                int top = (int) Math.sqrt(radiusSquared - (long) x * x - (long) y * y);
+
+                // on this side of the diagonals the largest step outward is along z,
+                // so a block is enclosed unless it is the top one in its column
+                for (int z = hollow ? top : y; z <= top; z++) {
+                    axes[0] = x;
+                    axes[1] = y;
+                    axes[2] = z;
+                    fillSymmetric(sphere, axes);
+                }
+            }
+        }
+
+        return sphere.build();
+    }
+
+    /**
+     * Adds every distinct permutation and reflection of a block in the 1/48 of
+     * space where 0 <= x <= y <= z
+     *
+     */
+    private static void fillSymmetric(ShapeMask.Builder builder, int[] axes) {
+
+        for (int p = 0; p < PERMUTATIONS.length; p++) {
+
+            int a = axes[PERMUTATIONS[p][0]], b = axes[PERMUTATIONS[p][1]], c = axes[PERMUTATIONS[p][2]];
+
+            boolean repeated = false; // equal axes make some orderings the same block
+            for (int q = 0; q < p && !repeated; q++)
+                repeated = axes[PERMUTATIONS[q][0]] == a && axes[PERMUTATIONS[q][1]] == b
+                        && axes[PERMUTATIONS[q][2]] == c;
+
+            if (repeated)
+                continue;
+
+            for (int sa = a == 0 ? 1 : -1; sa <= 1; sa += 2)
+                for (int sb = b == 0 ? 1 : -1; sb <= 1; sb += 2)
+                    for (int sc = c == 0 ? 1 : -1; sc <= 1; sc += 2)
+                        builder.add(sa * a, sb * b, sc * c);
+        }
+    }
+
+    /**
+     * Adds a plane mask shifted along the axis normal to its plane
+     *
+     */
+    private static void addLayer(ShapeMask.Builder builder, ShapeMask base, CircleGenerator.Plane plane, int layer) {
+
+        int dx = plane == CircleGenerator.Plane.ZY ? layer : 0;
+        int dy = plane == CircleGenerator.Plane.XZ ? layer : 0;
+        int dz = plane == CircleGenerator.Plane.XY ? layer : 0;
+
+        for (int i = 0; i < base.size(); i++)
+            builder.add(base.getX(i) + dx, base.getY(i) + dy, base.getZ(i) + dz);
+    }
+
+    private static int capacity(long expectedSize) {
+        return (int) Math.min(expectedSize, MAX_SOLID_POINTS);
+    }
+
+}
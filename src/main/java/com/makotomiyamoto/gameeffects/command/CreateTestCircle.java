@@ -2,13 +2,14 @@ package com.makotomiyamoto.gameeffects.command;
 
 import com.makotomiyamoto.gameeffects.GameEffects;
 import com.makotomiyamoto.gameeffects.task.DrawTemporaryCircle;
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.util.Locale;
+
 public final class CreateTestCircle implements CommandExecutor {
 
     private GameEffects api;
@@ -21,26 +22,78 @@ public final class CreateTestCircle implements CommandExecutor {
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
 
         if (args.length < 2) {
-            sender.sendMessage("Usage: /CreateTestCircle <int_radius> <int_decrementRadii>");
+            sender.sendMessage("Usage: /CreateTestCircle <int_radius> <int_decrementRadii> [world|ghost] [animated]");
             return false;
         }
 
-        if (args[0].contains("[^0-9]") || args[1].contains("[^0-9]")) {
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(ChatColor.RED + "Only players can draw circles.");
+            return true;
+        }
+
+        int radius, decrementRadii;
+        try {
+            radius = Integer.parseInt(args[0]);
+            decrementRadii = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
             sender.sendMessage(ChatColor.RED + "Arguments must be numerical. Usage:");
-            sender.sendMessage("/CreateTestCircle <int_radius> <int_decrementRadii>");
+            sender.sendMessage("/CreateTestCircle <int_radius> <int_decrementRadii> [world|ghost] [animated]");
+            return false;
+        }
+
+        int maxRadius = api.getMaxEffectRadius();
+        if (radius < 0 || radius > maxRadius || decrementRadii < 0 || decrementRadii > radius) {
+            sender.sendMessage(ChatColor.RED + "The radius must be between 0 and " + maxRadius
+                    + ", and decrementRadii between 0 and the radius.");
             return false;
         }
 
+        DrawTemporaryCircle.Mode mode = DrawTemporaryCircle.Mode.WORLD;
+        boolean animated = false;
+        if (args.length > 2) {
+            try {
+                mode = DrawTemporaryCircle.Mode.valueOf(args[2].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                sender.sendMessage(ChatColor.RED + "Mode must be world or ghost. Usage:");
+                sender.sendMessage("/CreateTestCircle <int_radius> <int_decrementRadii> [world|ghost] [animated]");
+                return false;
+            }
+        }
+        if (args.length > 3) {
+            if (!args[3].equalsIgnoreCase("animated")) {
+                sender.sendMessage(ChatColor.RED + "The last argument may only be animated. Usage:");
+                sender.sendMessage("/CreateTestCircle <int_radius> <int_decrementRadii> [world|ghost] [animated]");
+                return false;
+            }
+            animated = true;
+        }
+
         Player player = (Player) sender;
 
         DrawTemporaryCircle circleTask = new DrawTemporaryCircle(
                 player.getLocation(),
-                Integer.parseInt(args[0]),
-                Integer.parseInt(args[1]),
+                radius,
+                decrementRadii,
+                mode,
+                animated,
                 api
         );
 
-        Bukkit.getScheduler().runTaskAsynchronously(api, circleTask);
+        switch (api.getAdmissionController().submit(player.getUniqueId(), circleTask)) {
+            case DEGRADED:
+                sender.sendMessage(ChatColor.YELLOW + "Too many blocks are changing right now, drawing a thinner circle.");
+                break;
+            case QUEUED:
+                sender.sendMessage(ChatColor.YELLOW + "Too many blocks are changing right now, the circle will be drawn "
+                        + "shortly.");
+                break;
+            case REJECTED:
+                sender.sendMessage(ChatColor.RED + "Too many blocks are changing right now, try a smaller circle or "
+                        + "wait.");
+                break;
+            default:
+                break;
+        }
 
         return true;
 
@@ -0,0 +1,63 @@
+package com.makotomiyamoto.gameeffects.command;
+
+import com.makotomiyamoto.gameeffects.GameEffects;
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public final class GameEffectsCommand implements CommandExecutor {
+
+    private static final List<String> HISTOGRAM_FIELDS = Arrays.asList("count", "mean", "p50", "p99", "max");
+
+    private GameEffects api;
+
+    public GameEffectsCommand(GameEffects api) {
+        this.api = api;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+
+        if (args.length < 1 || !args[0].equalsIgnoreCase("stats")) {
+            sender.sendMessage("Usage: /gameeffects stats");
+            return false;
+        }
+
+        sender.sendMessage(ChatColor.AQUA + "GameEffects stats:");
+
+        // histograms come as one value per field; show each on a single line
+        LinkedHashMap<String, StringBuilder> lines = new LinkedHashMap<>();
+        for (Map.Entry<String, Number> entry : api.getMetrics().snapshot().entrySet()) {
+
+            String name = entry.getKey(), field = null;
+            int dot = name.lastIndexOf('.');
+            if (dot >= 0 && HISTOGRAM_FIELDS.contains(name.substring(dot + 1))) {
+                field = name.substring(dot + 1);
+                name = name.substring(0, dot);
+            }
+
+            StringBuilder line = lines.computeIfAbsent(name, key -> new StringBuilder());
+            if (field != null)
+                line.append(' ').append(field).append('=');
+            line.append(format(entry.getValue()));
+        }
+
+        for (Map.Entry<String, StringBuilder> line : lines.entrySet())
+            sender.sendMessage(ChatColor.GRAY + line.getKey() + ": " + ChatColor.WHITE + line.getValue().toString().trim());
+
+        return true;
+
+    }
+
+    private static String format(Number value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.1f", value.doubleValue()) : value.toString();
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.makotomiyamoto.gameeffects.metrics;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeCache;
+import com.makotomiyamoto.gameeffects.task.AdmissionController;
+import com.makotomiyamoto.gameeffects.task.BlockChangeScheduler;
+import com.makotomiyamoto.gameeffects.task.ChunkSnapshotFilter;
+import com.makotomiyamoto.gameeffects.task.EffectTimeline;
+import com.makotomiyamoto.gameeffects.task.GhostBlockSender;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Reads the counters of every part of the effect pipeline into one flat,
+ * ordered set of named values.
+ *
+ * Every counter is lock-free, so a snapshot can be taken on any thread without
+ * stalling the main thread. Values read while effects run are each current,
+ * but not necessarily consistent with one another.
+ *
+ */
+public final class EffectMetrics {
+
+    private final ShapeCache cache;
+
+    private final BlockChangeScheduler scheduler;
+
+    private final EffectTimeline timeline;
+
+    private final GhostBlockSender ghostBlockSender;
+
+    private final ChunkSnapshotFilter chunkSnapshotFilter;
+
+    private final AdmissionController admissionController;
+
+    public EffectMetrics(ShapeCache cache, BlockChangeScheduler scheduler, EffectTimeline timeline,
+                         GhostBlockSender ghostBlockSender, ChunkSnapshotFilter chunkSnapshotFilter,
+                         AdmissionController admissionController) {
+        this.cache = cache;
+        this.scheduler = scheduler;
+        this.timeline = timeline;
+        this.ghostBlockSender = ghostBlockSender;
+        this.chunkSnapshotFilter = chunkSnapshotFilter;
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * @return every metric by name, in a stable order; values are Longs or
+     *         Doubles
+     */
+    public LinkedHashMap<String, Number> snapshot() {
+
+        LinkedHashMap<String, Number> values = new LinkedHashMap<>();
+
+        values.put("cache.hits", cache.getHits());
+        values.put("cache.atlas-hits", cache.getAtlasHits());
+        values.put("cache.misses", cache.getMisses());
+        values.put("cache.evictions", cache.getEvictions());
+        values.put("cache.shapes", (long) cache.size());
+        values.put("cache.points", cache.getWeight());
+        for (int bucket = 0; bucket < cache.getRadiusBucketCount(); bucket++)
+            putHistogram(values, "cache.generation-nanos.r" + cache.getRadiusBucketName(bucket),
+                    cache.getGenerationNanos(bucket));
+
+        values.put("effects.active", (long) timeline.getActiveEffects());
+        values.put("effects.started", timeline.getStartedEffects());
+        values.put("effects.pending-events", (long) timeline.getPendingEvents());
+
+        values.put("blocks.changed", scheduler.getChangedBlocks());
+        values.put("blocks.restored", scheduler.getRestoredBlocks());
+        values.put("blocks.skipped", scheduler.getSkippedBlocks());
+        values.put("blocks.refused", scheduler.getRefusedBlocks());
+        values.put("blocks.queued", scheduler.getQueuedChanges());
+        values.put("blocks.ticks-behind", scheduler.getTicksBehind());
+        values.put("blocks.budget-overruns", scheduler.getBudgetOverruns());
+        putHistogram(values, "blocks.per-tick", scheduler.getChangesPerTick());
+        putHistogram(values, "blocks.tick-nanos", scheduler.getTickNanos());
+
+        values.put("prefilter.chunks", chunkSnapshotFilter.getCapturedChunks());
+        values.put("prefilter.checked", chunkSnapshotFilter.getCheckedBlocks());
+        values.put("prefilter.unchanged", chunkSnapshotFilter.getUnchangedBlocks());
+
+        values.put("ghost.sent", ghostBlockSender.getSentChanges());
+        values.put("ghost.queued", ghostBlockSender.getQueuedChanges());
+
+        values.put("admission.admitted", admissionController.getAdmitted());
+        values.put("admission.degraded", admissionController.getDegraded());
+        values.put("admission.queued", admissionController.getQueued());
+        values.put("admission.rejected", admissionController.getRejected());
+        values.put("admission.waiting", (long) admissionController.getQueuedRequests());
+
+        return values;
+    }
+
+    private static void putHistogram(LinkedHashMap<String, Number> values, String name, Histogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean", histogram.getMean());
+        values.put(name + ".p50", histogram.getPercentile(0.5));
+        values.put(name + ".p99", histogram.getPercentile(0.99));
+        values.put(name + ".max", histogram.getMax());
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.makotomiyamoto.gameeffects.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, cheap enough to record into
+ * on every tick.
+ *
+ * Values are counted in power-of-two buckets, so percentiles are only
+ * accurate to within a factor of two, which is plenty to tell a 1 ms tick from
+ * a 10 ms one. Recording never blocks, and reads may happen on any thread
+ * while other threads record.
+ *
+ */
+public final class Histogram {
+
+    private static final int BUCKETS = 64; // bucket i holds values below 2^i, and at least 2^(i-1)
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = new LongAdder();
+    }
+
+    /**
+     * @param value - the value to count; negative values count as 0
+     */
+    public void record(long value) {
+
+        value = Math.max(value, 0);
+        counts[Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+
+        long count = 0;
+        for (LongAdder bucket : counts)
+            count += bucket.sum();
+
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if none were recorded
+     */
+    public double getMean() {
+
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @param fraction - which percentile, between 0 and 1, e.g. 0.99
+     * @return an upper bound on the percentile, never more than twice the real
+     *         value or more than the largest value recorded, or 0 if none were
+     *         recorded
+     */
+    public long getPercentile(double fraction) {
+
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += snapshot[i] = counts[i].sum();
+
+        long rank = (long) Math.ceil(fraction * count), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+        }
+
+        return 0;
+    }
+
+}
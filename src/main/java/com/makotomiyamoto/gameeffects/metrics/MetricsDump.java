@@ -0,0 +1,91 @@
+package com.makotomiyamoto.gameeffects.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends a snapshot of the metrics to a file every time it is run, meant to
+ * be registered as a repeating async task.
+ *
+ * In CSV format each run appends one row, after a header row when the file is
+ * new. In JSON format each run appends one object per line.
+ *
+ */
+public final class MetricsDump implements Runnable {
+
+    /**
+     * The formats a dump can be written in
+     *
+     */
+    public static enum Format {
+        CSV, JSON
+    }
+
+    private final EffectMetrics metrics;
+
+    private final File file;
+
+    private final Format format;
+
+    private final Logger logger;
+
+    /**
+     * @param metrics - the metrics to dump
+     * @param file    - the file to append to
+     * @param format  - how to write each snapshot
+     * @param logger  - reports dumps that could not be written
+     */
+    public MetricsDump(EffectMetrics metrics, File file, Format format, Logger logger) {
+        this.metrics = metrics;
+        this.file = file;
+        this.format = format;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+
+        Map<String, Number> values = metrics.snapshot();
+        boolean header = format == Format.CSV && !file.isFile();
+
+        StringBuilder line = new StringBuilder();
+        if (header) {
+            line.append("time");
+            for (String name : values.keySet())
+                line.append(',').append(name);
+            line.append('\n');
+        }
+
+        if (format == Format.CSV) {
+            line.append(System.currentTimeMillis());
+            for (Number value : values.values())
+                line.append(',').append(format(value));
+        } else {
+            line.append("{\"time\":").append(System.currentTimeMillis());
+            for (Map.Entry<String, Number> entry : values.entrySet())
+                line.append(",\"").append(entry.getKey()).append("\":").append(format(entry.getValue()));
+            line.append('}');
+        }
+        line.append('\n');
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            writer.write(line.toString());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write metrics to " + file, e);
+        }
+    }
+
+    private static String format(Number value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.1f", value.doubleValue()) : value.toString();
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether requested effects may start, so no one can queue more block
+ * changes than the server can absorb.
+ *
+ * Each request states its cost in block changes, estimated before anything is
+ * generated. A request starts only if both the requesting player's budget and
+ * the server-wide budget can pay for it; both are token buckets that refill
+ * every tick. A request that does not fit right now is queued, degraded to a
+ * cheaper version that does, or rejected, depending on the policy. A request
+ * costing more than a full bucket can never fit and is degraded or rejected
+ * whatever the policy.
+ *
+ * Queued requests are started in order when {@link #run()} is registered as a
+ * repeating sync task. A request only waits for other requests ahead of it if
+ * the server-wide budget is short, so one player's backlog never holds up
+ * another's.
+ *
+ * Not thread-safe; use it from the main thread. Only the counters may be read
+ * from other threads.
+ *
+ */
+public final class AdmissionController implements Runnable {
+
+    private static final long IDLE_BUCKET_TICKS = 20L * 60; // how often full buckets of idle players are dropped
+
+    /**
+     * What to do with a request that does not fit in the budgets right now
+     *
+     */
+    public static enum Policy {
+        QUEUE, DEGRADE, REJECT
+    }
+
+    /**
+     * What happened to a submitted request
+     *
+     */
+    public static enum Result {
+        ADMITTED, DEGRADED, QUEUED, REJECTED
+    }
+
+    /**
+     * An effect waiting to be admitted
+     *
+     */
+    public interface Request {
+
+        /**
+         * @return how many block changes the effect will make, estimated without
+         *         generating it
+         */
+        long getCost();
+
+        /**
+         * @param maxCost - the most the cheaper version may cost
+         * @return a cheaper version of the effect that costs at most maxCost, or
+         *         null if there is none
+         */
+        Request degrade(long maxCost);
+
+        /**
+         * Starts the effect; called on the main thread once it is admitted. Must
+         * not submit other requests.
+         */
+        void start();
+
+    }
+
+    private final Policy policy;
+
+    private final long playerCapacity, playerRefillPerTick;
+
+    private final TokenBucket global;
+
+    private final int maxQueuedPerPlayer;
+
+    private final HashMap<UUID, TokenBucket> players = new HashMap<>();
+
+    private final HashMap<UUID, Integer> queuedPerPlayer = new HashMap<>();
+
+    private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+
+    private final HashSet<UUID> blocked = new HashSet<>(); // players whose next queued request did not fit this tick
+
+    private final LongAdder admitted = new LongAdder(), degraded = new LongAdder(), queued = new LongAdder(),
+            rejected = new LongAdder();
+
+    private volatile int queuedRequests; // only written on the main thread, but read from any thread
+
+    private long tick;
+
+    /**
+     * @param policy              - what to do with requests that do not fit
+     * @param playerCapacity      - the most block changes one player can spend at
+     *                            once
+     * @param playerRefillPerTick - how many block changes each player's budget
+     *                            regains per tick
+     * @param globalCapacity      - the most block changes all players together
+     *                            can spend at once
+     * @param globalRefillPerTick - how many block changes the server-wide budget
+     *                            regains per tick
+     * @param maxQueuedPerPlayer  - how many requests each player may have
+     *                            waiting before more are rejected
+     */
+    public AdmissionController(Policy policy, long playerCapacity, long playerRefillPerTick, long globalCapacity,
+                               long globalRefillPerTick, int maxQueuedPerPlayer) {
+
+        if (policy == null || playerCapacity < 0 || playerRefillPerTick < 0 || maxQueuedPerPlayer < 0)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        this.policy = policy;
+        this.playerCapacity = playerCapacity;
+        this.playerRefillPerTick = playerRefillPerTick;
+        this.global = new TokenBucket(globalCapacity, globalRefillPerTick, 0);
+        this.maxQueuedPerPlayer = maxQueuedPerPlayer;
+    }
+
+    /**
+     * Starts a request if the budgets allow it, or handles it as the policy
+     * says. Must be called on the main thread.
+     *
+     * @param player  - who asked for the effect
+     * @param request - the effect
+     * @return what happened to the request
+     */
+    public Result submit(UUID player, Request request) {
+
+        TokenBucket bucket = getBucket(player);
+        long cost = request.getCost();
+
+        // a player's requests start in order, so none may skip ahead of one that is queued
+        if (fits(bucket, cost) && !queuedPerPlayer.containsKey(player)) {
+            admit(bucket, request);
+            admitted.increment();
+            return Result.ADMITTED;
+        }
+
+        boolean tooLarge = cost > Math.min(bucket.getCapacity(), global.getCapacity());
+
+        if (policy == Policy.DEGRADE || (tooLarge && policy == Policy.QUEUE)) {
+            Request cheaper = request.degrade(Math.min(bucket.getAvailable(tick), global.getAvailable(tick)));
+            if (cheaper != null && fits(bucket, cheaper.getCost())) {
+                admit(bucket, cheaper);
+                degraded.increment();
+                return Result.DEGRADED;
+            }
+        }
+
+        if (policy == Policy.QUEUE && !tooLarge && queuedPerPlayer.getOrDefault(player, 0) < maxQueuedPerPlayer) {
+            queue.add(new Queued(player, request));
+            queuedPerPlayer.merge(player, 1, Integer::sum);
+            queuedRequests = queue.size();
+            queued.increment();
+            return Result.QUEUED;
+        }
+
+        rejected.increment();
+        return Result.REJECTED;
+    }
+
+    /**
+     * Refills the budgets and starts every queued request that now fits
+     */
+    @Override
+    public void run() {
+
+        tick++;
+
+        Iterator<Queued> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+
+            Queued next = iterator.next();
+            long cost = next.request.getCost();
+
+            if (global.getAvailable(tick) < cost)
+                break; // keep the server-wide order, or large requests would never get through
+
+            TokenBucket bucket = getBucket(next.player);
+            if (blocked.contains(next.player) || bucket.getAvailable(tick) < cost) {
+                blocked.add(next.player); // the player's later requests wait for this one
+                continue;
+            }
+
+            iterator.remove();
+            if (queuedPerPlayer.merge(next.player, -1, Integer::sum) == 0)
+                queuedPerPlayer.remove(next.player);
+            admit(bucket, next.request);
+            admitted.increment();
+        }
+        blocked.clear();
+        queuedRequests = queue.size();
+
+        if (tick % IDLE_BUCKET_TICKS == 0)
+            players.entrySet().removeIf(entry -> entry.getValue().isFull(tick)
+                    && !queuedPerPlayer.containsKey(entry.getKey()));
+    }
+
+    /**
+     * @return how many requests started right away or from the queue
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return how many requests started as a cheaper version
+     */
+    public long getDegraded() {
+        return degraded.sum();
+    }
+
+    /**
+     * @return how many requests had to wait in the queue
+     */
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return how many requests are waiting right now
+     */
+    public int getQueuedRequests() {
+        return queuedRequests;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    private boolean fits(TokenBucket bucket, long cost) {
+        return bucket.getAvailable(tick) >= cost && global.getAvailable(tick) >= cost;
+    }
+
+    private void admit(TokenBucket bucket, Request request) {
+        bucket.take(request.getCost(), tick);
+        global.take(request.getCost(), tick);
+        request.start();
+    }
+
+    private TokenBucket getBucket(UUID player) {
+        return players.computeIfAbsent(player, id -> new TokenBucket(playerCapacity, playerRefillPerTick, tick));
+    }
+
+    private static final class Queued {
+
+        final UUID player;
+
+        final Request request;
+
+        Queued(UUID player, Request request) {
+            this.player = player;
+            this.request = request;
+        }
+
+    }
+
+}
@@ -0,0 +1,556 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.RingAnimation;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockSnapshot;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import com.makotomiyamoto.gameeffects.world.SnapshotJournal;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A ring that expands or contracts one radius per frame, then is held at its
+ * last frame and removed.
+ *
+ * Each frame only changes the squares its {@link RingAnimation} says were
+ * added or removed since the previous frame, so a frame costs as much as the
+ * ring changes rather than the size of the ring. The next frame is only
+ * scheduled once the previous one has been fully drawn, so an animation slows
+ * down instead of piling up frames when the server falls behind.
+ *
+ */
+public final class AnimatedRingEffect extends TemporaryEffect {
+
+    private final Renderer renderer;
+
+    private final EffectTimeline timeline;
+
+    private final RingAnimation animation;
+
+    private final int centerX, centerY, centerZ;
+
+    private final long ticksPerFrame;
+
+    private AnimatedRingEffect(Renderer renderer, EffectTimeline timeline, Location center, RingAnimation animation,
+                               long ticksPerFrame, long holdTicks) {
+        super(holdTicks);
+        this.renderer = renderer;
+        this.timeline = timeline;
+        this.animation = animation;
+        this.centerX = center.getBlockX();
+        this.centerY = center.getBlockY();
+        this.centerZ = center.getBlockZ();
+        this.ticksPerFrame = ticksPerFrame;
+    }
+
+    /**
+     * Creates an animation that changes the world's blocks. The ring holds each
+     * block through the world's ownership index while it covers it, and
+     * releases it when the ring moves off it, as with
+     * {@link TemporaryBlockEffect}.
+     *
+     * @param scheduler     - applies the block changes
+     * @param journal       - records the original states until they are
+     *                      restored, or null to keep them in memory only
+     * @param logger        - reports originals that could not be journaled;
+     *                      may be null without a journal
+     * @param ownership     - the index of held blocks of the center's world
+     * @param timeline      - schedules the frames
+     * @param center        - the center of the ring
+     * @param animation     - the frames to draw
+     * @param state         - the state to draw the ring with, encoded with
+     *                      BlockStates
+     * @param ticksPerFrame - how many ticks to wait between frames
+     * @param holdTicks     - how many ticks to hold the last frame before
+     *                      removing it
+     * @return the effect
+     */
+    public static AnimatedRingEffect inWorld(BlockChangeScheduler scheduler, SnapshotJournal journal, Logger logger,
+                                             BlockOwnershipIndex ownership, EffectTimeline timeline, Location center,
+                                             RingAnimation animation, int state, long ticksPerFrame, long holdTicks) {
+        return new AnimatedRingEffect(new WorldRenderer(scheduler, journal, logger, ownership, center.getWorld(),
+                state), timeline, center, animation, ticksPerFrame, holdTicks);
+    }
+
+    /**
+     * Creates an animation that is only shown to the players who can see it, as
+     * with {@link GhostBlockEffect}
+     *
+     * @param sender        - sends the block changes
+     * @param viewDistance  - how many chunks away players can see, usually the
+     *                      server's view distance
+     * @param timeline      - schedules the frames
+     * @param center        - the center of the ring
+     * @param animation     - the frames to draw
+     * @param state         - the state to show the ring as, encoded with
+     *                      BlockStates
+     * @param ticksPerFrame - how many ticks to wait between frames
+     * @param holdTicks     - how many ticks to show the last frame before
+     *                      reverting it
+     * @return the effect
+     */
+    public static AnimatedRingEffect asGhost(GhostBlockSender sender, int viewDistance, EffectTimeline timeline,
+                                             Location center, RingAnimation animation, int state, long ticksPerFrame,
+                                             long holdTicks) {
+
+        int reach = (Math.max(animation.getRadius(0), animation.getRadius(animation.getFrameCount() - 1)) >> 4) + 1
+                + viewDistance; // chunks from the center chunk to the farthest viewer
+        int chunkX = center.getBlockX() >> 4, chunkZ = center.getBlockZ() >> 4;
+
+        return new AnimatedRingEffect(new GhostRenderer(sender, center.getWorld(), state, chunkX - reach,
+                chunkZ - reach, chunkX + reach, chunkZ + reach), timeline, center, animation, ticksPerFrame, holdTicks);
+    }
+
+    @Override
+    protected void apply(Runnable onApplied) {
+        renderer.start();
+        drawFrame(0, onApplied);
+    }
+
+    @Override
+    protected void restore(Runnable onRestored) {
+        renderer.clear(toPositions(animation.getLastFrame()), onRestored);
+    }
+
+    private void drawFrame(int frame, Runnable onApplied) {
+
+        renderer.draw(toPositions(animation.getAdded(frame)), toPositions(animation.getRemoved(frame)), () -> {
+            if (frame + 1 < animation.getFrameCount())
+                timeline.schedule(ticksPerFrame, () -> drawFrame(frame + 1, onApplied));
+            else
+                onApplied.run();
+        });
+    }
+
+    private long[] toPositions(ShapeMask mask) {
+
+        long[] positions = new long[mask.size()];
+        for (int i = 0; i < mask.size(); i++)
+            positions[i] = BlockPos.pack(centerX + mask.getX(i), centerY + mask.getY(i), centerZ + mask.getZ(i));
+
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    /**
+     * Draws the changes of each frame. Called on the main thread.
+     *
+     */
+    private interface Renderer {
+
+        void start();
+
+        void draw(long[] added, long[] removed, Runnable onDrawn);
+
+        void clear(long[] shown, Runnable onCleared);
+
+    }
+
+    /**
+     * Changes the world's blocks. The originals of each frame are journaled
+     * before its squares are written, a slice at a time, and once the ring has
+     * left some of a record's squares and they have been restored, they are
+     * released from it, so recovery never puts back a square the ring has
+     * already left. An index from each square to its record keeps that to the
+     * squares a frame removes.
+     *
+     * A slice that cannot be journaled is logged and left unchanged.
+     *
+     */
+    private static final class WorldRenderer implements Renderer {
+
+        private final BlockChangeScheduler scheduler;
+
+        private final SnapshotJournal journal;
+
+        private final Logger logger;
+
+        private final BlockOwnershipIndex ownership;
+
+        private final World world;
+
+        private final int state;
+
+        private final HashSet<Record> records = new HashSet<>();
+
+        private final RecordIndex index = new RecordIndex();
+
+        WorldRenderer(BlockChangeScheduler scheduler, SnapshotJournal journal, Logger logger,
+                      BlockOwnershipIndex ownership, World world, int state) {
+            this.scheduler = scheduler;
+            this.journal = journal;
+            this.logger = logger;
+            this.ownership = ownership;
+            this.world = world;
+            this.state = state;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void draw(long[] added, long[] removed, Runnable onDrawn) {
+
+            // removals go first, so a square the ring leaves is restored before
+            // anything captures it again; it is only released from its record
+            // once it has been
+            Record[] owners = takeRecords(removed);
+            scheduler.submit(BlockChangeBatch.restore(world, release(removed))
+                    .whenComplete(() -> retire(removed, owners)));
+
+            for (long pos : added)
+                ownership.acquire(pos);
+
+            BlockChangeBatch batch = BlockChangeBatch.fill(world, added, state).capturePrevious();
+            scheduler.submit(batch.whenCaptured((from, to) -> record(batch, from, to)).whenComplete(onDrawn));
+        }
+
+        @Override
+        public void clear(long[] shown, Runnable onCleared) {
+
+            scheduler.submit(BlockChangeBatch.restore(world, release(shown)).whenComplete(() -> {
+                for (Record record : records)
+                    release(record);
+                records.clear();
+                index.clear();
+
+                onCleared.run();
+            }));
+        }
+
+        /**
+         * @return the original states of the positions no other effect still
+         *         holds
+         */
+        private BlockSnapshot release(long[] positions) {
+
+            int[] originals = new int[positions.length];
+            for (int i = 0; i < positions.length; i++)
+                originals[i] = ownership.release(positions[i]);
+
+            return BlockSnapshot.of(world.getUID(), positions, originals);
+        }
+
+        /**
+         * Records and journals the originals of a slice of squares before they are
+         * written. Squares another effect already held were captured with that
+         * effect's state, so the original it recorded is kept instead.
+         *
+         * @return false if the slice could not be journaled, so the batch leaves
+         *         it as it is
+         */
+        private boolean record(BlockChangeBatch batch, int from, int to) {
+
+            long[] positions = batch.getPositions();
+            int[] previous = batch.getPrevious();
+
+            long[] slice = from == 0 && to == positions.length ? positions : Arrays.copyOfRange(positions, from, to);
+            int[] originals = new int[to - from];
+            for (int i = from; i < to; i++)
+                originals[i - from] = ownership.recordOriginal(positions[i], previous[i]);
+
+            BlockSnapshot snapshot = BlockSnapshot.of(world.getUID(), slice, originals);
+            if (journal == null || snapshot.size() == 0)
+                return true;
+
+            try {
+                Record record = new Record(journal.append(snapshot), snapshot.size());
+                records.add(record);
+                for (long pos : snapshot.getPositions())
+                    index.put(pos, record);
+                return true;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not journal the originals of " + snapshot.size() + " blocks", e);
+                return false;
+            }
+        }
+
+        /**
+         * Takes the squares the ring leaves out of the index
+         *
+         * @return the record of each square, or null where none covers it
+         */
+        private Record[] takeRecords(long[] removed) {
+
+            if (journal == null)
+                return null;
+
+            Record[] owners = new Record[removed.length];
+            for (int i = 0; i < removed.length; i++) {
+                owners[i] = index.remove(removed[i]);
+                if (owners[i] != null)
+                    owners[i].live--;
+            }
+            return owners;
+        }
+
+        /**
+         * Releases restored squares from the records that covered them: whole
+         * records once none of their squares are left, the others partially
+         *
+         * @param removed - the restored squares
+         * @param owners  - the record of each square, or null where none
+         *                covered it
+         */
+        private void retire(long[] removed, Record[] owners) {
+
+            if (owners == null)
+                return;
+
+            ArrayList<Record> touched = new ArrayList<>();
+            for (Record owner : owners) {
+                if (owner != null && owner.leaving++ == 0)
+                    touched.add(owner);
+            }
+
+            for (Record record : touched) {
+                record.left = new long[record.leaving];
+                record.leaving = 0;
+            }
+            for (int i = 0; i < removed.length; i++) {
+                if (owners[i] != null)
+                    owners[i].left[owners[i].leaving++] = removed[i];
+            }
+
+            for (Record record : touched) {
+                if (record.live == 0) {
+                    records.remove(record);
+                    release(record);
+                } else {
+                    try {
+                        journal.release(record.id, record.left);
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "Could not release " + record.left.length + " journaled blocks, "
+                                + "they may be restored again after a crash", e);
+                    }
+                }
+                record.left = null;
+                record.leaving = 0;
+            }
+        }
+
+        private void release(Record record) {
+            try {
+                journal.release(record.id);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not release a journaled snapshot, its blocks may be restored "
+                        + "again after a crash", e);
+            }
+        }
+
+    }
+
+    /**
+     * A journaled snapshot of squares, and how many of them the ring still
+     * covers
+     *
+     */
+    private static final class Record {
+
+        final long id;
+
+        int live; // squares not removed yet
+
+        int leaving; // squares being released, while retiring them
+
+        long[] left;
+
+        Record(long id, int size) {
+            this.id = id;
+            this.live = size;
+        }
+
+    }
+
+    /**
+     * Maps the squares of the live records to the record covering them. An
+     * open-addressing hash table with linear probing, as BlockOwnershipIndex
+     * is, so indexing a frame boxes nothing.
+     *
+     */
+    private static final class RecordIndex {
+
+        private static final long EMPTY = Long.MIN_VALUE; // packs a block past the world border
+
+        private static final int MIN_CAPACITY = 64; // must be a power of two
+
+        private long[] keys;
+
+        private Record[] values;
+
+        private int size;
+
+        RecordIndex() {
+            clear();
+        }
+
+        void put(long pos, Record record) {
+
+            int slot = find(pos);
+            values[slot] = record;
+            if (keys[slot] != EMPTY)
+                return;
+
+            keys[slot] = pos;
+            if (++size * 2 > keys.length)
+                rehash(keys.length * 2);
+        }
+
+        /**
+         * @return the record the position mapped to, or null if it was not
+         *         indexed
+         */
+        Record remove(long pos) {
+
+            int slot = find(pos);
+            if (keys[slot] == EMPTY)
+                return null;
+
+            Record record = values[slot];
+            int mask = keys.length - 1;
+
+            // shift later entries of the probe run back into the hole, so lookups
+            // never stop early at it
+            int hole = slot;
+            for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+                int home = slot(keys[next]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+
+            keys[hole] = EMPTY;
+            values[hole] = null;
+
+            if (--size * 8 < keys.length && keys.length > MIN_CAPACITY)
+                rehash(keys.length / 2);
+
+            return record;
+        }
+
+        void clear() {
+            allocate(MIN_CAPACITY);
+            size = 0;
+        }
+
+        private int find(long pos) {
+
+            int mask = keys.length - 1;
+            int slot = slot(pos);
+            while (keys[slot] != EMPTY && keys[slot] != pos)
+                slot = (slot + 1) & mask;
+
+            return slot;
+        }
+
+        private int slot(long pos) {
+            long hash = pos * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+        }
+
+        private void rehash(int capacity) {
+
+            long[] oldKeys = keys;
+            Record[] oldValues = values;
+            allocate(capacity);
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new Record[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+    }
+
+    private static final class GhostRenderer implements Renderer {
+
+        private final GhostBlockSender sender;
+
+        private final World world;
+
+        private final int state;
+
+        private final int minChunkX, minChunkZ, maxChunkX, maxChunkZ;
+
+        private List<Player> viewers;
+
+        GhostRenderer(GhostBlockSender sender, World world, int state, int minChunkX, int minChunkZ, int maxChunkX,
+                      int maxChunkZ) {
+            this.sender = sender;
+            this.world = world;
+            this.state = state;
+            this.minChunkX = minChunkX;
+            this.minChunkZ = minChunkZ;
+            this.maxChunkX = maxChunkX;
+            this.maxChunkZ = maxChunkZ;
+        }
+
+        @Override
+        public void start() {
+            viewers = GhostBlockEffect.findViewers(world, minChunkX, minChunkZ, maxChunkX, maxChunkZ);
+        }
+
+        @Override
+        public void draw(long[] added, long[] removed, Runnable onDrawn) {
+
+            if (viewers.isEmpty()) {
+                onDrawn.run();
+                return;
+            }
+
+            int[] remaining = { viewers.size() * 2 };
+            Runnable onViewerSent = () -> {
+                if (--remaining[0] == 0)
+                    onDrawn.run();
+            };
+
+            for (Player viewer : viewers) {
+                sender.send(viewer, world, removed, BlockStates.NONE, onViewerSent);
+                sender.send(viewer, world, added, state, onViewerSent);
+            }
+        }
+
+        @Override
+        public void clear(long[] shown, Runnable onCleared) {
+
+            if (viewers.isEmpty()) {
+                onCleared.run();
+                return;
+            }
+
+            int[] remaining = { viewers.size() };
+            Runnable onViewerSent = () -> {
+                if (--remaining[0] == 0)
+                    onCleared.run();
+            };
+
+            for (Player viewer : viewers)
+                sender.send(viewer, world, shown, BlockStates.NONE, onViewerSent);
+        }
+
+    }
+
+}
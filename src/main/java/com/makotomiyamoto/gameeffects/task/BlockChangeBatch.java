@@ -0,0 +1,342 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockSnapshot;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * A group of block changes in one world, submitted together to the
+ * {@link BlockChangeScheduler}.
+ *
+ * Changes are applied in the order of their positions. Sorting the positions
+ * first (see {@link BlockPos}) groups them by chunk and section, so each chunk
+ * is looked up once per run of its positions.
+ *
+ * Batches may be built on any thread; once submitted they belong to the
+ * scheduler and are only touched on the main thread.
+ *
+ */
+public final class BlockChangeBatch {
+
+    private final World world;
+
+    private final long[] positions;
+
+    private final int state; // used for every position when states is null
+
+    private final int[] states;
+
+    private final BlockSnapshot snapshot; // used instead of states when restoring a snapshot
+
+    private int[] previous;
+
+    private Runnable onComplete;
+
+    private CaptureListener onCaptured;
+
+    private boolean skipUnloadedChunks;
+
+    private Chunk chunk; // chunk of the last applied position
+
+    private long chunkKey;
+
+    int cursor;
+
+    int captured; // previous states are read up to here ahead of the cursor when there is a capture listener
+
+    long submittedTick;
+
+    private BlockChangeBatch(World world, long[] positions, int state, int[] states, BlockSnapshot snapshot) {
+
+        if (world == null || positions == null || (states != null && states.length != positions.length))
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        this.world = world;
+        this.positions = positions;
+        this.state = state;
+        this.states = states;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Creates a batch that sets every position to the same state
+     *
+     * @param world     - the world the positions are in
+     * @param positions - positions packed with {@link BlockPos}
+     * @param state     - state encoded with {@link BlockStates}
+     * @return the batch
+     */
+    public static BlockChangeBatch fill(World world, long[] positions, int state) {
+        return new BlockChangeBatch(world, positions, state, null, null);
+    }
+
+    /**
+     * Creates a batch that sets each position to its own state
+     *
+     * @param world     - the world the positions are in
+     * @param positions - positions packed with {@link BlockPos}
+     * @param states    - states encoded with {@link BlockStates}, parallel to
+     *                  positions; positions whose state is BlockStates.NONE are
+     *                  left alone
+     * @return the batch
+     */
+    public static BlockChangeBatch of(World world, long[] positions, int[] states) {
+        return new BlockChangeBatch(world, positions, 0, states, null);
+    }
+
+    /**
+     * Creates a batch that puts back the states recorded in a snapshot
+     *
+     * @param world    - the world the snapshot was taken in
+     * @param snapshot - the states to restore
+     * @return the batch
+     */
+    public static BlockChangeBatch restore(World world, BlockSnapshot snapshot) {
+        return new BlockChangeBatch(world, snapshot.getPositions(), 0, null, snapshot);
+    }
+
+    /**
+     * Makes the batch record the state each position had right before it was
+     * changed, available from {@link #getPrevious()} once the batch completes.
+     * Positions found already in their target state are then not written.
+     *
+     * @return this batch
+     */
+    public BlockChangeBatch capturePrevious() {
+        previous = new int[positions.length];
+        return this;
+    }
+
+    /**
+     * Makes the batch leave alone positions in chunks that are not loaded instead
+     * of loading them. Their captured previous state is BlockStates.NONE, so a
+     * batch restoring the captured states leaves them alone too.
+     *
+     * @return this batch
+     */
+    public BlockChangeBatch skipUnloadedChunks() {
+        skipUnloadedChunks = true;
+        return this;
+    }
+
+    /**
+     * Makes the batch read the previous states of a slice of positions and hand
+     * them to a listener before writing any of them, so they can be recorded
+     * somewhere that survives a crash first. Each tick's share of the batch is
+     * one slice, read and written in that tick. A slice the listener refuses,
+     * e.g. because its previous states could not be recorded, is left alone as
+     * if its chunks were not loaded. Requires {@link #capturePrevious()}.
+     *
+     * @param onCaptured - run on the main thread with each slice whose previous
+     *                   states have been read but not yet written
+     * @return this batch
+     */
+    public BlockChangeBatch whenCaptured(CaptureListener onCaptured) {
+
+        if (previous == null)
+            throw new IllegalStateException("Batch does not capture previous states");
+
+        this.onCaptured = onCaptured;
+        return this;
+    }
+
+    /**
+     * @param onComplete - run on the main thread once every change of the batch
+     *                   has been applied
+     * @return this batch
+     */
+    public BlockChangeBatch whenComplete(Runnable onComplete) {
+        this.onComplete = onComplete;
+        return this;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public long[] getPositions() {
+        return positions;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * @return the captured previous states, parallel to the positions, or null
+     *         if the batch does not capture them
+     */
+    public int[] getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return whether the batch puts back a snapshot rather than making new
+     *         changes
+     */
+    boolean isRestoring() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return whether previous states are handed to a listener before they are
+     *         written
+     */
+    boolean isCapturingAhead() {
+        return onCaptured != null;
+    }
+
+    /**
+     * Reads the previous state at the capture position without changing it, or
+     * skips every position left in its chunk as {@link #applyNext()} would
+     */
+    void captureNext() {
+
+        long pos = positions[captured];
+
+        if (!moveToChunk(pos)) {
+            captured = skipChunk(captured);
+            return;
+        }
+
+        int target = getTarget(captured);
+        previous[captured] = target == BlockStates.NONE ? BlockStates.NONE
+                : BlockStates.of(chunk.getBlock(BlockPos.getLocalX(pos), BlockPos.getY(pos), BlockPos.getLocalZ(pos)));
+        captured++;
+    }
+
+    /**
+     * Hands the slice read since the last call to the capture listener, and
+     * moves the cursor past it if the listener refuses it
+     *
+     * @param from - where the slice starts
+     * @return whether the slice may be written
+     */
+    boolean captured(int from) {
+
+        if (onCaptured.captured(from, captured))
+            return true;
+
+        for (int i = from; i < captured; i++)
+            previous[i] = BlockStates.NONE;
+        cursor = captured;
+        return false;
+    }
+
+    /**
+     * Applies the change at the cursor, or skips every position left in its chunk
+     * if that chunk is not loaded and the batch skips unloaded chunks
+     *
+     * @return how many positions were skipped without being applied, or 0 if
+     *         the change at the cursor was applied
+     */
+    int applyNext() {
+
+        long pos = positions[cursor];
+
+        if (!moveToChunk(pos)) {
+            int start = cursor;
+            cursor = skipChunk(cursor);
+            return cursor - start;
+        }
+
+        int target = getTarget(cursor);
+
+        if (target == BlockStates.NONE) {
+            if (previous != null)
+                previous[cursor] = BlockStates.NONE;
+        } else {
+            Block block = chunk.getBlock(BlockPos.getLocalX(pos), BlockPos.getY(pos), BlockPos.getLocalZ(pos));
+
+            if (previous == null) {
+                BlockStates.apply(block, target);
+            } else {
+                int current = cursor < captured ? previous[cursor] : BlockStates.of(block);
+                previous[cursor] = current;
+                if (current != target) // it was read anyway, so skip writes that change nothing
+                    BlockStates.apply(block, target);
+            }
+        }
+
+        cursor++;
+        return 0;
+    }
+
+    /**
+     * Looks up the chunk of a position unless it is the one of the last position
+     *
+     * @return false if the chunk is not loaded and the batch skips unloaded
+     *         chunks
+     */
+    private boolean moveToChunk(long pos) {
+
+        if (chunk != null && BlockPos.getChunkKey(pos) == chunkKey)
+            return true;
+
+        int chunkX = BlockPos.getChunkX(pos), chunkZ = BlockPos.getChunkZ(pos);
+        chunkKey = BlockPos.getChunkKey(pos);
+
+        if (skipUnloadedChunks && !world.isChunkLoaded(chunkX, chunkZ)) {
+            chunk = null;
+            return false;
+        }
+
+        chunk = world.getChunkAt(chunkX, chunkZ);
+        return true;
+    }
+
+    /**
+     * @return the index just past the positions from an index on that are in
+     *         the last looked up chunk
+     */
+    private int skipChunk(int from) {
+
+        int i = from;
+        while (i < positions.length && BlockPos.getChunkKey(positions[i]) == chunkKey) {
+            if (previous != null)
+                previous[i] = BlockStates.NONE;
+            i++;
+        }
+        return i;
+    }
+
+    private int getTarget(int index) {
+        return snapshot != null ? snapshot.getState(index) : states != null ? states[index] : state;
+    }
+
+    /**
+     * Forgets the cached chunk, which may have been unloaded since the batch was
+     * last worked on
+     */
+    void resume() {
+        chunk = null;
+    }
+
+    void complete() {
+        if (onComplete != null)
+            onComplete.run();
+    }
+
+    /**
+     * Receives the previous states of a slice of a batch before they are
+     * overwritten
+     *
+     */
+    public interface CaptureListener {
+
+        /**
+         * @param from - the index of the first position of the slice
+         * @param to   - the index just past the last position of the slice; the
+         *             previous states are in {@link #getPrevious()} between the
+         *             two
+         * @return whether to write the slice; if not, it is left alone and its
+         *         previous states become BlockStates.NONE
+         */
+        boolean captured(int from, int to);
+
+    }
+
+}
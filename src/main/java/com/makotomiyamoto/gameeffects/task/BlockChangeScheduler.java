@@ -0,0 +1,267 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.metrics.Histogram;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies block changes on the main thread under a per-tick time budget.
+ *
+ * Any thread may {@link #submit(BlockChangeBatch)} batches. Registered as a
+ * repeating sync task, {@link #run()} then applies queued changes in order
+ * until the tick's budget is spent, and carries whatever did not fit over to
+ * the next tick.
+ *
+ * How many changes each tick applies, how long it spends, and how often it
+ * overruns its budget are recorded without locking, so they can be read from
+ * any thread.
+ *
+ */
+public final class BlockChangeScheduler implements Runnable {
+
+    private static final int CHANGES_PER_CLOCK_CHECK = 32; // System.nanoTime is not free, so only check it
+    // every few changes
+
+    private final ConcurrentLinkedQueue<BlockChangeBatch> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong queuedChanges = new AtomicLong();
+
+    private final LongAdder changedBlocks = new LongAdder(), restoredBlocks = new LongAdder(),
+            skippedBlocks = new LongAdder(), refusedBlocks = new LongAdder(), budgetOverruns = new LongAdder();
+
+    private final Histogram changesPerTick = new Histogram(), tickNanos = new Histogram();
+
+    private volatile long tickBudgetNanos;
+
+    private volatile long tick;
+
+    private volatile BlockChangeBatch current; // batch partially applied in an earlier tick
+
+    /**
+     * @param tickBudgetNanos - how long each tick may spend applying changes
+     */
+    public BlockChangeScheduler(long tickBudgetNanos) {
+        setTickBudgetNanos(tickBudgetNanos);
+    }
+
+    /**
+     * Queues a batch to be applied on the main thread. Safe to call from any
+     * thread.
+     *
+     * @param batch - the changes to apply
+     */
+    public void submit(BlockChangeBatch batch) {
+        batch.submittedTick = tick;
+        queuedChanges.addAndGet(batch.size());
+        queue.add(batch);
+    }
+
+    /**
+     * Applies queued changes until the tick's budget runs out. At least one change
+     * is applied per call, so the queue always drains eventually. Must be run on
+     * the main thread.
+     */
+    @Override
+    public void run() {
+
+        tick++;
+
+        long start = System.nanoTime(), budget = tickBudgetNanos;
+        changesPerTick.record(drain(start + budget));
+
+        long elapsed = System.nanoTime() - start;
+        tickNanos.record(elapsed);
+        if (elapsed > budget)
+            budgetOverruns.increment();
+    }
+
+    /**
+     * Applies every queued change right away, ignoring the budget. Used when the
+     * plugin is disabled so no change is left half done. Must be run on the main
+     * thread.
+     */
+    public void flush() {
+        drain(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return how many changes were applied, not counting positions skipped
+     *         or refused
+     */
+    private long drain(long deadline) {
+
+        BlockChangeBatch batch = current;
+        long total = 0;
+
+        if (batch != null)
+            batch.resume();
+
+        while (true) {
+
+            if (batch == null) {
+                batch = queue.poll();
+                if (batch == null)
+                    break;
+            }
+
+            int applied = 0, skipped = 0, refused = 0, sinceClockCheck = 0;
+            while (batch.cursor < batch.size()) {
+                if (batch.cursor == batch.captured && batch.isCapturingAhead()) {
+                    int from = batch.cursor;
+                    if (!captureSlice(batch, deadline)) {
+                        refused += batch.cursor - from;
+                        if (System.nanoTime() >= deadline)
+                            break;
+                        continue;
+                    }
+                }
+
+                int skippedHere = batch.applyNext();
+                if (skippedHere == 0)
+                    applied++;
+                else
+                    skipped += skippedHere; // a chunk that is not loaded, left alone
+
+                if (batch.cursor < batch.captured)
+                    continue; // a captured slice is written in the tick it was read in
+
+                if (++sinceClockCheck == CHANGES_PER_CLOCK_CHECK) {
+                    sinceClockCheck = 0;
+                    if (System.nanoTime() >= deadline)
+                        break;
+                }
+            }
+            queuedChanges.addAndGet(-(applied + skipped + refused));
+            (batch.isRestoring() ? restoredBlocks : changedBlocks).add(applied);
+            skippedBlocks.add(skipped);
+            refusedBlocks.add(refused);
+            total += applied;
+
+            if (batch.cursor < batch.size())
+                break; // out of time in the middle of the batch
+
+            batch.complete();
+            batch = null;
+
+            if (System.nanoTime() >= deadline)
+                break;
+        }
+
+        current = batch;
+        return total;
+    }
+
+    /**
+     * Reads the previous states of the next slice of a batch and hands them over
+     * before any is written. Reading gets half the time left, leaving the other
+     * half to write the slice.
+     *
+     * @return false if the slice was refused and skipped
+     */
+    private static boolean captureSlice(BlockChangeBatch batch, long deadline) {
+
+        long now = System.nanoTime();
+        // an unbounded deadline, as flush passes, would overflow the halving
+        long captureDeadline = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : now + Math.max(deadline - now, 0) / 2;
+        int from = batch.captured, sinceClockCheck = 0;
+
+        while (batch.captured < batch.size()) {
+            batch.captureNext();
+
+            if (++sinceClockCheck == CHANGES_PER_CLOCK_CHECK) {
+                sinceClockCheck = 0;
+                if (System.nanoTime() >= captureDeadline)
+                    break;
+            }
+        }
+
+        return batch.captured(from);
+    }
+
+    public void setTickBudgetNanos(long tickBudgetNanos) {
+
+        if (tickBudgetNanos <= 0)
+            throw new IllegalArgumentException("Tick budget must be positive!");
+
+        this.tickBudgetNanos = tickBudgetNanos;
+    }
+
+    public long getTickBudgetNanos() {
+        return tickBudgetNanos;
+    }
+
+    /**
+     * @return the number of submitted changes that have not been applied yet
+     */
+    public long getQueuedChanges() {
+        return queuedChanges.get();
+    }
+
+    /**
+     * @return how many block changes have been applied, not counting restores
+     */
+    public long getChangedBlocks() {
+        return changedBlocks.sum();
+    }
+
+    /**
+     * @return how many blocks have been put back by restoring snapshots
+     */
+    public long getRestoredBlocks() {
+        return restoredBlocks.sum();
+    }
+
+    /**
+     * @return how many blocks were left alone because their chunk was not
+     *         loaded
+     */
+    public long getSkippedBlocks() {
+        return skippedBlocks.sum();
+    }
+
+    /**
+     * @return how many blocks were left alone because their batch refused them
+     *         once their previous states were read, e.g. because those could
+     *         not be journaled
+     */
+    public long getRefusedBlocks() {
+        return refusedBlocks.sum();
+    }
+
+    /**
+     * @return how many ticks took longer than the budget
+     */
+    public long getBudgetOverruns() {
+        return budgetOverruns.sum();
+    }
+
+    /**
+     * @return how many changes, restores included, each tick applied
+     */
+    public Histogram getChangesPerTick() {
+        return changesPerTick;
+    }
+
+    /**
+     * @return how long each tick spent applying changes, in nanoseconds
+     */
+    public Histogram getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * @return how many ticks ago the oldest unfinished batch was submitted, or 0
+     *         if nothing is queued
+     */
+    public long getTicksBehind() {
+
+        BlockChangeBatch oldest = current;
+        if (oldest == null)
+            oldest = queue.peek();
+
+        return oldest == null ? 0 : tick - oldest.submittedTick;
+    }
+
+}
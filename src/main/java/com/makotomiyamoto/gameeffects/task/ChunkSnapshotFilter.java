@@ -0,0 +1,326 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Sorts the positions of an effect into blocks that need changing and blocks
+ * already in the target state, reading them from chunk snapshots instead of
+ * the world.
+ *
+ * Snapshots of the chunks the positions fall in are captured on the main
+ * thread, a limited number per tick, and each tick's snapshots are read and
+ * dropped right away. Everything else, from finding the chunks to comparing
+ * each block with the target, runs on an executor, so the main thread never
+ * reads the blocks one by one. The result is handed back on the main thread
+ * through an {@link EffectTimeline}.
+ *
+ * Snapshots are a few ticks old by the time the result arrives, so a block
+ * changed in between is judged as it was in the snapshot. Its state is only
+ * used to decide whether it needs changing: another effect may have restored
+ * it since, so original states must still be read when the blocks are
+ * written. Given the world's {@link BlockOwnershipIndex}, the result also
+ * tells which blocks were already in the target state while another effect
+ * held them, since they may have been restored by the time it arrives.
+ *
+ */
+public final class ChunkSnapshotFilter {
+
+    private final EffectTimeline timeline;
+
+    private final Executor executor;
+
+    private final int maxSnapshotsPerTick;
+
+    private final LongAdder capturedChunks = new LongAdder(), checkedBlocks = new LongAdder(),
+            unchangedBlocks = new LongAdder();
+
+    /**
+     * @param timeline            - hands the results back to the main thread and
+     *                            spreads snapshots over ticks
+     * @param executor            - runs the work off the main thread; if it
+     *                            rejects a task, e.g. because it was shut down,
+     *                            the task runs on the calling thread instead
+     * @param maxSnapshotsPerTick - how many chunks may be captured per tick for
+     *                            each effect being filtered
+     */
+    public ChunkSnapshotFilter(EffectTimeline timeline, Executor executor, int maxSnapshotsPerTick) {
+
+        if (timeline == null || executor == null || maxSnapshotsPerTick < 1)
+            throw new IllegalArgumentException("Incorrect parameter(s)!");
+
+        this.timeline = timeline;
+        this.executor = executor;
+        this.maxSnapshotsPerTick = maxSnapshotsPerTick;
+    }
+
+    /**
+     * Filters the positions of an effect. Safe to call from any thread.
+     *
+     * @param world              - the world the positions are in
+     * @param positions          - positions packed with BlockPos, best sorted
+     *                           so each chunk is captured once
+     * @param state              - the state the effect sets, encoded with
+     *                           BlockStates
+     * @param skipUnloadedChunks - whether to leave out positions in chunks that
+     *                           are not loaded instead of loading them
+     * @param onFiltered         - run on the main thread with the result
+     */
+    public void filter(World world, long[] positions, int state, boolean skipUnloadedChunks,
+                       Consumer<Result> onFiltered) {
+        filter(world, positions, state, skipUnloadedChunks, null, onFiltered);
+    }
+
+    /**
+     * Like filter(world, positions, state, skipUnloadedChunks, onFiltered), but
+     * also records which positions another effect held when their chunk was
+     * captured, see {@link Result#getHeldUnchanged()}
+     *
+     * @param ownership - the index of held blocks of the world, or null to not
+     *                  record them
+     */
+    public void filter(World world, long[] positions, int state, boolean skipUnloadedChunks,
+                       BlockOwnershipIndex ownership, Consumer<Result> onFiltered) {
+        execute(new Job(world, positions, state, skipUnloadedChunks, ownership, onFiltered)::findChunks);
+    }
+
+    /**
+     * @return how many chunk snapshots have been captured
+     */
+    public long getCapturedChunks() {
+        return capturedChunks.sum();
+    }
+
+    /**
+     * @return how many blocks have been compared with their target state
+     */
+    public long getCheckedBlocks() {
+        return checkedBlocks.sum();
+    }
+
+    /**
+     * @return how many blocks were found already in their target state
+     */
+    public long getUnchangedBlocks() {
+        return unchangedBlocks.sum();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * The positions of an effect, split by whether their block needs changing
+     *
+     */
+    public static final class Result {
+
+        private final long[] changed;
+
+        private final long[] unchanged;
+
+        private final long[] heldUnchanged;
+
+        Result(long[] changed, long[] unchanged, long[] heldUnchanged) {
+            this.changed = changed;
+            this.unchanged = unchanged;
+            this.heldUnchanged = heldUnchanged;
+        }
+
+        /**
+         * @return the positions whose block is not in the target state, in the
+         *         order they were given
+         */
+        public long[] getChanged() {
+            return changed;
+        }
+
+        /**
+         * @return the positions whose block is already in the target state, in
+         *         the order they were given
+         */
+        public long[] getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return the positions of getUnchanged() that another effect held when
+         *         their chunk was captured, in the same order; they may only
+         *         have been in the target state because of that effect
+         */
+        public long[] getHeldUnchanged() {
+            return heldUnchanged;
+        }
+
+    }
+
+    private final class Job {
+
+        private static final int LEFT_OUT = -2; // marks positions in chunks that were skipped
+
+        private final World world;
+
+        private final long[] positions;
+
+        private final int state;
+
+        private final boolean skipUnloadedChunks;
+
+        private final BlockOwnershipIndex ownership;
+
+        private final Consumer<Result> onFiltered;
+
+        private int[] runStarts; // index of the first position of each run of positions in one chunk
+
+        private int captured;
+
+        private int[] current; // the state each position had in its snapshot
+
+        private boolean[] held; // whether another effect held each position when it was captured, or null if
+        // none did
+
+        private final AtomicInteger remaining = new AtomicInteger(); // runs not compared yet
+
+        Job(World world, long[] positions, int state, boolean skipUnloadedChunks, BlockOwnershipIndex ownership,
+            Consumer<Result> onFiltered) {
+            this.world = world;
+            this.positions = positions;
+            this.state = state;
+            this.skipUnloadedChunks = skipUnloadedChunks;
+            this.ownership = ownership;
+            this.onFiltered = onFiltered;
+        }
+
+        void findChunks() {
+
+            int[] starts = new int[16];
+            int runs = 0;
+
+            for (int i = 0; i < positions.length; i++) {
+                if (i == 0 || BlockPos.getChunkKey(positions[i]) != BlockPos.getChunkKey(positions[i - 1])) {
+                    if (runs == starts.length)
+                        starts = Arrays.copyOf(starts, runs * 2);
+                    starts[runs++] = i;
+                }
+            }
+
+            runStarts = Arrays.copyOf(starts, runs);
+            current = new int[positions.length];
+            remaining.set(runs);
+
+            if (runs == 0)
+                collect();
+            else
+                timeline.schedule(0, this::capture);
+        }
+
+        /**
+         * Captures the next chunks on the main thread, and compares their blocks
+         * right away so no snapshot is kept longer than it takes to read it
+         */
+        void capture() {
+
+            int from = captured, to = Math.min(from + maxSnapshotsPerTick, runStarts.length);
+            ChunkSnapshot[] snapshots = new ChunkSnapshot[to - from]; // null where the chunk is skipped
+
+            for (int run = from; run < to; run++) {
+                long pos = positions[runStarts[run]];
+                int chunkX = BlockPos.getChunkX(pos), chunkZ = BlockPos.getChunkZ(pos);
+
+                if (skipUnloadedChunks && !world.isChunkLoaded(chunkX, chunkZ))
+                    continue;
+
+                snapshots[run - from] = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false);
+                capturedChunks.increment();
+                recordHeld(run);
+            }
+
+            captured = to;
+            execute(() -> compare(from, to, snapshots));
+
+            if (captured < runStarts.length)
+                timeline.schedule(1, this::capture);
+        }
+
+        /**
+         * Records which positions of a run another effect holds as its chunk is
+         * captured, since the ownership index can only be read on the main thread
+         */
+        private void recordHeld(int run) {
+
+            if (ownership == null || ownership.size() == 0)
+                return;
+
+            int end = run + 1 < runStarts.length ? runStarts[run + 1] : positions.length;
+            for (int i = runStarts[run]; i < end; i++) {
+                if (ownership.getOwners(positions[i]) > 0) {
+                    if (held == null)
+                        held = new boolean[positions.length];
+                    held[i] = true;
+                }
+            }
+        }
+
+        void compare(int from, int to, ChunkSnapshot[] snapshots) {
+
+            for (int run = from; run < to; run++) {
+
+                ChunkSnapshot snapshot = snapshots[run - from];
+                int end = run + 1 < runStarts.length ? runStarts[run + 1] : positions.length;
+
+                for (int i = runStarts[run]; i < end; i++) {
+                    long pos = positions[i];
+                    int y = BlockPos.getY(pos);
+                    // nothing can be placed outside the world's height
+                    current[i] = snapshot == null || y < 0 || y > 255 ? LEFT_OUT
+                            : BlockStates.of(snapshot, BlockPos.getLocalX(pos), y, BlockPos.getLocalZ(pos));
+                }
+            }
+
+            // the last slice to finish sees every other slice's states through the
+            // counter
+            if (remaining.addAndGet(from - to) == 0)
+                collect();
+        }
+
+        void collect() {
+
+            long[] changed = new long[positions.length], unchanged = new long[positions.length];
+            long[] heldUnchanged = new long[held == null ? 0 : positions.length];
+            int changedCount = 0, unchangedCount = 0, heldCount = 0;
+
+            for (int i = 0; i < positions.length; i++) {
+                if (current[i] == state) {
+                    unchanged[unchangedCount++] = positions[i];
+                    if (held != null && held[i])
+                        heldUnchanged[heldCount++] = positions[i];
+                } else if (current[i] != LEFT_OUT) {
+                    changed[changedCount++] = positions[i];
+                }
+            }
+
+            checkedBlocks.add(changedCount + unchangedCount);
+            unchangedBlocks.add(unchangedCount);
+
+            Result result = new Result(Arrays.copyOf(changed, changedCount), Arrays.copyOf(unchanged, unchangedCount),
+                    Arrays.copyOf(heldUnchanged, heldCount));
+            timeline.schedule(0, () -> onFiltered.accept(result));
+        }
+
+    }
+
+}
@@ -2,60 +2,296 @@ package com.makotomiyamoto.gameeffects.task;
 
 import com.makotomiyamoto.gameeffects.GameEffects;
 import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.RingAnimation;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
-import org.bukkit.Material;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.LongStream;
 
-public final class DrawTemporaryCircle implements Runnable {
+public final class DrawTemporaryCircle implements Runnable, AdmissionController.Request {
+
+    private static final int MIN_SORT_SLICE = 1 << 14; // positions sorted by one task at least
+
+    private static final long HOLD_TICKS = 20L;
+
+    private static final long TICKS_PER_FRAME = 1L;
+
+    /**
+     * How the circle is drawn: by changing the world, or by only showing the
+     * change to nearby players
+     *
+     */
+    public static enum Mode {
+        WORLD, GHOST
+    }
 
     private Location center;
     private int radius, decrementRadii;
+    private Mode mode;
+    private boolean animated;
     private GameEffects api;
 
     public DrawTemporaryCircle(Location center, int radius, int decrementRadii, GameEffects api) {
+        this(center, radius, decrementRadii, Mode.WORLD, api);
+    }
+
+    public DrawTemporaryCircle(Location center, int radius, int decrementRadii, Mode mode, GameEffects api) {
+        this(center, radius, decrementRadii, mode, false, api);
+    }
+
+    /**
+     * @param animated - whether the ring expands out of the center one radius
+     *                 per tick, with {@link AnimatedRingEffect}, instead of
+     *                 appearing at once
+     */
+    public DrawTemporaryCircle(Location center, int radius, int decrementRadii, Mode mode, boolean animated,
+                               GameEffects api) {
         this.center = center;
         this.radius = radius;
         this.decrementRadii = decrementRadii;
+        this.mode = mode;
+        this.animated = animated;
         this.api = api;
     }
 
+    /**
+     * @return how many blocks the ring covers, estimated from its area; an
+     *         animated ring sweeps the whole disc inside it
+     */
     @Override
-    public void run() {
-
-        api.getServer().broadcastMessage(ChatColor.AQUA + "Drawing circle...");
+    public long getCost() {
+        return animated ? CircleGenerator.estimateAnnulusPoints(0, getOuterRadius()) : estimateRing(radius,
+                decrementRadii);
+    }
 
-        HashSet<Location> circle = new HashSet<>();
+    /**
+     * Thins the ring, keeping its outer edge where it is. An animated ring
+     * sweeps the same disc however thin it is, so it cannot be degraded.
+     */
+    @Override
+    public DrawTemporaryCircle degrade(long maxCost) {
 
-        do {
+        if (animated)
+            return null;
 
-            circle.addAll(CircleGenerator.generateCircle(center, radius - decrementRadii,
-                    CircleGenerator.Plane.XZ, true, true));
+        // cost grows with thickness, so find the thickest ring that still fits
+        int low = 1, high = decrementRadii - 1, best = 0;
+        while (low <= high) {
+            int thickness = (low + high) >>> 1;
+            if (estimateRing(radius, thickness) <= maxCost) {
+                best = thickness;
+                low = thickness + 1;
+            } else {
+                high = thickness - 1;
+            }
+        }
 
-            decrementRadii--;
+        return best == 0 ? null : new DrawTemporaryCircle(center, radius, best, mode, api);
+    }
 
-        } while (decrementRadii > 0);
+    /**
+     * Prepares the ring off the main thread
+     */
+    @Override
+    public void start() {
+        api.getServer().broadcastMessage(ChatColor.AQUA + "Drawing circle...");
+        api.getServer().getScheduler().runTaskAsynchronously(api, this);
+    }
 
-        HashMap<Location, Material> circleBlockCache = new HashMap<>();
+    /**
+     * Builds the ring, or the frames of its animation, then hands it to the main
+     * thread; nothing but the shape is touched here, since the server and the
+     * ownership index may only be used from the main thread
+     */
+    @Override
+    public void run() {
 
-        for (Location loc : circle) {
-            circleBlockCache.put(loc, loc.getBlock().getType());
-            loc.getBlock().setType(Material.AIR);
+        if (animated) {
+            // the first frame is a disc, and the last the ring
+            int thickness = getOuterRadius() - (radius - decrementRadii) + 1;
+            RingAnimation animation = new RingAnimation(thickness - 1, getOuterRadius(), thickness,
+                    CircleGenerator.Plane.XZ);
+            api.getEffectTimeline().schedule(0L, () -> startAnimation(animation));
+            return;
         }
 
+        long[] positions;
         try {
-            wait(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            positions = buildRing(center, radius, decrementRadii, api.getPreparationPool());
+        } catch (RejectedExecutionException e) {
+            return; // the plugin is being disabled
         }
 
-        for (Location loc : circleBlockCache.keySet()) {
-            loc.getBlock().setType(circleBlockCache.get(loc));
+        api.getEffectTimeline().schedule(0L, () -> startEffect(positions));
+
+    }
+
+    private void startEffect(long[] positions) {
+
+        TemporaryEffect effect;
+        if (mode == Mode.GHOST)
+            effect = new GhostBlockEffect(api.getGhostBlockSender(), center.getWorld(), positions, BlockStates.AIR,
+                    api.getServer().getViewDistance(), HOLD_TICKS);
+        else
+            effect = new TemporaryBlockEffect(api.getBlockChangeScheduler(), api.getSnapshotJournal(), api.getLogger(),
+                    api.getBlockOwnership(center.getWorld()), center.getWorld(), positions, BlockStates.AIR,
+                    HOLD_TICKS)
+                    .skipUnloadedChunks(api.isSkippingUnloadedChunks())
+                    .prefilter(api.isPrefilteringBlocks() ? api.getChunkSnapshotFilter() : null);
+
+        start(effect);
+
+    }
+
+    private void startAnimation(RingAnimation animation) {
+
+        TemporaryEffect effect;
+        if (mode == Mode.GHOST)
+            effect = AnimatedRingEffect.asGhost(api.getGhostBlockSender(), api.getServer().getViewDistance(),
+                    api.getEffectTimeline(), center, animation, BlockStates.AIR, TICKS_PER_FRAME, HOLD_TICKS);
+        else
+            effect = AnimatedRingEffect.inWorld(api.getBlockChangeScheduler(), api.getSnapshotJournal(),
+                    api.getLogger(), api.getBlockOwnership(center.getWorld()), api.getEffectTimeline(), center,
+                    animation, BlockStates.AIR, TICKS_PER_FRAME, HOLD_TICKS);
+
+        start(effect);
+
+    }
+
+    private void start(TemporaryEffect effect) {
+        effect.whenFinished(() -> api.getServer().broadcastMessage(ChatColor.GREEN + "Circle reiterated!"));
+        api.getEffectTimeline().start(effect, 0L);
+    }
+
+    /**
+     * @return the outer radius of the ring, just inside radius unless there is
+     *         nothing to decrement
+     */
+    private int getOuterRadius() {
+        return decrementRadii > 0 ? radius - 1 : radius;
+    }
+
+    /**
+     * Estimates how many blocks the thick ring this task draws covers, without
+     * generating it
+     *
+     * @param radius         - the radius just outside the ring
+     * @param decrementRadii - how many radii inward the ring is thick
+     * @return about how many blocks buildRing would return
+     * @throws IllegalArgumentException if decrementRadii is negative or greater
+     *                                  than radius, or radius is greater than
+     *                                  46340
+     */
+    public static long estimateRing(int radius, int decrementRadii) {
+        return CircleGenerator.estimateAnnulusPoints(radius - decrementRadii, decrementRadii > 0 ? radius - 1 : radius);
+    }
+
+    /**
+     * Generates the thick ring this task draws and packs its absolute positions,
+     * sorted so that they are grouped by chunk and section
+     *
+     * @param center         - the centerpoint of the ring
+     * @param radius         - the radius just outside the ring
+     * @param decrementRadii - how many radii inward the ring is thick
+     * @return the ring's block positions, packed with BlockPos
+     */
+    public static long[] buildRing(Location center, int radius, int decrementRadii) {
+        return buildRing(center, radius, decrementRadii, null);
+    }
+
+    /**
+     * Like buildRing(center, radius, decrementRadii), but rasterizes the ring
+     * and sorts its positions on a fork/join pool when it is large
+     *
+     * @param center         - the centerpoint of the ring
+     * @param radius         - the radius just outside the ring
+     * @param decrementRadii - how many radii inward the ring is thick
+     * @param pool           - the pool to prepare the ring on, or null to
+     *                       prepare it on the calling thread
+     * @return the ring's block positions, packed with BlockPos
+     * @throws RejectedExecutionException if the pool has been shut down
+     */
+    public static long[] buildRing(Location center, int radius, int decrementRadii, ForkJoinPool pool) {
+
+        // the rings from radius - decrementRadii up to radius - 1 (or just radius
+        // when there is nothing to decrement), generated as one annulus
+        int innerRadius = radius - decrementRadii, outerRadius = decrementRadii > 0 ? radius - 1 : radius;
+        int x = center.getBlockX(), y = center.getBlockY(), z = center.getBlockZ();
+        long[] positions;
+
+        if (estimateRing(radius, decrementRadii) > CircleGenerator.getCache().getMaxWeight() / 4) {
+            // a ring this large would push most other shapes out of the cache for a
+            // single use, so stream it instead
+            LongStream offsets = CircleGenerator.streamAnnulus(innerRadius, outerRadius, CircleGenerator.Plane.XZ)
+                    .map(offset -> BlockPos.pack(x + ShapeMask.unpackX(offset), y + ShapeMask.unpackY(offset),
+                            z + ShapeMask.unpackZ(offset)));
+            // a parallel stream run from inside a pool forks onto that pool
+            positions = pool == null || pool.getParallelism() < 2 ? offsets.toArray()
+                    : pool.submit(() -> offsets.parallel().toArray()).join();
+        } else {
+            ShapeMask circle = CircleGenerator.generateAnnulusMask(innerRadius, outerRadius, CircleGenerator.Plane.XZ,
+                    pool);
+            positions = new long[circle.size()];
+            for (int i = 0; i < circle.size(); i++)
+                positions[i] = BlockPos.pack(x + circle.getX(i), y + circle.getY(i), z + circle.getZ(i));
+        }
+
+        if (pool == null || pool.getParallelism() < 2 || positions.length < 2 * MIN_SORT_SLICE)
+            Arrays.sort(positions);
+        else
+            pool.invoke(new SortSlice(positions, new long[positions.length], 0, positions.length));
+
+        return positions;
+    }
+
+    /**
+     * Sorts a range of positions, splitting it in half and merging the sorted
+     * halves once both are done
+     *
+     */
+    private static final class SortSlice extends RecursiveAction {
+
+        private final long[] positions, scratch;
+
+        private final int from, to;
+
+        SortSlice(long[] positions, long[] scratch, int from, int to) {
+            this.positions = positions;
+            this.scratch = scratch;
+            this.from = from;
+            this.to = to;
         }
 
-        api.getServer().broadcastMessage(ChatColor.GREEN + "Circle reiterated!");
+        @Override
+        protected void compute() {
+
+            if (to - from < 2 * MIN_SORT_SLICE) {
+                Arrays.sort(positions, from, to);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new SortSlice(positions, scratch, from, middle), new SortSlice(positions, scratch, middle, to));
+
+            // merge the sorted halves through the scratch range they share with no
+            // other task
+            int i = from, j = middle, k = from;
+            while (i < middle && j < to)
+                scratch[k++] = positions[i] <= positions[j] ? positions[i++] : positions[j++];
+            while (i < middle)
+                scratch[k++] = positions[i++];
+            while (j < to)
+                scratch[k++] = positions[j++];
+
+            System.arraycopy(scratch, from, positions, from, to - from);
+        }
 
     }
 
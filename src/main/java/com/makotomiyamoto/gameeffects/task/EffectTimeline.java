@@ -0,0 +1,185 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel that runs delayed events on the main thread.
+ *
+ * Registered as a repeating sync task, {@link #run()} advances the wheel by one
+ * tick and runs the events that are due. Waiting events are plain entries in
+ * the wheel's slots, so thousands of temporary effects can be waiting at once
+ * without holding a thread or a scheduler task each.
+ *
+ * An event that throws is logged and does not stop the events after it.
+ *
+ */
+public final class EffectTimeline implements Runnable {
+
+    private static final int WHEEL_SIZE = 512; // must be a power of two
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final Event[] slots = new Event[WHEEL_SIZE]; // heads of singly linked lists
+
+    private final ConcurrentLinkedQueue<Event> incoming = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicInteger activeEffects = new AtomicInteger();
+
+    private final LongAdder startedEffects = new LongAdder();
+
+    private final Logger logger;
+
+    private volatile long tick;
+
+    /**
+     * @param logger - reports events that threw
+     */
+    public EffectTimeline(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Schedules a task to run on the main thread after a number of ticks. Safe to
+     * call from any thread.
+     *
+     * @param delayTicks - how many ticks to wait; values below 1 run the task on
+     *                   the next tick
+     * @param task       - the task to run
+     */
+    public void schedule(long delayTicks, Runnable task) {
+        pending.incrementAndGet();
+        incoming.add(new Event(tick + Math.max(delayTicks, 1), task));
+    }
+
+    /**
+     * Starts a temporary effect after a number of ticks and counts it as active
+     * until it has been restored. Safe to call from any thread.
+     *
+     * @param effect     - the effect to start
+     * @param delayTicks - how many ticks to wait before applying it
+     */
+    public void start(TemporaryEffect effect, long delayTicks) {
+        activeEffects.incrementAndGet();
+        startedEffects.increment();
+        effect.whenFinished(activeEffects::decrementAndGet);
+        schedule(delayTicks, () -> effect.apply(() -> schedule(effect.getHoldTicks(), () -> effect.restore(effect::finish))));
+    }
+
+    /**
+     * Advances the wheel by one tick and runs every event that is due. Must be run
+     * on the main thread.
+     */
+    @Override
+    public void run() {
+
+        long now = ++tick;
+
+        Event event;
+        while ((event = incoming.poll()) != null) {
+            int slot = (int) (Math.max(event.deadline, now) & WHEEL_MASK);
+            event.next = slots[slot];
+            slots[slot] = event;
+        }
+
+        int slot = (int) (now & WHEEL_MASK);
+        Event previous = null;
+        event = slots[slot];
+
+        while (event != null) {
+
+            Event next = event.next;
+
+            if (event.deadline <= now) { // later laps of the wheel stay in the slot
+                if (previous == null)
+                    slots[slot] = next;
+                else
+                    previous.next = next;
+
+                pending.decrementAndGet();
+                runTask(event);
+            } else {
+                previous = event;
+            }
+
+            event = next;
+        }
+    }
+
+    /**
+     * Runs every waiting event right away, ignoring deadlines, until none are
+     * left. Used when the plugin is disabled so temporary effects are restored
+     * before the server stops. Must be run on the main thread.
+     */
+    public void flush() {
+
+        while (pending.get() > 0) {
+
+            Event event;
+            while ((event = incoming.poll()) != null) {
+                pending.decrementAndGet();
+                runTask(event);
+            }
+
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                event = slots[slot];
+                slots[slot] = null;
+                while (event != null) {
+                    pending.decrementAndGet();
+                    runTask(event);
+                    event = event.next;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events waiting to run
+     */
+    public int getPendingEvents() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of effects started that have not finished restoring
+     */
+    public int getActiveEffects() {
+        return activeEffects.get();
+    }
+
+    /**
+     * @return the number of effects started since the timeline was created
+     */
+    public long getStartedEffects() {
+        return startedEffects.sum();
+    }
+
+    private void runTask(Event event) {
+        try {
+            event.task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "An effect event threw, the events after it still run", e);
+        }
+    }
+
+    private static final class Event {
+
+        final long deadline;
+
+        final Runnable task;
+
+        Event next;
+
+        Event(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+    }
+
+}
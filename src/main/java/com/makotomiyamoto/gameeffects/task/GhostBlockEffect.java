@@ -0,0 +1,124 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Temporarily shows a group of blocks as one state to the players who can see
+ * them, then shows them their real states again. The world itself is never
+ * changed, so there is nothing to light, save or journal, and nothing is left
+ * behind if the server stops.
+ *
+ * Players are chosen when the effect is applied: everyone in the world within
+ * view distance of a chunk the effect touches. Only they are sent the revert.
+ *
+ */
+public final class GhostBlockEffect extends TemporaryEffect {
+
+    private final GhostBlockSender sender;
+
+    private final World world;
+
+    private final long[] positions;
+
+    private final int state;
+
+    private final int viewDistance;
+
+    private List<Player> viewers;
+
+    /**
+     * @param sender       - sends the block changes
+     * @param world        - the world the positions are in
+     * @param positions    - positions packed with BlockPos
+     * @param state        - the state to show the blocks as, encoded with
+     *                     BlockStates
+     * @param viewDistance - how many chunks away players can see, usually the
+     *                     server's view distance
+     * @param holdTicks    - how many ticks to show the blocks before reverting
+     *                     them
+     */
+    public GhostBlockEffect(GhostBlockSender sender, World world, long[] positions, int state, int viewDistance,
+                            long holdTicks) {
+        super(holdTicks);
+        this.sender = sender;
+        this.world = world;
+        this.positions = positions;
+        this.state = state;
+        this.viewDistance = viewDistance;
+    }
+
+    @Override
+    protected void apply(Runnable onApplied) {
+        viewers = findViewers();
+        sendToViewers(state, onApplied);
+    }
+
+    @Override
+    protected void restore(Runnable onRestored) {
+        sendToViewers(BlockStates.NONE, onRestored);
+    }
+
+    private void sendToViewers(int state, Runnable onSent) {
+
+        if (viewers.isEmpty()) {
+            onSent.run();
+            return;
+        }
+
+        int[] remaining = { viewers.size() };
+        Runnable onViewerSent = () -> {
+            if (--remaining[0] == 0)
+                onSent.run();
+        };
+
+        for (Player viewer : viewers)
+            sender.send(viewer, world, positions, state, onViewerSent);
+    }
+
+    private List<Player> findViewers() {
+
+        if (positions.length == 0)
+            return new ArrayList<>();
+
+        int minChunkX = Integer.MAX_VALUE, minChunkZ = Integer.MAX_VALUE;
+        int maxChunkX = Integer.MIN_VALUE, maxChunkZ = Integer.MIN_VALUE;
+
+        for (long pos : positions) {
+            int chunkX = BlockPos.getChunkX(pos), chunkZ = BlockPos.getChunkZ(pos);
+            minChunkX = Math.min(minChunkX, chunkX);
+            maxChunkX = Math.max(maxChunkX, chunkX);
+            minChunkZ = Math.min(minChunkZ, chunkZ);
+            maxChunkZ = Math.max(maxChunkZ, chunkZ);
+        }
+
+        return findViewers(world, minChunkX - viewDistance, minChunkZ - viewDistance, maxChunkX + viewDistance,
+                maxChunkZ + viewDistance);
+    }
+
+    /**
+     * @return every player in the world standing in a chunk within the bounds,
+     *         all inclusive
+     */
+    static List<Player> findViewers(World world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+
+        List<Player> found = new ArrayList<>();
+
+        for (Player player : world.getPlayers()) {
+            Location location = player.getLocation();
+            int chunkX = location.getBlockX() >> 4, chunkZ = location.getBlockZ() >> 4;
+
+            if (chunkX >= minChunkX && chunkX <= maxChunkX && chunkZ >= minChunkZ && chunkZ <= maxChunkZ)
+                found.add(player);
+        }
+
+        return found;
+    }
+
+}
@@ -0,0 +1,296 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends client-side block changes that never touch the world.
+ *
+ * Changes are queued per player and sent when {@link #run()} is registered as
+ * a repeating sync task, at most a fixed number per player per tick so a large
+ * effect cannot flood a client. Queues of players who have gone offline are
+ * dropped, as are changes to a world the player is no longer in, and their
+ * callbacks are run so effects still finish.
+ *
+ * Reverts are usually sent to several players at once. Players reverting the
+ * same positions array share its real states, which are read from the world
+ * once per chunk per tick however many of them are sent it.
+ *
+ * Not thread-safe; use it from the main thread. Only the counters may be read
+ * from other threads.
+ *
+ */
+public final class GhostBlockSender implements Runnable {
+
+    private final LinkedHashMap<UUID, PlayerQueue> queues = new LinkedHashMap<>();
+
+    private final IdentityHashMap<long[], RealStates> reverting = new IdentityHashMap<>(); // by the positions
+    // queued to revert
+
+    private final ArrayDeque<Runnable> completed = new ArrayDeque<>(); // run after draining, since they may
+    // queue more changes
+
+    private final Location location = new Location(null, 0, 0, 0); // reused for every change sent
+
+    private final LongAdder sentChanges = new LongAdder();
+
+    private int maxChangesPerPlayer;
+
+    private volatile long queuedChanges; // only written on the main thread, but read from any thread
+
+    private int drains; // real states read in an earlier drain are read again
+
+    /**
+     * @param maxChangesPerPlayer - how many changes each player may be sent per
+     *                            tick
+     */
+    public GhostBlockSender(int maxChangesPerPlayer) {
+        setMaxChangesPerPlayer(maxChangesPerPlayer);
+    }
+
+    /**
+     * Queues block changes for one player. Must be called on the main thread.
+     *
+     * @param player    - who sees the changes
+     * @param world     - the world the positions are in
+     * @param positions - positions packed with BlockPos
+     * @param state     - the state to show, encoded with BlockStates, or
+     *                  BlockStates.NONE to show each block's real state again
+     * @param onSent    - run once every change has been sent, or the player
+     *                  has gone offline
+     */
+    public void send(Player player, World world, long[] positions, int state, Runnable onSent) {
+
+        PlayerQueue queue = queues.get(player.getUniqueId());
+        if (queue == null) {
+            queue = new PlayerQueue(player);
+            queues.put(player.getUniqueId(), queue);
+        }
+
+        RealStates realStates = null;
+        if (state == BlockStates.NONE) {
+            realStates = reverting.get(positions);
+            if (realStates == null || realStates.world != world) {
+                realStates = new RealStates(world, positions);
+                reverting.put(positions, realStates);
+            }
+            realStates.batches++;
+        }
+
+        queue.batches.add(new Batch(world, positions, state, realStates, onSent));
+        queuedChanges += positions.length;
+    }
+
+    /**
+     * Sends each player's queued changes, up to the per-player limit. Must be run
+     * on the main thread.
+     */
+    @Override
+    public void run() {
+        drain(maxChangesPerPlayer);
+    }
+
+    /**
+     * Sends every queued change right away, ignoring the per-player limit. Must
+     * be run on the main thread.
+     */
+    public void flush() {
+        drain(Integer.MAX_VALUE);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void drain(int limit) {
+
+        drains++;
+
+        Iterator<PlayerQueue> iterator = queues.values().iterator();
+        while (iterator.hasNext()) {
+
+            PlayerQueue queue = iterator.next();
+            boolean online = queue.player.isOnline();
+            int budget = limit;
+
+            Batch batch;
+            while ((batch = queue.batches.peek()) != null) {
+
+                // a player who left the world no longer has its blocks to change
+                // or revert, so just drop the rest
+                boolean sending = online && queue.player.getWorld() == batch.world;
+                if (sending && budget <= 0)
+                    break;
+
+                int end = sending ? (int) Math.min(batch.positions.length, (long) batch.cursor + budget)
+                        : batch.positions.length;
+                location.setWorld(batch.world);
+
+                for (int i = batch.cursor; sending && i < end; i++) {
+
+                    int state = batch.realStates != null ? batch.realStates.get(i, drains) : batch.state;
+                    if (state == BlockStates.NONE)
+                        continue; // clients do not have unloaded chunks, so there is nothing to revert
+
+                    long pos = batch.positions[i];
+                    location.setX(BlockPos.getX(pos));
+                    location.setY(BlockPos.getY(pos));
+                    location.setZ(BlockPos.getZ(pos));
+                    queue.player.sendBlockChange(location, BlockStates.getType(state), BlockStates.getData(state));
+                }
+
+                if (sending) {
+                    sentChanges.add(end - batch.cursor);
+                    budget -= end - batch.cursor;
+                }
+
+                queuedChanges -= end - batch.cursor;
+                batch.cursor = end;
+
+                if (batch.cursor < batch.positions.length)
+                    break; // out of budget in the middle of the batch
+
+                queue.batches.poll();
+                if (batch.realStates != null && --batch.realStates.batches == 0)
+                    reverting.remove(batch.positions, batch.realStates);
+                completed.add(batch.onSent);
+            }
+
+            if (queue.batches.isEmpty())
+                iterator.remove();
+        }
+
+        location.setWorld(null); // do not keep a world loaded through the reused location
+
+        Runnable onSent;
+        while ((onSent = completed.poll()) != null)
+            onSent.run();
+    }
+
+    public void setMaxChangesPerPlayer(int maxChangesPerPlayer) {
+
+        if (maxChangesPerPlayer <= 0)
+            throw new IllegalArgumentException("Changes per player must be positive!");
+
+        this.maxChangesPerPlayer = maxChangesPerPlayer;
+    }
+
+    public int getMaxChangesPerPlayer() {
+        return maxChangesPerPlayer;
+    }
+
+    /**
+     * @return the number of queued changes that have not been sent yet
+     */
+    public long getQueuedChanges() {
+        return queuedChanges;
+    }
+
+    /**
+     * @return how many changes have been sent to players, counting the ones
+     *         skipped because their chunk was not loaded
+     */
+    public long getSentChanges() {
+        return sentChanges.sum();
+    }
+
+    private static final class PlayerQueue {
+
+        final Player player;
+
+        final ArrayDeque<Batch> batches = new ArrayDeque<>();
+
+        PlayerQueue(Player player) {
+            this.player = player;
+        }
+
+    }
+
+    private static final class Batch {
+
+        final World world;
+
+        final long[] positions;
+
+        final int state;
+
+        final RealStates realStates; // read for each position instead of state when reverting
+
+        final Runnable onSent;
+
+        int cursor;
+
+        Batch(World world, long[] positions, int state, RealStates realStates, Runnable onSent) {
+            this.world = world;
+            this.positions = positions;
+            this.state = state;
+            this.realStates = realStates;
+            this.onSent = onSent;
+        }
+
+    }
+
+    /**
+     * The real states of positions being reverted, shared by every batch
+     * reverting them. States are read a chunk at a time and only reused within
+     * the drain they were read in, so a revert never shows a state older than
+     * the tick it is sent in.
+     *
+     */
+    private static final class RealStates {
+
+        final World world;
+
+        final long[] positions;
+
+        final int[] states; // BlockStates.NONE where the chunk is not loaded
+
+        final int[] readIn; // the drain each state was read in
+
+        int batches; // batches still reverting the positions
+
+        RealStates(World world, long[] positions) {
+            this.world = world;
+            this.positions = positions;
+            this.states = new int[positions.length];
+            this.readIn = new int[positions.length];
+        }
+
+        int get(int index, int drain) {
+
+            if (readIn[index] != drain)
+                readChunk(index, drain);
+
+            return states[index];
+        }
+
+        /**
+         * Reads the states of the positions from an index on that are in the same
+         * chunk
+         */
+        private void readChunk(int from, int drain) {
+
+            long chunkKey = BlockPos.getChunkKey(positions[from]);
+            int chunkX = BlockPos.getChunkX(positions[from]), chunkZ = BlockPos.getChunkZ(positions[from]);
+            Chunk chunk = world.isChunkLoaded(chunkX, chunkZ) ? world.getChunkAt(chunkX, chunkZ) : null;
+
+            for (int i = from; i < positions.length && BlockPos.getChunkKey(positions[i]) == chunkKey; i++) {
+                long pos = positions[i];
+                states[i] = chunk == null ? BlockStates.NONE
+                        : BlockStates.of(chunk.getBlock(BlockPos.getLocalX(pos), BlockPos.getY(pos),
+                        BlockPos.getLocalZ(pos)));
+                readIn[i] = drain;
+            }
+        }
+
+    }
+
+}
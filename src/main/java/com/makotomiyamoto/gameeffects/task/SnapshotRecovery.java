@@ -0,0 +1,114 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.world.BlockSnapshot;
+import com.makotomiyamoto.gameeffects.world.SnapshotJournal;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldLoadEvent;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts back the blocks of every effect that was still in progress when the
+ * server last stopped without disabling the plugin, e.g. on a crash.
+ *
+ * The snapshots of a world are restored, newest first, once it is loaded:
+ * right away for the worlds loaded when the plugin is enabled, and on
+ * {@link WorldLoadEvent} for the others. Each snapshot is only released from
+ * the journal once its restore batch has completed, so a snapshot whose world
+ * never loaded, or a crash during the restore, leaves it to the next start.
+ *
+ * Not thread-safe; use it from the main thread.
+ *
+ */
+public final class SnapshotRecovery implements Listener {
+
+    private final SnapshotJournal journal;
+
+    private final BlockChangeScheduler scheduler;
+
+    private final Logger logger;
+
+    private final LinkedHashMap<Long, BlockSnapshot> pending; // by journal id, newest first
+
+    /**
+     * Reads the snapshots left in a journal
+     *
+     * @param journal   - the journal to recover and release the snapshots from
+     * @param scheduler - applies the restores
+     * @param logger    - reports restores and snapshots that could not be
+     *                  released
+     */
+    public SnapshotRecovery(SnapshotJournal journal, BlockChangeScheduler scheduler, Logger logger) {
+        this.journal = journal;
+        this.scheduler = scheduler;
+        this.logger = logger;
+        this.pending = journal.recover();
+    }
+
+    /**
+     * Submits the restores of a world's snapshots, newest first. Effects
+     * submitted afterwards find the blocks restored, since the scheduler
+     * applies batches in order.
+     *
+     * @param world - a loaded world
+     * @return the number of blocks submitted for restoring
+     */
+    public int restore(World world) {
+
+        int restored = 0;
+        Iterator<Map.Entry<Long, BlockSnapshot>> entries = pending.entrySet().iterator();
+
+        while (entries.hasNext()) {
+
+            Map.Entry<Long, BlockSnapshot> entry = entries.next();
+            BlockSnapshot snapshot = entry.getValue();
+            if (!snapshot.getWorldId().equals(world.getUID()))
+                continue;
+
+            long id = entry.getKey();
+            scheduler.submit(BlockChangeBatch.restore(world, snapshot).whenComplete(() -> release(id)));
+            restored += snapshot.size();
+            entries.remove();
+        }
+
+        return restored;
+    }
+
+    @EventHandler
+    public void onWorldLoad(WorldLoadEvent event) {
+
+        int restored = restore(event.getWorld());
+        if (restored > 0)
+            logger.info("Restoring " + restored + " blocks left behind in " + event.getWorld().getName()
+                    + " by interrupted effects.");
+    }
+
+    /**
+     * @return the number of blocks waiting for their world to load
+     */
+    public int getPendingBlocks() {
+
+        int blocks = 0;
+        for (BlockSnapshot snapshot : pending.values())
+            blocks += snapshot.size();
+
+        return blocks;
+    }
+
+    private void release(long id) {
+        try {
+            journal.release(id);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not release a recovered snapshot, its blocks may be restored "
+                    + "again after a crash", e);
+        }
+    }
+
+}
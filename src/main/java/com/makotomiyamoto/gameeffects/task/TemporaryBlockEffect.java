@@ -0,0 +1,259 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockSnapshot;
+import com.makotomiyamoto.gameeffects.world.SnapshotJournal;
+import org.bukkit.World;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Temporarily sets a group of blocks to one state, then puts back whatever was
+ * there before. Block changes go through a {@link BlockChangeScheduler}, and
+ * the original states are journaled while they are held so they can still be
+ * restored after a crash. Each slice of blocks is journaled before it is
+ * written, so recovery never finds a changed block without its original; a
+ * slice that cannot be journaled is logged and left unchanged.
+ *
+ * The blocks are held through the world's {@link BlockOwnershipIndex}, so
+ * effects that overlap share the original states: a block is only restored by
+ * the last effect releasing it, and never to a state another effect placed.
+ *
+ * With a {@link ChunkSnapshotFilter}, blocks already in the effect's state are
+ * found off the main thread and left out, so only the blocks that change are
+ * read and written on the main thread. Blocks left out are still held if
+ * another effect holds them, so that effect does not restore them while this
+ * one expects them in place. Blocks that only matched because another effect
+ * held them when they were read, and that it has released since, are changed
+ * after all.
+ *
+ */
+public final class TemporaryBlockEffect extends TemporaryEffect {
+
+    private final BlockChangeScheduler scheduler;
+
+    private final SnapshotJournal journal;
+
+    private final Logger logger;
+
+    private final BlockOwnershipIndex ownership;
+
+    private final World world;
+
+    private final long[] positions;
+
+    private final int state;
+
+    private boolean skipUnloadedChunks;
+
+    private ChunkSnapshotFilter filter;
+
+    private long[] held; // the positions acquired in the ownership index
+
+    private long[] journalIds = new long[8]; // one per slice of blocks applied
+
+    private int journalIdCount;
+
+    /**
+     * @param scheduler - applies the block changes
+     * @param journal   - records the original states until they are restored,
+     *                  or null to keep them in memory only
+     * @param logger    - reports originals that could not be journaled; may be
+     *                  null without a journal
+     * @param ownership - the index of held blocks of the world the positions
+     *                  are in
+     * @param world     - the world the positions are in
+     * @param positions - positions packed with BlockPos, best sorted so they
+     *                  are applied chunk by chunk
+     * @param state     - the state to hold the blocks at, encoded with
+     *                  BlockStates
+     * @param holdTicks - how many ticks to hold the blocks before restoring them
+     */
+    public TemporaryBlockEffect(BlockChangeScheduler scheduler, SnapshotJournal journal, Logger logger,
+                                BlockOwnershipIndex ownership, World world, long[] positions, int state,
+                                long holdTicks) {
+        super(holdTicks);
+        this.scheduler = scheduler;
+        this.journal = journal;
+        this.logger = logger;
+        this.ownership = ownership;
+        this.world = world;
+        this.positions = positions;
+        this.state = state;
+    }
+
+    /**
+     * @param skipUnloadedChunks - whether to leave out blocks in chunks that are
+     *                           not loaded when the effect is applied, instead
+     *                           of loading them
+     * @return this effect
+     */
+    public TemporaryBlockEffect skipUnloadedChunks(boolean skipUnloadedChunks) {
+        this.skipUnloadedChunks = skipUnloadedChunks;
+        return this;
+    }
+
+    /**
+     * @param filter - finds the blocks that are already in the effect's state
+     *               before it is applied, or null to change and read every block
+     *               on the main thread
+     * @return this effect
+     */
+    public TemporaryBlockEffect prefilter(ChunkSnapshotFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    @Override
+    protected void apply(Runnable onApplied) {
+
+        if (filter != null) {
+            filter.filter(world, positions, state, skipUnloadedChunks, ownership,
+                    result -> applyFiltered(result, onApplied));
+            return;
+        }
+
+        held = positions;
+        for (long pos : positions)
+            ownership.acquire(pos);
+
+        BlockChangeBatch batch = BlockChangeBatch.fill(world, positions, state).capturePrevious();
+        if (skipUnloadedChunks)
+            batch.skipUnloadedChunks();
+
+        scheduler.submit(batch.whenCaptured((from, to) -> recordOriginals(batch, from, to)).whenComplete(onApplied));
+    }
+
+    private void applyFiltered(ChunkSnapshotFilter.Result result, Runnable onApplied) {
+
+        long[] changed = result.getChanged(), unchanged = result.getUnchanged();
+        long[] heldUnchanged = result.getHeldUnchanged();
+
+        // hold what changes, and what already matches but another effect will
+        // want to restore; merging the two keeps sorted positions grouped by
+        // chunk for the restore
+        held = new long[changed.length + unchanged.length];
+        long[] shared = new long[unchanged.length]; // matching blocks held with another effect
+        long[] filled = heldUnchanged.length == 0 ? changed : new long[changed.length + heldUnchanged.length];
+        int count = 0, sharedCount = 0, filledCount = 0, i = 0, j = 0, h = 0;
+
+        while (i < changed.length || j < unchanged.length) {
+            if (j == unchanged.length || (i < changed.length && changed[i] < unchanged[j])) {
+                long pos = changed[i++];
+                ownership.acquire(pos);
+                held[count++] = pos;
+                filled[filledCount++] = pos;
+            } else {
+                long pos = unchanged[j++];
+                boolean wasHeld = h < heldUnchanged.length && heldUnchanged[h] == pos;
+                if (wasHeld)
+                    h++;
+
+                if (ownership.getOwners(pos) > 0) {
+                    ownership.acquire(pos);
+                    held[count++] = pos;
+                    shared[sharedCount++] = pos;
+                } else if (wasHeld) {
+                    // it only matched because the effect holding it then had set
+                    // it, and that effect has released it since
+                    ownership.acquire(pos);
+                    held[count++] = pos;
+                    filled[filledCount++] = pos;
+                }
+            }
+        }
+
+        if (count < held.length)
+            held = Arrays.copyOf(held, count);
+        if (filledCount < filled.length)
+            filled = Arrays.copyOf(filled, filledCount);
+
+        // this effect may be the last to release the shared blocks, so journal
+        // the originals the other holders recorded
+        if (sharedCount > 0) {
+            shared = Arrays.copyOf(shared, sharedCount);
+            int[] originals = new int[sharedCount];
+            for (int k = 0; k < sharedCount; k++)
+                originals[k] = ownership.getOriginal(shared[k]);
+
+            journal(BlockSnapshot.of(world.getUID(), shared, originals));
+        }
+
+        // the snapshots may predate another effect restoring a block, so the
+        // originals are read as the blocks are written
+        BlockChangeBatch batch = BlockChangeBatch.fill(world, filled, state).capturePrevious();
+        if (skipUnloadedChunks)
+            batch.skipUnloadedChunks();
+
+        scheduler.submit(batch.whenCaptured((from, to) -> recordOriginals(batch, from, to)).whenComplete(onApplied));
+    }
+
+    /**
+     * Records and journals the originals of a slice of blocks before the batch
+     * writes them, so recovery never finds a changed block it has no original
+     * for. Blocks another effect already held were captured with that effect's
+     * state, so the original it recorded is kept instead.
+     *
+     * @return false if the slice could not be journaled, so the batch leaves
+     *         it as it is; its recorded originals are then its current states,
+     *         which restoring puts back unchanged
+     */
+    private boolean recordOriginals(BlockChangeBatch batch, int from, int to) {
+
+        long[] positions = batch.getPositions();
+        int[] previous = batch.getPrevious();
+
+        long[] slice = from == 0 && to == positions.length ? positions : Arrays.copyOfRange(positions, from, to);
+        int[] originals = new int[to - from];
+        for (int i = from; i < to; i++)
+            originals[i - from] = ownership.recordOriginal(positions[i], previous[i]);
+
+        return journal(BlockSnapshot.of(world.getUID(), slice, originals));
+    }
+
+    private boolean journal(BlockSnapshot snapshot) {
+
+        if (journal == null || snapshot.size() == 0)
+            return true;
+
+        try {
+            if (journalIdCount == journalIds.length)
+                journalIds = Arrays.copyOf(journalIds, journalIdCount * 2);
+            journalIds[journalIdCount] = journal.append(snapshot);
+            journalIdCount++;
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not journal the originals of " + snapshot.size() + " blocks", e);
+            return false;
+        }
+    }
+
+    @Override
+    protected void restore(Runnable onRestored) {
+
+        int[] originals = new int[held.length]; // BlockStates.NONE where other effects still hold the block
+        for (int i = 0; i < held.length; i++)
+            originals[i] = ownership.release(held[i]);
+
+        BlockSnapshot snapshot = BlockSnapshot.of(world.getUID(), held, originals);
+        scheduler.submit(BlockChangeBatch.restore(world, snapshot).whenComplete(() -> {
+            if (journal != null) {
+                for (int i = 0; i < journalIdCount; i++) {
+                    try {
+                        journal.release(journalIds[i]);
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "Could not release a journaled snapshot, its blocks may be "
+                                + "restored again after a crash", e);
+                    }
+                }
+            }
+            journalIdCount = 0;
+
+            onRestored.run();
+        }));
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.makotomiyamoto.gameeffects.task;
+
+/**
+ * An effect that is applied, held for a number of ticks, and then restored.
+ *
+ * Effects are driven by an {@link EffectTimeline}: apply and restore are called
+ * on the main thread, and each reports back through its callback once its work
+ * is done, which may be several ticks later.
+ *
+ */
+public abstract class TemporaryEffect {
+
+    private final long holdTicks;
+
+    private Runnable onFinished;
+
+    /**
+     * @param holdTicks - how many ticks the effect stays applied before it is
+     *                  restored
+     */
+    protected TemporaryEffect(long holdTicks) {
+        this.holdTicks = holdTicks;
+    }
+
+    public long getHoldTicks() {
+        return holdTicks;
+    }
+
+    /**
+     * @param onFinished - run on the main thread once the effect has been
+     *                   restored
+     * @return this effect
+     */
+    public TemporaryEffect whenFinished(Runnable onFinished) {
+
+        Runnable previous = this.onFinished;
+        this.onFinished = previous == null ? onFinished : () -> {
+            previous.run();
+            onFinished.run();
+        };
+
+        return this;
+    }
+
+    /**
+     * Applies the effect. Called on the main thread.
+     *
+     * @param onApplied - to be run once the effect is fully applied
+     */
+    protected abstract void apply(Runnable onApplied);
+
+    /**
+     * Undoes the effect. Called on the main thread once the effect has been held.
+     *
+     * @param onRestored - to be run once the effect is fully undone
+     */
+    protected abstract void restore(Runnable onRestored);
+
+    final void finish() {
+        if (onFinished != null)
+            onFinished.run();
+    }
+
+}
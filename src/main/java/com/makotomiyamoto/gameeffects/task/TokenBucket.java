@@ -0,0 +1,80 @@
+package com.makotomiyamoto.gameeffects.task;
+
+/**
+ * A budget that refills at a steady rate per tick up to a fixed capacity, so
+ * spending can burst up to the capacity but averages out at the refill rate.
+ *
+ * Refills are worked out from the tick number passed in, so idle buckets cost
+ * nothing to keep. Not thread-safe.
+ *
+ */
+public final class TokenBucket {
+
+    private final long capacity;
+
+    private final long refillPerTick;
+
+    private long tokens;
+
+    private long lastTick;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param capacity      - the most tokens the bucket holds
+     * @param refillPerTick - how many tokens are added back every tick
+     * @param tick          - the current tick
+     */
+    public TokenBucket(long capacity, long refillPerTick, long tick) {
+
+        if (capacity < 0 || refillPerTick < 0)
+            throw new IllegalArgumentException("Capacity and refill rate cannot be negative!");
+
+        this.capacity = capacity;
+        this.refillPerTick = refillPerTick;
+        this.tokens = capacity;
+        this.lastTick = tick;
+    }
+
+    /**
+     * @param tick - the current tick
+     * @return how many tokens can be taken right now
+     */
+    public long getAvailable(long tick) {
+
+        if (tick > lastTick && refillPerTick > 0) {
+            long elapsed = tick - lastTick;
+            long ticksToFill = (capacity - tokens + refillPerTick - 1) / refillPerTick;
+            // saturate rather than overflow after a very long idle
+            tokens = elapsed >= ticksToFill ? capacity : tokens + elapsed * refillPerTick;
+        }
+        lastTick = Math.max(lastTick, tick);
+
+        return tokens;
+    }
+
+    /**
+     * Takes tokens, even if that leaves the bucket short; check getAvailable
+     * first to stay within budget
+     *
+     * @param cost - how many tokens to take
+     * @param tick - the current tick
+     */
+    public void take(long cost, long tick) {
+        getAvailable(tick);
+        tokens -= cost;
+    }
+
+    /**
+     * @param tick - the current tick
+     * @return whether the bucket has refilled completely
+     */
+    public boolean isFull(long tick) {
+        return getAvailable(tick) >= capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+}
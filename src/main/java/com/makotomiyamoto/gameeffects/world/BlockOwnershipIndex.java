@@ -0,0 +1,202 @@
+package com.makotomiyamoto.gameeffects.world;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which blocks of one world are held by temporary effects, so that
+ * overlapping effects share each block's original state instead of capturing
+ * one another's changes.
+ *
+ * Each held position maps to its original state and the number of effects
+ * holding it. Effects acquire their positions when they are applied and record
+ * the states they find; only the first real state recorded is kept as the
+ * original. When an effect releases its positions, only the ones no other
+ * effect still holds come back with their original state to restore, so
+ * blocks are put back exactly once, by the last effect holding them. While
+ * effects share a block, it shows the state of the one that changed it last.
+ *
+ * An open-addressing hash table with linear probing over primitive arrays, so
+ * holding millions of blocks boxes nothing. The table doubles when it is half
+ * full and halves when it falls below an eighth, so a burst of effects does
+ * not keep its memory once they are restored. Not thread-safe; use it from the
+ * main thread.
+ *
+ */
+public final class BlockOwnershipIndex {
+
+    private static final long EMPTY = Long.MIN_VALUE; // packs a block past the world border
+
+    private static final int MIN_CAPACITY = 64; // must be a power of two
+
+    private long[] keys;
+
+    private int[] originals;
+
+    private int[] owners;
+
+    private int size;
+
+    public BlockOwnershipIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Adds an owner to a position
+     *
+     * @param pos - position packed with BlockPos
+     * @return true if no effect held the position before
+     */
+    public boolean acquire(long pos) {
+
+        int slot = find(pos);
+        if (keys[slot] != EMPTY) {
+            owners[slot]++;
+            return false;
+        }
+
+        keys[slot] = pos;
+        originals[slot] = BlockStates.NONE;
+        owners[slot] = 1;
+
+        if (++size * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        return true;
+    }
+
+    /**
+     * Records the state found at a held position before an effect changed it.
+     * The state is only kept if no original has been recorded yet, since later
+     * effects find the state an earlier one placed.
+     *
+     * @param pos   - position packed with BlockPos
+     * @param state - the state found, or BlockStates.NONE if the position was
+     *              left alone
+     * @return the original state kept for the position, or BlockStates.NONE if
+     *         it is not known or the position is not held
+     */
+    public int recordOriginal(long pos, int state) {
+
+        int slot = find(pos);
+        if (keys[slot] == EMPTY)
+            return BlockStates.NONE;
+
+        if (originals[slot] == BlockStates.NONE)
+            originals[slot] = state;
+
+        return originals[slot];
+    }
+
+    /**
+     * @return the original state of a held position, or BlockStates.NONE if it
+     *         is not known or the position is not held
+     */
+    public int getOriginal(long pos) {
+
+        int slot = find(pos);
+        return keys[slot] == EMPTY ? BlockStates.NONE : originals[slot];
+    }
+
+    /**
+     * @return how many effects hold a position
+     */
+    public int getOwners(long pos) {
+
+        int slot = find(pos);
+        return keys[slot] == EMPTY ? 0 : owners[slot];
+    }
+
+    /**
+     * Removes an owner from a position
+     *
+     * @param pos - position packed with BlockPos
+     * @return the original state to restore if that was the last owner, or
+     *         BlockStates.NONE if other effects still hold the position or its
+     *         original is not known
+     */
+    public int release(long pos) {
+
+        int slot = find(pos);
+        if (keys[slot] == EMPTY)
+            return BlockStates.NONE;
+
+        if (--owners[slot] > 0)
+            return BlockStates.NONE;
+
+        int original = originals[slot];
+        int mask = keys.length - 1;
+
+        // shift later entries of the probe run back into the hole, so lookups never
+        // stop early at it
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                originals[hole] = originals[next];
+                owners[hole] = owners[next];
+                hole = next;
+            }
+        }
+
+        keys[hole] = EMPTY;
+
+        if (--size * 8 < keys.length && keys.length > MIN_CAPACITY)
+            rehash(keys.length / 2);
+
+        return original;
+    }
+
+    /**
+     * @return the number of positions held by at least one effect
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots of the table, for tests
+     */
+    int getCapacity() {
+        return keys.length;
+    }
+
+    private int find(long pos) {
+
+        int mask = keys.length - 1;
+        int slot = slot(pos);
+        while (keys[slot] != EMPTY && keys[slot] != pos)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    private int slot(long pos) {
+        long hash = pos * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+    }
+
+    private void rehash(int capacity) {
+
+        long[] oldKeys = keys;
+        int[] oldOriginals = originals, oldOwners = owners;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                originals[slot] = oldOriginals[i];
+                owners[slot] = oldOwners[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        originals = new int[capacity];
+        owners = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+}
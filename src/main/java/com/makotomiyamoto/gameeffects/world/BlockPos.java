@@ -0,0 +1,83 @@
+package com.makotomiyamoto.gameeffects.world;
+
+/**
+ * Packs absolute block coordinates into a single long.
+ *
+ * From the highest bits down, a packed position holds the chunk x (22 bits),
+ * the chunk z (22 bits), the y (12 bits), and the z and x within the chunk (4
+ * bits each). That covers the whole world border at any build height, and it
+ * means sorting packed positions groups them by chunk, then by chunk section,
+ * then row by row inside each section.
+ *
+ */
+public final class BlockPos {
+
+    private static final int LOCAL_BITS = 4;
+
+    private static final int Y_BITS = 12;
+
+    private static final int CHUNK_BITS = 22;
+
+    private static final long LOCAL_MASK = (1L << LOCAL_BITS) - 1;
+
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private static final int Y_SHIFT = 2 * LOCAL_BITS;
+
+    private static final int CHUNK_Z_SHIFT = Y_SHIFT + Y_BITS;
+
+    private static final int CHUNK_X_SHIFT = CHUNK_Z_SHIFT + CHUNK_BITS;
+
+    private BlockPos() {
+    }
+
+    public static long pack(int x, int y, int z) {
+        return (((x >> 4) & CHUNK_MASK) << CHUNK_X_SHIFT) | (((z >> 4) & CHUNK_MASK) << CHUNK_Z_SHIFT)
+                | ((y & Y_MASK) << Y_SHIFT) | ((z & LOCAL_MASK) << LOCAL_BITS) | (x & LOCAL_MASK);
+    }
+
+    public static int getX(long pos) {
+        return (getChunkX(pos) << 4) | getLocalX(pos);
+    }
+
+    public static int getY(long pos) {
+        return ((int) (pos >>> Y_SHIFT)) << (32 - Y_BITS) >> (32 - Y_BITS);
+    }
+
+    public static int getZ(long pos) {
+        return (getChunkZ(pos) << 4) | getLocalZ(pos);
+    }
+
+    public static int getChunkX(long pos) {
+        return (int) (pos >> CHUNK_X_SHIFT);
+    }
+
+    public static int getChunkZ(long pos) {
+        return ((int) (pos >>> CHUNK_Z_SHIFT)) << (32 - CHUNK_BITS) >> (32 - CHUNK_BITS);
+    }
+
+    /**
+     * @return the x coordinate within the position's chunk, between 0 and 15
+     */
+    public static int getLocalX(long pos) {
+        return (int) (pos & LOCAL_MASK);
+    }
+
+    /**
+     * @return the z coordinate within the position's chunk, between 0 and 15
+     */
+    public static int getLocalZ(long pos) {
+        return (int) ((pos >>> LOCAL_BITS) & LOCAL_MASK);
+    }
+
+    /**
+     * @return a value shared by every position in the same chunk, and by no
+     *         others
+     */
+    public static long getChunkKey(long pos) {
+        return pos >>> CHUNK_Z_SHIFT;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.makotomiyamoto.gameeffects.world;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * The original states of a group of blocks, kept compact enough to hold
+ * millions of them.
+ *
+ * Positions are packed with {@link BlockPos}, and each position's state is an
+ * index into a palette of the distinct states seen, one byte per block when
+ * there are at most 256 of them and two bytes otherwise.
+ *
+ */
+public final class BlockSnapshot {
+
+    private final UUID worldId;
+
+    private final long[] positions;
+
+    private final int[] palette;
+
+    private final byte[] byteIndices; // used when the palette has at most 256 states
+
+    private final short[] shortIndices;
+
+    BlockSnapshot(UUID worldId, long[] positions, int[] palette, byte[] byteIndices, short[] shortIndices) {
+        this.worldId = worldId;
+        this.positions = positions;
+        this.palette = palette;
+        this.byteIndices = byteIndices;
+        this.shortIndices = shortIndices;
+    }
+
+    /**
+     * Builds a snapshot from captured states. Positions whose state is
+     * BlockStates.NONE were never changed and are left out. If none were left
+     * out, the snapshot shares the positions array instead of copying it.
+     *
+     * @param worldId   - the world the positions are in
+     * @param positions - positions packed with BlockPos
+     * @param states    - the captured state of each position
+     * @return the snapshot
+     */
+    public static BlockSnapshot of(UUID worldId, long[] positions, int[] states) {
+
+        int count = 0;
+        for (int state : states)
+            if (state != BlockStates.NONE)
+                count++;
+
+        long[] kept = count == positions.length ? positions : new long[count]; // share the positions when
+        // nothing was left out
+        int[] indices = new int[count];
+        HashMap<Integer, Integer> paletteIndex = new HashMap<>(); // only boxes once per distinct state
+        int[] palette = new int[16];
+
+        int lastState = BlockStates.NONE, lastIndex = -1; // neighbors usually share a state, so skip the lookup
+        for (int i = 0, k = 0; i < states.length; i++) {
+
+            int state = states[i];
+            if (state == BlockStates.NONE)
+                continue;
+
+            if (state != lastState) {
+                Integer index = paletteIndex.get(state);
+                if (index == null) {
+                    index = paletteIndex.size();
+                    paletteIndex.put(state, index);
+                    if (index == palette.length)
+                        palette = Arrays.copyOf(palette, index * 2);
+                    palette[index] = state;
+                }
+                lastState = state;
+                lastIndex = index;
+            }
+
+            kept[k] = positions[i];
+            indices[k++] = lastIndex;
+        }
+
+        return create(worldId, kept, Arrays.copyOf(palette, paletteIndex.size()), indices);
+    }
+
+    static BlockSnapshot create(UUID worldId, long[] positions, int[] palette, int[] indices) {
+
+        if (palette.length > 1 << 16)
+            throw new IllegalArgumentException("Too many distinct block states: " + palette.length);
+
+        if (palette.length <= 1 << 8) {
+            byte[] narrow = new byte[indices.length];
+            for (int i = 0; i < indices.length; i++)
+                narrow[i] = (byte) indices[i];
+            return new BlockSnapshot(worldId, positions, palette, narrow, null);
+        }
+
+        short[] narrow = new short[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            narrow[i] = (short) indices[i];
+        return new BlockSnapshot(worldId, positions, palette, null, narrow);
+    }
+
+    public UUID getWorldId() {
+        return worldId;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * @return the snapshot's positions, packed with BlockPos; not to be modified
+     */
+    public long[] getPositions() {
+        return positions;
+    }
+
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    public int getState(int index) {
+        return palette[getPaletteIndex(index)];
+    }
+
+    int getPaletteIndex(int index) {
+        return byteIndices != null ? byteIndices[index] & 0xFF : shortIndices[index] & 0xFFFF;
+    }
+
+    int[] getPalette() {
+        return palette;
+    }
+
+}
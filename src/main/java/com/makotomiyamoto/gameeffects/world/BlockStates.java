@@ -0,0 +1,70 @@
+package com.makotomiyamoto.gameeffects.world;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+
+/**
+ * Encodes a block's material and data value into a single int, so block states
+ * can be kept in primitive arrays.
+ *
+ */
+@SuppressWarnings("deprecation")
+public final class BlockStates {
+
+    private static final Material[] MATERIALS = Material.values();
+
+    public static final int AIR = of(Material.AIR, (byte) 0);
+
+    /**
+     * Marks a position that should be left as it is, e.g. because its chunk was
+     * not loaded when its original state would have been captured
+     */
+    public static final int NONE = -1;
+
+    private BlockStates() {
+    }
+
+    public static int of(Material type, byte data) {
+        return (type.ordinal() << 4) | (data & 0xF);
+    }
+
+    public static int of(Block block) {
+        return of(block.getType(), block.getData());
+    }
+
+    /**
+     * Reads a block's state from a chunk snapshot, which may be done on any
+     * thread
+     *
+     * @param snapshot - the snapshot of the block's chunk
+     * @param x        - x coordinate within the chunk, 0-15
+     * @param y        - y coordinate
+     * @param z        - z coordinate within the chunk, 0-15
+     * @return the encoded state, or NONE if the block's type is unknown
+     */
+    public static int of(ChunkSnapshot snapshot, int x, int y, int z) {
+
+        Material type = Material.getMaterial(snapshot.getBlockTypeId(x, y, z));
+        return type == null ? NONE : of(type, (byte) snapshot.getBlockData(x, y, z));
+    }
+
+    public static Material getType(int state) {
+        return MATERIALS[state >>> 4];
+    }
+
+    public static byte getData(int state) {
+        return (byte) (state & 0xF);
+    }
+
+    /**
+     * Sets a block to a state, applying physics like Block.setType does
+     *
+     * @param block - the block to change
+     * @param state - the encoded state to give it
+     */
+    public static void apply(Block block, int state) {
+        block.setTypeIdAndData(getType(state).getId(), getData(state), true);
+    }
+
+}
@@ -0,0 +1,480 @@
+package com.makotomiyamoto.gameeffects.world;
+
+import org.bukkit.Material;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A memory-mapped, append-only record of the snapshots taken by temporary
+ * effects that have not been restored yet.
+ *
+ * Every snapshot is appended when its effect is applied and a release record
+ * is appended when it is restored, so after a crash the snapshots without a
+ * release are exactly the blocks that still need restoring. Effects that give
+ * blocks back a few at a time append partial releases, naming the positions
+ * of a snapshot that have been restored, which recovery then leaves out.
+ * Recovered snapshots are released like any other once they have been
+ * restored. Once every snapshot has been released the journal starts over from
+ * the beginning of the file.
+ *
+ * Effects that keep overlapping may never release every snapshot at once, so
+ * once released records make up half the journal, and at least
+ * {@value #COMPACT_MIN_BYTES} bytes, the snapshots still live are copied into a
+ * fresh file next to it, each followed by its partial releases, which then
+ * replaces the journal with an atomic move.
+ * A crash during compaction leaves the old journal in place, so each copy of
+ * the journal is complete. Each byte is copied at most once per halving, so
+ * compaction costs a constant amount per byte appended.
+ *
+ * The header holds the offset just past the last complete record, and it is
+ * only advanced after a record has been fully written, so a record torn by a
+ * crash is ignored. Data lives in the mapped pages, which survive the server
+ * process dying; only an operating system crash can lose the latest records.
+ *
+ * Not thread-safe; use it from the main thread.
+ *
+ */
+public final class SnapshotJournal implements Closeable {
+
+    private static final int MAGIC = 0x47454A31; // "GEJ1"
+
+    private static final int VERSION = 2; // version 1 had no partial releases
+
+    private static final int END_OFFSET = 8; // header: magic, version, end of the last complete record
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte SNAPSHOT = 1;
+
+    private static final byte RELEASE = 2;
+
+    private static final byte PARTIAL_RELEASE = 3;
+
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    private static final int COMPACT_MIN_BYTES = 1 << 20;
+
+    private final Path path;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private long nextId = 1;
+
+    private final LinkedHashMap<Long, Extents> live = new LinkedHashMap<>(); // by snapshot id, in append order
+
+    private long releasedBytes; // bytes before the end that belong to released snapshots or release records
+
+    /**
+     * Opens a journal, creating the file if it does not exist yet
+     *
+     * @param file - the journal file
+     * @throws IOException if the file cannot be opened or mapped, or is not a
+     *                     journal
+     */
+    public SnapshotJournal(File file) throws IOException {
+
+        path = file.toPath();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+
+        long size = channel.size();
+        buffer = map(channel, Math.max(size, INITIAL_SIZE));
+
+        if (size < HEADER_SIZE || buffer.getInt(0) == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            setEnd(HEADER_SIZE);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) < 1 || buffer.getInt(4) > VERSION) {
+            channel.close();
+            throw new IOException(file + " is not a snapshot journal of version " + VERSION + " or older");
+        } else {
+            buffer.putInt(4, VERSION); // older records read the same, and newer ones may follow
+        }
+    }
+
+    /**
+     * Reads every snapshot that was appended but never released, newest first,
+     * which is the order they must be restored in when effects overlapped. The
+     * snapshots stay in the journal until each is released once it has been
+     * restored, so a crash before then finds them again.
+     *
+     * Palette entries naming a material this server does not know are read as
+     * BlockStates.NONE.
+     *
+     * @return the unreleased snapshots, by the id to release them with
+     */
+    public LinkedHashMap<Long, BlockSnapshot> recover() {
+
+        LinkedHashMap<Long, BlockSnapshot> snapshots = new LinkedHashMap<>();
+        HashMap<Long, HashSet<Long>> restored = new HashMap<>(); // positions partially released, by id
+        ByteBuffer in = buffer.duplicate();
+        in.position(HEADER_SIZE);
+        in.limit(getEnd());
+        live.clear();
+
+        while (in.hasRemaining()) {
+
+            int start = in.position();
+            byte type = in.get();
+            long id = in.getLong();
+            nextId = Math.max(nextId, id + 1);
+
+            if (type == RELEASE) {
+                snapshots.remove(id);
+                restored.remove(id);
+                live.remove(id);
+            } else if (type == SNAPSHOT) {
+                snapshots.put(id, readSnapshot(in));
+                live.put(id, new Extents(start, in.position() - start));
+            } else if (type == PARTIAL_RELEASE) {
+                long[] positions = new long[in.getInt()];
+                in.asLongBuffer().get(positions);
+                in.position(in.position() + 8 * positions.length);
+
+                Extents extents = live.get(id);
+                if (extents != null) { // otherwise its snapshot was released
+                    extents.add(start, in.position() - start);
+                    HashSet<Long> gone = restored.computeIfAbsent(id, key -> new HashSet<>());
+                    for (long pos : positions)
+                        gone.add(pos);
+                }
+            } else {
+                break; // nothing valid can follow an unknown record
+            }
+        }
+
+        long liveBytes = 0;
+        for (Extents extents : live.values())
+            liveBytes += extents.bytes;
+        releasedBytes = getEnd() - HEADER_SIZE - liveBytes;
+
+        for (Map.Entry<Long, HashSet<Long>> entry : restored.entrySet())
+            snapshots.put(entry.getKey(), without(snapshots.get(entry.getKey()), entry.getValue()));
+
+        LinkedHashMap<Long, BlockSnapshot> newestFirst = new LinkedHashMap<>();
+        List<Long> ids = new ArrayList<>(snapshots.keySet());
+        for (int i = ids.size() - 1; i >= 0; i--)
+            newestFirst.put(ids.get(i), snapshots.get(ids.get(i)));
+
+        return newestFirst;
+    }
+
+    /**
+     * Records a snapshot that will need restoring
+     *
+     * @param snapshot - the original states of an effect's blocks
+     * @return the id to release the snapshot with once it has been restored
+     * @throws IOException if the journal cannot grow
+     */
+    public long append(BlockSnapshot snapshot) throws IOException {
+
+        int[] palette = snapshot.getPalette();
+        byte[][] names = new byte[palette.length][];
+        long size = 1 + 8 + 16 + 4 + 4 + 1 + 9L * snapshot.size();
+
+        for (int i = 0; i < palette.length; i++) {
+            names[i] = BlockStates.getType(palette[i]).name().getBytes(StandardCharsets.UTF_8);
+            size += 2 + names[i].length + 1;
+        }
+
+        boolean wide = palette.length > 1 << 8;
+        if (wide)
+            size += snapshot.size();
+
+        int start = getEnd();
+        ensureCapacity(start + size);
+
+        long id = nextId++;
+        ByteBuffer out = buffer.duplicate();
+        out.position(start);
+
+        out.put(SNAPSHOT);
+        out.putLong(id);
+        out.putLong(snapshot.getWorldId().getMostSignificantBits());
+        out.putLong(snapshot.getWorldId().getLeastSignificantBits());
+
+        out.putInt(palette.length);
+        for (int i = 0; i < palette.length; i++) {
+            out.putShort((short) names[i].length);
+            out.put(names[i]);
+            out.put(BlockStates.getData(palette[i]));
+        }
+
+        out.putInt(snapshot.size());
+        out.asLongBuffer().put(snapshot.getPositions());
+        out.position(out.position() + 8 * snapshot.size());
+
+        out.put((byte) (wide ? 2 : 1));
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (wide)
+                out.putShort((short) snapshot.getPaletteIndex(i));
+            else
+                out.put((byte) snapshot.getPaletteIndex(i));
+        }
+
+        setEnd(out.position());
+        live.put(id, new Extents(start, out.position() - start));
+
+        return id;
+    }
+
+    /**
+     * Records that a snapshot has been restored, compacting the journal if
+     * enough of it has been released
+     *
+     * @param id - the id returned when the snapshot was appended
+     * @throws IOException if the journal cannot grow, or if the release was
+     *                     recorded but compacting failed, in which case the
+     *                     next release tries again
+     */
+    public void release(long id) throws IOException {
+
+        Extents extents = live.remove(id);
+        if (extents == null)
+            return; // already released, or forgotten by clear()
+
+        if (live.isEmpty()) {
+            clear(); // nothing is left to restore, so start over
+            return;
+        }
+
+        int start = getEnd();
+        ensureCapacity(start + 9);
+
+        buffer.put(start, RELEASE);
+        buffer.putLong(start + 1, id);
+        setEnd(start + 9);
+        releasedBytes += extents.bytes + 9;
+
+        if (releasedBytes >= COMPACT_MIN_BYTES && 2 * releasedBytes >= start + 9 - HEADER_SIZE)
+            compact();
+    }
+
+    /**
+     * Records that some positions of a snapshot have been restored, so that
+     * recovery leaves them out. The snapshot still has to be released once the
+     * rest of it has been restored.
+     *
+     * @param id        - the id returned when the snapshot was appended
+     * @param positions - positions of the snapshot, packed with BlockPos
+     * @throws IOException if the journal cannot grow
+     */
+    public void release(long id, long[] positions) throws IOException {
+
+        Extents extents = live.get(id);
+        if (extents == null || positions.length == 0)
+            return; // already released, or forgotten by clear()
+
+        int start = getEnd();
+        ensureCapacity(start + 1 + 8 + 4 + 8L * positions.length);
+
+        ByteBuffer out = buffer.duplicate();
+        out.position(start);
+        out.put(PARTIAL_RELEASE);
+        out.putLong(id);
+        out.putInt(positions.length);
+        out.asLongBuffer().put(positions);
+        out.position(out.position() + 8 * positions.length);
+
+        setEnd(out.position());
+        extents.add(start, out.position() - start);
+    }
+
+    /**
+     * Forgets every record
+     */
+    public void clear() {
+        live.clear();
+        releasedBytes = 0;
+        setEnd(HEADER_SIZE);
+    }
+
+    /**
+     * @return the number of snapshots appended but not released yet
+     */
+    public int getUnreleased() {
+        return live.size();
+    }
+
+    /**
+     * @return the offset just past the last complete record, which is how much
+     *         of the file the journal uses
+     */
+    public int getUsedBytes() {
+        return getEnd();
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private BlockSnapshot readSnapshot(ByteBuffer in) {
+
+        UUID worldId = new UUID(in.getLong(), in.getLong());
+
+        int[] palette = new int[in.getInt()];
+        HashMap<String, Material> materials = new HashMap<>();
+        for (int i = 0; i < palette.length; i++) {
+            byte[] name = new byte[in.getShort()];
+            in.get(name);
+            byte data = in.get();
+
+            Material type = materials.computeIfAbsent(new String(name, StandardCharsets.UTF_8), Material::getMaterial);
+            palette[i] = type == null ? BlockStates.NONE : BlockStates.of(type, data);
+        }
+
+        long[] positions = new long[in.getInt()];
+        in.asLongBuffer().get(positions);
+        in.position(in.position() + 8 * positions.length);
+
+        boolean wide = in.get() == 2;
+        int[] indices = new int[positions.length];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = wide ? in.getShort() & 0xFFFF : in.get() & 0xFF;
+
+        return BlockSnapshot.create(worldId, positions, palette, indices);
+    }
+
+    /**
+     * @return the snapshot without the given positions
+     */
+    private static BlockSnapshot without(BlockSnapshot snapshot, HashSet<Long> positions) {
+
+        int[] states = new int[snapshot.size()];
+        for (int i = 0; i < states.length; i++)
+            states[i] = positions.contains(snapshot.getPosition(i)) ? BlockStates.NONE : snapshot.getState(i);
+
+        return BlockSnapshot.of(snapshot.getWorldId(), snapshot.getPositions(), states);
+    }
+
+    /**
+     * Copies the live snapshots, in append order and each followed by its
+     * partial releases, into a fresh file and moves it over the journal. If
+     * anything fails before the move, the fresh file is deleted and the
+     * journal is left as it was.
+     */
+    private void compact() throws IOException {
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long size = HEADER_SIZE;
+        for (Extents extents : live.values())
+            size += extents.bytes;
+
+        FileChannel target = FileChannel.open(compacted, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer out;
+        LinkedHashMap<Long, Extents> moved = new LinkedHashMap<>(); // only replaces live once the move succeeded
+        try {
+            out = map(target, Math.max(size, INITIAL_SIZE));
+            out.putInt(0, MAGIC);
+            out.putInt(4, VERSION);
+            out.position(HEADER_SIZE);
+
+            for (Map.Entry<Long, Extents> entry : live.entrySet()) {
+                Extents extents = entry.getValue(), copied = null;
+                for (int i = 0; i < extents.count; i++) {
+                    int offset = (int) (extents.records[i] >>> 32), length = (int) extents.records[i];
+                    ByteBuffer in = buffer.duplicate();
+                    in.limit(offset + length);
+                    in.position(offset);
+                    if (copied == null)
+                        copied = new Extents(out.position(), length);
+                    else
+                        copied.add(out.position(), length);
+                    out.put(in);
+                }
+                moved.put(entry.getKey(), copied);
+            }
+
+            out.putLong(END_OFFSET, out.position());
+            out.force();
+            Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            target.close();
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        live.clear();
+        live.putAll(moved);
+
+        channel.close();
+        channel = target;
+        buffer = out;
+        releasedBytes = 0;
+    }
+
+    private int getEnd() {
+        return (int) buffer.getLong(END_OFFSET);
+    }
+
+    private void setEnd(int end) {
+        buffer.putLong(END_OFFSET, end);
+    }
+
+    private void ensureCapacity(long size) throws IOException {
+
+        if (size <= buffer.capacity())
+            return;
+
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Snapshot journal cannot grow past 2 GB");
+
+        buffer = map(channel, Math.min(Math.max(size, 2L * buffer.capacity()), Integer.MAX_VALUE));
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Where the records of a snapshot that has not been released are: the
+     * snapshot itself, then its partial releases, in append order
+     *
+     */
+    private static final class Extents {
+
+        long[] records = new long[1]; // offset << 32 | length
+
+        int count;
+
+        long bytes;
+
+        Extents(int offset, int length) {
+            add(offset, length);
+        }
+
+        void add(int offset, int length) {
+
+            if (count == records.length)
+                records = Arrays.copyOf(records, count * 2);
+
+            records[count++] = (long) offset << 32 | length;
+            bytes += length;
+        }
+
+    }
+
+}
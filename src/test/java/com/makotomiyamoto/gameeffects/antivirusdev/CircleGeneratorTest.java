@@ -0,0 +1,403 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import org.bukkit.Location;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CircleGeneratorTest {
+
+    private static final int MAX_RADIUS = 400;
+
+    private static final double SQUARE_ROOT_OF_TWO = 1.4142135624; // as the old generator had it
+
+    private static final int MAX_UNION_RADIUS = 120, MAX_UNION_RINGS = 12;
+
+    private static final int[] PARALLEL_RADII = { 32, 64, 128, 256, 512 };
+
+    private static final int THREADS = 4; // splits the work even on a machine with fewer cores
+
+    private static final long SEED = 0x47454131;
+
+    private static final int STREAMED_ANNULI = 300, MAX_STREAMED_RADIUS = 512;
+
+    private static final int LARGE_RADIUS = 1000000, LARGE_THICKNESS = 11;
+
+    @After
+    public void emptyCache() {
+        CircleGenerator.getCache().invalidateAll();
+    }
+
+    /**
+     * Replays the HashSet&lt;RelativeLocation&gt; circles CircleGenerator built
+     * before ShapeMask, hash collisions and all, since its enclosed square
+     * pruning removed squares while iterating over the set. For every radius,
+     * plane and flag combination, the blocks forEachBlock visits around a
+     * center, on the first call and again from the cache, must be the old
+     * circle's.
+     */
+    @Test
+    public void circlesMatchTheOldSets() {
+
+        Location center = new Location(null, 10.5, 64, -3.5);
+
+        for (CircleGenerator.Plane plane : CircleGenerator.Plane.values()) {
+            for (int flags = 0; flags < 4; flags++) {
+                boolean ignoreEnclosed = (flags & 1) != 0, allowBurrs = (flags & 2) != 0;
+                CircleGenerator.getCache().invalidateAll(); // the first call of each radius generates it
+
+                for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+                    String circle = "radius " + radius + ", " + plane + ", ignoreEnclosed " + ignoreEnclosed
+                            + ", allowBurrs " + allowBurrs;
+                    long[] expected = toPacked(generateOld(radius, plane, ignoreEnclosed, allowBurrs));
+                    assertArrayEquals(circle, expected, visit(center, radius, plane, ignoreEnclosed, allowBurrs));
+                    assertArrayEquals(circle + ", cached", expected,
+                            visit(center, radius, plane, ignoreEnclosed, allowBurrs));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void radiusZeroIsTheCenterSquare() {
+
+        for (CircleGenerator.Plane plane : CircleGenerator.Plane.values()) {
+            for (int flags = 0; flags < 4; flags++) {
+                ShapeMask circle = CircleGenerator.generateCircleMask(0, plane, (flags & 1) != 0, (flags & 2) != 0);
+                assertArrayEquals(new long[] { ShapeMask.pack(0, 0, 0) }, toArray(circle));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeRadii() {
+        CircleGenerator.generateCircleMask(-1, CircleGenerator.Plane.XZ, false, true);
+    }
+
+    /**
+     * An annulus must be exactly the union of the full circles between its two
+     * radii, enclosed squares included, and so cover the rings thick rings were
+     * once built from, one radius at a time and without their enclosed squares
+     */
+    @Test
+    public void annulusIsTheUnionOfItsCircles() {
+
+        for (CircleGenerator.Plane plane : CircleGenerator.Plane.values()) {
+            for (int outerRadius = 1; outerRadius <= MAX_UNION_RADIUS; outerRadius++) {
+                for (int innerRadius = Math.max(0, outerRadius - MAX_UNION_RINGS + 1); innerRadius <= outerRadius;
+                     innerRadius++) {
+
+                    ShapeMask.Builder full = new ShapeMask.Builder(), pruned = new ShapeMask.Builder();
+                    for (int radius = innerRadius; radius <= outerRadius; radius++) {
+                        full.addAll(CircleGenerator.generateCircleMask(radius, plane, false, true));
+                        pruned.addAll(CircleGenerator.generateCircleMask(radius, plane, true, true));
+                    }
+
+                    String annulus = "inner radius " + innerRadius + ", outer radius " + outerRadius + ", " + plane;
+                    ShapeMask mask = CircleGenerator.generateAnnulusMask(innerRadius, outerRadius, plane);
+                    assertArrayEquals(annulus, toArray(full.build()), toArray(mask));
+                    ShapeMask prunedRings = pruned.build();
+                    for (int i = 0; i < prunedRings.size(); i++)
+                        assertTrue(annulus,
+                                mask.contains(prunedRings.getX(i), prunedRings.getY(i), prunedRings.getZ(i)));
+                }
+            }
+            CircleGenerator.getCache().invalidateAll();
+        }
+    }
+
+    /**
+     * Every ring size is generated on all three planes, once on the calling
+     * thread and once on a pool, with the cache emptied in between so both
+     * really generate
+     */
+    @Test
+    public void annulusOnAPoolMatchesTheCallingThread() {
+
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            for (int radius : PARALLEL_RADII) {
+                for (int thickness : new int[] { 1, 2, 4, radius / 4, radius / 2, radius }) {
+                    int innerRadius = radius - thickness, outerRadius = radius - 1;
+
+                    for (CircleGenerator.Plane plane : CircleGenerator.Plane.values()) {
+                        CircleGenerator.getCache().invalidateAll();
+                        ShapeMask sequential = CircleGenerator.generateAnnulusMask(innerRadius, outerRadius, plane);
+                        CircleGenerator.getCache().invalidateAll();
+                        ShapeMask parallel = CircleGenerator.generateAnnulusMask(innerRadius, outerRadius, plane,
+                                pool);
+
+                        assertArrayEquals("radius " + radius + ", thickness " + thickness + ", " + plane,
+                                toArray(sequential), toArray(parallel));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Random annuli, cycling through the planes, are streamed both sequentially
+     * and in parallel, sorted, and compared with generateAnnulusMask
+     */
+    @Test
+    public void streamedAnnulusMatchesTheMask() {
+
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        CircleGenerator.Plane[] planes = CircleGenerator.Plane.values();
+        Random random = new Random(SEED);
+
+        try {
+            for (int i = 0; i < STREAMED_ANNULI; i++) {
+                int outerRadius = random.nextInt(MAX_STREAMED_RADIUS + 1);
+                int innerRadius = random.nextInt(outerRadius + 1);
+                CircleGenerator.Plane plane = planes[i % planes.length];
+
+                long[] expected = toArray(CircleGenerator.generateAnnulusMask(innerRadius, outerRadius, plane));
+                CircleGenerator.getCache().invalidateAll(); // keeps the heap small
+
+                long[] sequential = CircleGenerator.streamAnnulus(innerRadius, outerRadius, plane).toArray();
+                // a parallel stream run from inside a pool forks onto that pool
+                long[] parallel = pool.submit(() -> CircleGenerator.streamAnnulus(innerRadius, outerRadius, plane)
+                        .parallel().toArray()).join();
+                Arrays.sort(sequential);
+                Arrays.sort(parallel);
+
+                String annulus = "inner radius " + innerRadius + ", outer radius " + outerRadius + ", " + plane;
+                assertArrayEquals(annulus, expected, sequential);
+                assertArrayEquals(annulus + ", parallel", expected, parallel);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A ring far too large to generate, whose offsets alone would take over
+     * 500 MB, streams as many cells sequentially as in parallel, about as
+     * many as its area
+     */
+    @Test
+    public void streamsRingsTooLargeToGenerate() {
+
+        int innerRadius = LARGE_RADIUS - LARGE_THICKNESS, outerRadius = LARGE_RADIUS - 1;
+
+        // summing keeps the stream from being sized away
+        long sequential = CircleGenerator.streamAnnulus(innerRadius, outerRadius, CircleGenerator.Plane.XZ)
+                .map(offset -> 1).sum();
+        long parallel = CircleGenerator.streamAnnulus(innerRadius, outerRadius, CircleGenerator.Plane.XZ)
+                .parallel().map(offset -> 1).sum();
+
+        double area = Math.PI * ((double) outerRadius * outerRadius - (double) innerRadius * innerRadius);
+        assertEquals(sequential, parallel);
+        assertTrue("streamed " + sequential + " cells, area " + area,
+                sequential > area * 0.9 && sequential < area * 1.2);
+    }
+
+    /**
+     * @return the sorted offsets, from the center's block, of the blocks
+     *         forEachBlock visits
+     */
+    private static long[] visit(Location center, int radius, CircleGenerator.Plane plane, boolean ignoreEnclosed,
+                                boolean allowBurrs) {
+
+        ShapeMask.Builder builder = new ShapeMask.Builder();
+        CircleGenerator.forEachBlock(center, radius, plane, ignoreEnclosed, allowBurrs,
+                (world, x, y, z) -> builder.add(x - center.getBlockX(), y - center.getBlockY(),
+                        z - center.getBlockZ()));
+
+        return toArray(builder.build());
+    }
+
+    private static long[] toArray(ShapeMask mask) {
+
+        long[] packed = new long[mask.size()];
+        for (int i = 0; i < packed.length; i++)
+            packed[i] = mask.get(i);
+
+        return packed;
+    }
+
+    private static long[] toPacked(Set<RelativeLocation> locations) {
+
+        long[] packed = new long[locations.size()];
+        int i = 0;
+        for (RelativeLocation rl : locations)
+            packed[i++] = ShapeMask.pack(rl.rX, rl.rY, rl.rZ);
+        Arrays.sort(packed);
+
+        return packed;
+    }
+
+    /**
+     * The relative location the old generator stored, with its hash, which put
+     * every point of a circle in the same bucket
+     */
+    private static final class RelativeLocation {
+
+        final int rX, rY, rZ;
+
+        RelativeLocation(int relX, int relY, int relZ) {
+            this.rX = relX;
+            this.rY = relY;
+            this.rZ = relZ;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RelativeLocation))
+                return false;
+
+            RelativeLocation rl = (RelativeLocation) o;
+            return rl.rX == rX && rl.rY == rY && rl.rZ == rZ;
+        }
+
+        @Override
+        public int hashCode() {
+            return rX * rX + rY * rY + rZ * rZ;
+        }
+
+    }
+
+    /**
+     * @return the circle the old generator gave, the same way it built it
+     */
+    private static HashSet<RelativeLocation> generateOld(int radius, CircleGenerator.Plane plane,
+                                                         boolean ignoreEnclosed, boolean allowBurrs) {
+
+        HashSet<RelativeLocation> locs = new HashSet<>();
+        HashSet<RelativeLocation> remainingOctants = new HashSet<>();
+
+        int radiusSquared = radius * radius;
+        int stopValue = ((int) (radius / SQUARE_ROOT_OF_TWO)) + 1;
+
+        RelativeLocation lastAdded = null;
+        for (int ind = 0; ind < stopValue; ind++) {
+            int prevDep = IntSqrt.floor(radiusSquared - (ind * ind));
+            int nextDep = IntSqrt.floor(radiusSquared - ((ind + 1) * (ind + 1)));
+
+            for (int i = 0; i <= (prevDep - nextDep); i++) {
+                RelativeLocation add = inOctant2(plane, ind, prevDep - i);
+                locs.add(add);
+                lastAdded = add;
+            }
+        }
+
+        if (ignoreEnclosed) {
+            locs.remove(lastAdded);
+            Iterator<RelativeLocation> iterator = locs.iterator();
+
+            while (iterator.hasNext()) {
+                RelativeLocation rl = iterator.next();
+                boolean enclosed;
+                switch (plane) {
+                    case XZ:
+                        enclosed = locs.contains(new RelativeLocation(rl.rX + 1, rl.rY, rl.rZ))
+                                && locs.contains(new RelativeLocation(rl.rX, rl.rY, rl.rZ + 1));
+                        break;
+                    case XY:
+                        enclosed = locs.contains(new RelativeLocation(rl.rX + 1, rl.rY, rl.rZ))
+                                && locs.contains(new RelativeLocation(rl.rX, rl.rY + 1, rl.rZ));
+                        break;
+                    default:
+                        enclosed = locs.contains(new RelativeLocation(rl.rX, rl.rY, rl.rZ + 1))
+                                && locs.contains(new RelativeLocation(rl.rX, rl.rY + 1, rl.rZ));
+                        break;
+                }
+                if (enclosed)
+                    iterator.remove();
+            }
+        }
+
+        for (RelativeLocation rl : locs)
+            fillOctants(plane, remainingOctants, rl);
+        locs.addAll(remainingOctants);
+
+        if (!allowBurrs)
+            removeBurrs(plane, locs, radius);
+
+        return locs;
+    }
+
+    private static RelativeLocation inOctant2(CircleGenerator.Plane plane, int ind, int dep) {
+
+        switch (plane) {
+            case XZ:
+                return new RelativeLocation(ind, 0, dep);
+            case XY:
+                return new RelativeLocation(ind, dep, 0);
+            default:
+                return new RelativeLocation(0, dep, ind);
+        }
+    }
+
+    private static void fillOctants(CircleGenerator.Plane plane, Set<RelativeLocation> set, RelativeLocation l) {
+
+        switch (plane) {
+            case XZ:
+                set.add(new RelativeLocation(l.rZ, l.rY, l.rX));
+                set.add(new RelativeLocation(-l.rX, l.rY, l.rZ));
+                set.add(new RelativeLocation(-l.rZ, l.rY, l.rX));
+                set.add(new RelativeLocation(-l.rZ, l.rY, -l.rX));
+                set.add(new RelativeLocation(-l.rX, l.rY, -l.rZ));
+                set.add(new RelativeLocation(l.rX, l.rY, -l.rZ));
+                set.add(new RelativeLocation(l.rZ, l.rY, -l.rX));
+                break;
+            case XY:
+                set.add(new RelativeLocation(l.rY, l.rX, l.rZ));
+                set.add(new RelativeLocation(-l.rX, l.rY, l.rZ));
+                set.add(new RelativeLocation(-l.rY, l.rX, l.rZ));
+                set.add(new RelativeLocation(-l.rY, -l.rX, l.rZ));
+                set.add(new RelativeLocation(-l.rX, -l.rY, l.rZ));
+                set.add(new RelativeLocation(l.rX, -l.rY, l.rZ));
+                set.add(new RelativeLocation(l.rY, -l.rX, l.rZ));
+                break;
+            default:
+                set.add(new RelativeLocation(l.rX, l.rZ, l.rY));
+                set.add(new RelativeLocation(l.rX, -l.rY, l.rZ));
+                set.add(new RelativeLocation(l.rX, -l.rZ, l.rY));
+                set.add(new RelativeLocation(l.rX, -l.rZ, -l.rY));
+                set.add(new RelativeLocation(l.rX, -l.rY, -l.rZ));
+                set.add(new RelativeLocation(l.rX, l.rY, -l.rZ));
+                set.add(new RelativeLocation(l.rX, l.rZ, -l.rY));
+                break;
+        }
+    }
+
+    /**
+     * Pulls the tip of each axis in by one square, as the old generator did on
+     * a clone of its cached circle
+     */
+    private static void removeBurrs(CircleGenerator.Plane plane, Set<RelativeLocation> locs, int radius) {
+
+        int[][] tips; // {x, y, z} of each tip, pulled in by one along its axis
+        switch (plane) {
+            case XZ:
+                tips = new int[][] { { 0, 0, 1 }, { -1, 0, 0 }, { 1, 0, 0 }, { 0, 0, -1 } };
+                break;
+            case XY:
+                tips = new int[][] { { 0, 1, 0 }, { 0, -1, 0 }, { 1, 0, 0 }, { -1, 0, 0 } };
+                break;
+            default:
+                tips = new int[][] { { 0, 1, 0 }, { 0, -1, 0 }, { 0, 0, 1 }, { 0, 0, -1 } };
+                break;
+        }
+
+        for (int[] tip : tips) {
+            locs.remove(new RelativeLocation(tip[0] * radius, tip[1] * radius, tip[2] * radius));
+            locs.add(new RelativeLocation(tip[0] * (radius - 1), tip[1] * (radius - 1), tip[2] * (radius - 1)));
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntSqrtTest {
+
+    private static final int MAX_SQUARE = 1000; // the largest root the old table held
+
+    /**
+     * IntSqrt replaced a table CircleGenerator built when it was first loaded;
+     * it must agree with that table on every key
+     */
+    @Test
+    public void agreesWithTheOldTable() {
+
+        int[] table = buildTable();
+        for (int i = 0; i < table.length; i++)
+            assertEquals("floor(" + i + ")", table[i], IntSqrt.floor(i));
+    }
+
+    @Test
+    public void isExactAroundEveryIntSquare() {
+
+        for (long root = 1; root * root <= Integer.MAX_VALUE; root++) {
+            int square = (int) (root * root);
+            assertEquals(root, IntSqrt.floor(square));
+            assertEquals(root - 1, IntSqrt.floor(square - 1));
+        }
+        assertEquals(46340, IntSqrt.floor(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void isExactAroundLargeLongSquares() {
+
+        for (long root = 3037000499L; root > 3037000499L - 100_000; root--) {
+            assertEquals(root, IntSqrt.floor(root * root));
+            assertEquals(root - 1, IntSqrt.floor(root * root - 1));
+        }
+        for (long root = 1L << 26; root < (1L << 26) + 100_000; root++) { // squares around 2^52, 2^53
+            assertEquals(root, IntSqrt.floor(root * root));
+            assertEquals(root - 1, IntSqrt.floor(root * root - 1));
+        }
+        assertEquals(3037000499L, IntSqrt.floor(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeNumbers() {
+        IntSqrt.floor(-1);
+    }
+
+    /**
+     * @return the table CircleGenerator's static initializer built, the same
+     *         way, but in an array rather than a boxed map
+     */
+    private static int[] buildTable() {
+
+        int[] table = new int[MAX_SQUARE * MAX_SQUARE + 1];
+        Arrays.fill(table, -1);
+        for (int i = 0; i <= MAX_SQUARE; i++)
+            table[i * i] = i;
+
+        int greatestPerfectSquare = 0;
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] >= 0)
+                greatestPerfectSquare = table[i];
+            else
+                table[i] = greatestPerfectSquare;
+        }
+        return table;
+    }
+
+}
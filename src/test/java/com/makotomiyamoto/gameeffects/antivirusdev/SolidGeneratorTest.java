@@ -0,0 +1,85 @@
+package com.makotomiyamoto.gameeffects.antivirusdev;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks the spheres and shells SolidGenerator builds from 1/48 of their
+ * volume against a brute-force scan of their bounding cube. A solid sphere is
+ * every block whose center lies within the radius; a shell is every such block
+ * with at least one of its six neighbors outside.
+ *
+ */
+public class SolidGeneratorTest {
+
+    private static final int MAX_RADIUS = 40;
+
+    @After
+    public void emptyCache() {
+        CircleGenerator.getCache().invalidateAll();
+    }
+
+    @Test
+    public void spheresMatchTheirBoundingCube() {
+        for (int radius = 0; radius <= MAX_RADIUS; radius++)
+            compare(radius, false);
+    }
+
+    @Test
+    public void shellsMatchTheirBoundingCube() {
+        for (int radius = 0; radius <= MAX_RADIUS; radius++)
+            compare(radius, true);
+    }
+
+    private static void compare(int radius, boolean hollow) {
+
+        ShapeMask expected = scan(radius, hollow);
+        ShapeMask generated = SolidGenerator.generateSphereMask(radius, hollow);
+
+        String sphere = "radius " + radius + (hollow ? ", hollow" : ", solid");
+        assertArrayEquals(sphere, toArray(expected), toArray(generated));
+    }
+
+    private static long[] toArray(ShapeMask mask) {
+
+        long[] packed = new long[mask.size()];
+        for (int i = 0; i < packed.length; i++)
+            packed[i] = mask.get(i);
+
+        return packed;
+    }
+
+    /**
+     * @return the sphere, found by testing every block of its bounding cube
+     */
+    private static ShapeMask scan(int radius, boolean hollow) {
+
+        ShapeMask.Builder sphere = new ShapeMask.Builder();
+
+        for (int x = -radius; x <= radius; x++) {
+            for (int y = -radius; y <= radius; y++) {
+                for (int z = -radius; z <= radius; z++) {
+
+                    if (!inside(x, y, z, radius))
+                        continue;
+
+                    if (hollow && inside(x + 1, y, z, radius) && inside(x - 1, y, z, radius)
+                            && inside(x, y + 1, z, radius) && inside(x, y - 1, z, radius)
+                            && inside(x, y, z + 1, radius) && inside(x, y, z - 1, radius))
+                        continue;
+
+                    sphere.add(x, y, z);
+                }
+            }
+        }
+
+        return sphere.build();
+    }
+
+    private static boolean inside(int x, int y, int z, int radius) {
+        return (long) x * x + (long) y * y + (long) z * z <= (long) radius * radius;
+    }
+
+}
@@ -0,0 +1,566 @@
+package com.makotomiyamoto.gameeffects.simulation;
+
+import com.makotomiyamoto.gameeffects.GameEffects;
+import com.makotomiyamoto.gameeffects.task.AdmissionController;
+import com.makotomiyamoto.gameeffects.task.DrawTemporaryCircle;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Runs the plugin under a scripted load without a server, so capacity
+ * regressions show up before a release.
+ *
+ * The real plugin is enabled against a {@link SimulatedServer} with a
+ * {@link StubWorld}, and players standing on a grid each run /CreateTestCircle
+ * every few ticks, staggered evenly. Their rings go through admission,
+ * preparation, block changes and restores exactly as on a server. Once the
+ * players stop, ticks go on until every effect has been restored, and the
+ * plugin is disabled.
+ *
+ * In world mode, each ring the plugin admits should turn the edge of the
+ * player's circle to air, for at least as long as rings are held, some time
+ * after the command; the edge is checked after every tick. After the effects
+ * drain, and before the plugin is disabled, whose flush would hide a leak,
+ * every block and every player's view of it should be as it was.
+ *
+ * A share of the chunks under the rings can be marked as not loaded. While
+ * block-changes.skip-unloaded-chunks is on, none of them should be looked up,
+ * which would load them, and none of their blocks written, neither by a ring
+ * nor by its restore; the hold check then only looks at the loaded part of
+ * each edge.
+ *
+ * Reports how long the main thread spent per tick, how much was allocated, the
+ * peak heap, and the result of those checks. LoadSimulationTest runs a few
+ * small scenarios, and fails if the effects did not drain in time or a check
+ * failed, so it gates the build.
+ *
+ * Options are given as key=value, e.g.
+ * {@code players=500 interval=40 radius=16 thickness=4 mode=world ticks=1200};
+ * config.&lt;path&gt;=&lt;value&gt; overrides a setting of config.yml, e.g.
+ * {@code config.admission.policy=reject}.
+ *
+ */
+public final class LoadSimulation {
+
+    private static final double MB = 1024 * 1024;
+
+    private static final long TICK_NANOS = 50_000_000L;
+
+    private static final int ALLOCATION_SAMPLE_TICKS = 20; // threads may exit, so sample them every second
+
+    private static final int HOLD_TICKS = 20; // as DrawTemporaryCircle holds its rings
+
+    private static final long UNLOADED_SEED = 0x47455531L; // so the same chunks are unloaded on every run
+
+    /**
+     * Runs a scenario and prints its report
+     *
+     * @param args - the options, as key=value
+     * @return whether the effects drained in time and every check passed
+     * @throws IllegalArgumentException if an option is not known or has no
+     *                                  value
+     */
+    public static boolean run(String... args) throws Exception {
+
+        LinkedHashMap<String, String> options = new LinkedHashMap<>();
+        options.put("players", "500"); // how many players draw rings
+        options.put("interval", "40"); // ticks between each player's rings
+        options.put("radius", "16");
+        options.put("thickness", "4");
+        options.put("mode", "world"); // world or ghost
+        options.put("animated", "false"); // whether rings grow from the center instead of being drawn at once
+        options.put("ticks", "1200"); // how long players keep drawing rings
+        options.put("spacing", "48"); // blocks between neighbouring players
+        options.put("view-distance", "10");
+        options.put("tick-millis", "50"); // how long a tick lasts at least, or 0 to run ticks back to back
+        options.put("max-drain-ticks", "12000"); // how long to wait for effects to finish afterwards
+        options.put("unloaded-chunks", "0"); // percentage of the chunks under the rings marked as not loaded
+
+        LinkedHashMap<String, Object> overrides = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String key = equals < 0 ? arg : arg.substring(0, equals);
+            if (equals < 0 || (!options.containsKey(key) && !key.startsWith("config."))) {
+                throw new IllegalArgumentException("Usage: [key=value]... [config.<path>=<value>]..., keys and "
+                        + "defaults: " + options);
+            }
+            if (key.startsWith("config."))
+                overrides.put(key.substring("config.".length()), parseValue(arg.substring(equals + 1)));
+            else
+                options.put(key, arg.substring(equals + 1));
+        }
+
+        int players = Integer.parseInt(options.get("players")), interval = Integer.parseInt(options.get("interval")),
+                radius = Integer.parseInt(options.get("radius")), thickness = Integer.parseInt(options.get("thickness")),
+                ticks = Integer.parseInt(options.get("ticks")), spacing = Integer.parseInt(options.get("spacing")),
+                maxDrainTicks = Integer.parseInt(options.get("max-drain-ticks")),
+                unloadedPercent = Integer.parseInt(options.get("unloaded-chunks"));
+        long tickNanos = Long.parseLong(options.get("tick-millis")) * 1_000_000L;
+        boolean animated = Boolean.parseBoolean(options.get("animated"));
+        String[] command = animated ? new String[] { options.get("radius"), options.get("thickness"),
+                options.get("mode"), "animated" }
+                : new String[] { options.get("radius"), options.get("thickness"), options.get("mode") };
+
+        System.out.printf(Locale.ROOT, "Scenario: %d players drawing a %s%s ring of radius %d, %d thick (~%d blocks), "
+                        + "every %d ticks for %d ticks%n", players, animated ? "animated " : "", options.get("mode"),
+                radius, thickness, DrawTemporaryCircle.estimateRing(radius, Math.min(thickness, radius)), interval,
+                ticks);
+        if (!overrides.isEmpty())
+            System.out.println("Config overrides: " + overrides);
+
+        // set up the server, with players on a square grid around the origin
+        StubWorld world = new StubWorld();
+        SimulatedServer server = new SimulatedServer(world, Integer.parseInt(options.get("view-distance")));
+
+        int side = (int) Math.ceil(Math.sqrt(players));
+        List<List<Player>> firing = new ArrayList<>(); // the players drawing a ring, by tick within the interval
+        for (int i = 0; i < interval; i++)
+            firing.add(new ArrayList<>());
+        // ghost rings, and rings the command refuses, leave the world alone; animated rings only hold the edge
+        // for their last frame
+        boolean validRing = thickness >= 1 && thickness <= radius;
+        boolean checkHolds = options.get("mode").equalsIgnoreCase("world") && validRing && !animated;
+        HoldChecker holds = new HoldChecker(world, checkHolds ? players : 0);
+        HashMap<Player, Integer> indices = new HashMap<>();
+        Random random = new Random(UNLOADED_SEED);
+        HashSet<Long> ringChunks = new HashSet<>();
+        for (int i = 0; i < players; i++) {
+            double x = (i % side - side / 2) * spacing + 0.5, z = (i / side - side / 2) * spacing + 0.5;
+            Player player = server.addPlayer("Player" + i, x, 64, z);
+            firing.get((int) ((long) i * interval / players)).add(player);
+            indices.put(player, i);
+
+            Location center = new Location(world.getWorld(), x, 64, z);
+            if (unloadedPercent > 0 && validRing) { // each chunk is drawn once, the first time a ring covers it
+                for (long pos : DrawTemporaryCircle.buildRing(center, radius, thickness)) {
+                    if (ringChunks.add(BlockPos.getChunkKey(pos)) && random.nextInt(100) < unloadedPercent)
+                        world.setChunkLoaded(BlockPos.getChunkX(pos), BlockPos.getChunkZ(pos), false);
+                }
+            }
+            if (checkHolds) // a thinner ring, if admission degrades it, still has the same edge
+                holds.setEdge(i, loadedOnly(world, DrawTemporaryCircle.buildRing(center, radius, 1)));
+        }
+        if (unloadedPercent > 0)
+            System.out.println("Unloaded chunks: " + world.getUnloadedChunks() + " of the " + ringChunks.size()
+                    + " under the rings");
+
+        Path dataFolder = Files.createTempDirectory("gameeffects-simulation");
+        GameEffects plugin = createPlugin(server, dataFolder.toFile());
+        overrides.forEach(plugin.getConfig()::set);
+        plugin.onEnable();
+        AdmissionController admission = plugin.getAdmissionController();
+
+        // measure
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AllocationSampler allocation = AllocationSampler.create(threads);
+        long mainThread = Thread.currentThread().getId();
+
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed(), peakHeap = heapBefore;
+        long mainAllocated = 0;
+
+        long[] tickTimes = new long[ticks];
+        int commandsRun = 0, commandsRefused = 0;
+
+        for (int tick = 0; tick < ticks; tick++) {
+
+            long allocatedBefore = allocation == null ? 0 : allocation.getAllocated(mainThread);
+            long start = System.nanoTime();
+
+            long rejectedBefore = admission.getRejected();
+            for (Player player : firing.get(tick % interval)) {
+                commandsRun++;
+                if (!server.dispatch(player, "CreateTestCircle", command))
+                    commandsRefused++;
+                else if (admission.getRejected() == rejectedBefore)
+                    holds.expect(indices.get(player), server.getTick());
+                rejectedBefore = admission.getRejected();
+            }
+            server.tick();
+
+            long elapsed = System.nanoTime() - start;
+            tickTimes[tick] = elapsed;
+            if (allocation != null) {
+                mainAllocated += allocation.getAllocated(mainThread) - allocatedBefore - allocation.overhead;
+                if (tick % ALLOCATION_SAMPLE_TICKS == 0)
+                    allocation.sample();
+            }
+            holds.check(server.getTick());
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+
+            if (elapsed < tickNanos)
+                Thread.sleep((tickNanos - elapsed) / 1_000_000L, (int) ((tickNanos - elapsed) % 1_000_000L));
+        }
+
+        // let every effect finish and restore on its own
+        int drainTicks = 0;
+        while (!isIdle(server, plugin) && drainTicks < maxDrainTicks) {
+            long start = System.nanoTime();
+            server.tick();
+            drainTicks++;
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            long elapsed = System.nanoTime() - start;
+            holds.check(server.getTick());
+            if (elapsed < tickNanos)
+                Thread.sleep((tickNanos - elapsed) / 1_000_000L, (int) ((tickNanos - elapsed) % 1_000_000L));
+        }
+        boolean drained = isIdle(server, plugin);
+        if (allocation != null)
+            allocation.sample();
+
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        // report
+        long[] sorted = tickTimes.clone();
+        Arrays.sort(sorted);
+        long slowTicks = Arrays.stream(tickTimes).filter(time -> time > TICK_NANOS).count();
+
+        System.out.printf(Locale.ROOT, "Tick time (ms): mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f; "
+                        + "%d of %d ticks over 50 ms%n", Arrays.stream(tickTimes).average().orElse(0) / 1e6,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                ticks == 0 ? 0 : sorted[ticks - 1] / 1e6, slowTicks, ticks);
+
+        if (allocation != null)
+            System.out.printf(Locale.ROOT, "Allocated: %.1f MB on the main thread (%.1f KB per tick), "
+                            + "%.1f MB on all threads%n", mainAllocated / MB,
+                    ticks == 0 ? 0 : mainAllocated / 1024.0 / ticks, allocation.getTotal() / MB);
+        else
+            System.out.println("Allocated: not measured, this JVM cannot count allocations per thread");
+
+        System.out.printf(Locale.ROOT, "Heap (MB): %.1f before, %.1f at peak, %.1f after the effects finished%n",
+                heapBefore / MB, peakHeap / MB, heapAfter / MB);
+
+        System.out.printf(Locale.ROOT, "Commands: %d run, %d refused; admitted %d, degraded %d, queued %d, rejected %d%n",
+                commandsRun, commandsRefused, admission.getAdmitted(), admission.getDegraded(), admission.getQueued(),
+                admission.getRejected());
+
+        System.out.println(drained ? "Drained: every effect finished " + drainTicks + " ticks after the last command"
+                : "Drained: NO, effects were still running " + drainTicks + " ticks after the last command");
+
+        printStats(server, plugin);
+
+        long missedHolds = holds.countMissed();
+        if (!checkHolds)
+            System.out.println("Held: not checked, no ring changes the world, or rings are animated");
+        else
+            System.out.println(missedHolds == 0 ? "Held: all " + holds.held + " admitted rings were air for "
+                    + HOLD_TICKS + " ticks" : "Held: NO, " + missedHolds + " of " + (holds.held + missedHolds)
+                    + " admitted rings were never air for " + HOLD_TICKS + " ticks");
+
+        // every block should be back as it was, and no player shown otherwise, before disabling the plugin puts
+        // back whatever is left
+        long changedBlocks = world.countChangedBlocks(), ghostBlocks = server.countGhostBlocks();
+        int heldBlocks = plugin.getBlockOwnership(world.getWorld()).size();
+
+        boolean restored = changedBlocks == 0 && ghostBlocks == 0 && heldBlocks == 0;
+        System.out.println(restored ? "Restored: all blocks"
+                : "Restored: NO, " + changedBlocks + " blocks left changed, " + heldBlocks + " still held by effects, "
+                + ghostBlocks + " ghost blocks still shown to players");
+
+        // blocks in unloaded chunks should have been left alone all along, neither changed nor "restored"
+        boolean untouched = true;
+        if (world.getUnloadedChunks() == 0) {
+            System.out.println("Untouched: not checked, no chunk was unloaded");
+        } else if (!plugin.isSkippingUnloadedChunks()) {
+            System.out.println("Untouched: not checked, block-changes.skip-unloaded-chunks is off");
+        } else {
+            untouched = world.getUnloadedChunkLookups() == 0 && world.getUnloadedWrites() == 0;
+            System.out.println(untouched ? "Untouched: all " + world.getUnloadedChunks() + " unloaded chunks"
+                    : "Untouched: NO, unloaded chunks were looked up " + world.getUnloadedChunkLookups()
+                    + " times and " + world.getUnloadedWrites() + " of their blocks written");
+        }
+
+        plugin.onDisable();
+        server.shutdown();
+
+        try (Stream<Path> files = Files.walk(dataFolder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+
+        return drained && restored && untouched && missedHolds == 0;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static GameEffects createPlugin(SimulatedServer server, File dataFolder) throws Exception {
+
+        PluginDescriptionFile description;
+        try (InputStream in = GameEffects.class.getClassLoader().getResourceAsStream("plugin.yml")) {
+            description = new PluginDescriptionFile(in);
+        }
+
+        File file = new File(GameEffects.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        GameEffects plugin = new GameEffects(new JavaPluginLoader(server.getServer()), description, dataFolder, file);
+        server.registerCommands(plugin, description);
+        return plugin;
+    }
+
+    /**
+     * @return whether nothing is waiting to run; the server is checked first,
+     *         since its tasks hand their work over to the plugin
+     */
+    private static boolean isIdle(SimulatedServer server, GameEffects plugin) {
+        return !server.hasPendingTasks() && plugin.getPreparationPool().isQuiescent()
+                && plugin.getAdmissionController().getQueuedRequests() == 0
+                && plugin.getEffectTimeline().getActiveEffects() == 0
+                && plugin.getEffectTimeline().getPendingEvents() == 0
+                && plugin.getBlockChangeScheduler().getQueuedChanges() == 0
+                && plugin.getGhostBlockSender().getQueuedChanges() == 0;
+    }
+
+    /**
+     * Prints the plugin's own metrics, as /gameeffects stats shows them
+     */
+    private static void printStats(SimulatedServer server, GameEffects plugin) {
+
+        CommandSender sender = (CommandSender) Proxy.newProxyInstance(LoadSimulation.class.getClassLoader(),
+                new Class<?>[] { CommandSender.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "sendMessage":
+                            if (args[0] instanceof String)
+                                System.out.println("  " + ChatColor.stripColor((String) args[0]));
+                            return null;
+                        case "getName":
+                            return "Simulation";
+                        case "hasPermission":
+                        case "isOp":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+
+        server.dispatch(sender, "gameeffects", "stats");
+    }
+
+    /**
+     * @return the positions in chunks the world has loaded
+     */
+    private static long[] loadedOnly(StubWorld world, long[] positions) {
+        return Arrays.stream(positions)
+                .filter(pos -> world.isChunkLoaded(BlockPos.getChunkX(pos), BlockPos.getChunkZ(pos))).toArray();
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+
+        if (sorted.length == 0)
+            return 0;
+
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private static Object parseValue(String value) {
+
+        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
+            return Boolean.parseBoolean(value);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    /**
+     * Checks that every admitted ring is air while it is held. Since the ring
+     * cannot be told apart from others on the same blocks, each player's ring
+     * is expected to turn the edge of their circle to air, some time after the
+     * command, and keep it so for HOLD_TICKS ticks in a row; a player's rings
+     * start in order, so each must find its own run of ticks, after the run of
+     * the ring before.
+     *
+     */
+    private static final class HoldChecker {
+
+        private final StubWorld world;
+
+        private final long[][] edges;
+
+        private final ArrayDeque<Long>[] expected; // the ticks of each player's commands, oldest first
+
+        private final long[] airSince, lastStart; // per player, or -1
+
+        long held;
+
+        @SuppressWarnings("unchecked")
+        HoldChecker(StubWorld world, int players) {
+
+            this.world = world;
+            edges = new long[players][];
+            expected = new ArrayDeque[players];
+            airSince = new long[players];
+            lastStart = new long[players];
+            for (int i = 0; i < players; i++) {
+                expected[i] = new ArrayDeque<>();
+                airSince[i] = -1;
+                lastStart[i] = -1;
+            }
+        }
+
+        void setEdge(int player, long[] edge) {
+            edges[player] = edge;
+        }
+
+        /**
+         * Expects a player's ring, for a command run on the given tick
+         */
+        void expect(int player, long tick) {
+            if (player < edges.length)
+                expected[player].add(tick);
+        }
+
+        /**
+         * Checks the edges of the players expecting rings, after a tick
+         */
+        void check(long tick) {
+
+            for (int i = 0; i < edges.length; i++) {
+
+                if (expected[i].isEmpty())
+                    continue;
+
+                if (!isAir(edges[i])) {
+                    airSince[i] = -1;
+                    continue;
+                }
+                if (airSince[i] < 0)
+                    airSince[i] = tick;
+
+                // a ring held since the later of its command, the air showing
+                // up, and the tick after the previous ring's run started
+                long start = Math.max(Math.max(expected[i].peek(), airSince[i]), lastStart[i] + 1);
+                if (tick - start + 1 >= HOLD_TICKS) {
+                    expected[i].poll();
+                    lastStart[i] = start;
+                    held++;
+                }
+            }
+        }
+
+        /**
+         * @return how many rings were expected but never held
+         */
+        long countMissed() {
+
+            long missed = 0;
+            for (ArrayDeque<Long> ticks : expected)
+                missed += ticks.size();
+
+            return missed;
+        }
+
+        private boolean isAir(long[] edge) {
+
+            for (long pos : edge) {
+                if (world.getState(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)) != BlockStates.AIR)
+                    return false;
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * Counts the bytes threads allocate. Threads that exit take their count
+     * with them, so every thread is sampled now and then and the last count
+     * seen of each is kept.
+     *
+     */
+    private static final class AllocationSampler {
+
+        private final com.sun.management.ThreadMXBean threads;
+
+        private final HashMap<Long, Long> baseline = new HashMap<>(), last = new HashMap<>();
+
+        final long overhead; // what asking for a thread's count allocates itself
+
+        private AllocationSampler(com.sun.management.ThreadMXBean threads) {
+
+            this.threads = threads;
+
+            long id = Thread.currentThread().getId();
+            threads.getThreadAllocatedBytes(id); // warm up
+            long first = threads.getThreadAllocatedBytes(id);
+            overhead = threads.getThreadAllocatedBytes(id) - first;
+
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++)
+                baseline.put(ids[i], allocated[i]);
+        }
+
+        /**
+         * @return a sampler, or null if the JVM cannot count allocations per
+         *         thread
+         */
+        static AllocationSampler create(ThreadMXBean threads) {
+
+            if (!(threads instanceof com.sun.management.ThreadMXBean))
+                return null;
+
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (!counting.isThreadAllocatedMemorySupported())
+                return null;
+
+            counting.setThreadAllocatedMemoryEnabled(true);
+            return new AllocationSampler(counting);
+        }
+
+        long getAllocated(long threadId) {
+            return threads.getThreadAllocatedBytes(threadId);
+        }
+
+        void sample() {
+
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0)
+                    last.put(ids[i], allocated[i]);
+            }
+        }
+
+        /**
+         * @return the bytes allocated by every thread seen since the sampler was
+         *         created, as of the last sample
+         */
+        long getTotal() {
+
+            long total = 0;
+            for (Map.Entry<Long, Long> entry : last.entrySet())
+                total += entry.getValue() - baseline.getOrDefault(entry.getKey(), 0L);
+
+            return total;
+        }
+
+    }
+
+}
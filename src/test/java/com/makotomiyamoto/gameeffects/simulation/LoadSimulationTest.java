@@ -0,0 +1,49 @@
+package com.makotomiyamoto.gameeffects.simulation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs small scenarios of {@link LoadSimulation}, back to back rather than at
+ * 20 ticks per second. A scenario of its own can be run instead of the first
+ * one with -Dsimulation, e.g.
+ * {@code mvn test -Dtest=LoadSimulationTest -Dsimulation="players=500 tick-millis=50"}
+ *
+ */
+public class LoadSimulationTest {
+
+    private static final String[] SMALL = { "players=40", "interval=20", "ticks=200", "tick-millis=0" };
+
+    @Test
+    public void ringsAreHeldAndRestored() throws Exception {
+
+        String scenario = System.getProperty("simulation");
+        assertTrue(LoadSimulation.run(scenario == null ? SMALL : scenario.trim().split("\\s+")));
+    }
+
+    @Test
+    public void ghostRingsAreReverted() throws Exception {
+        assertTrue(LoadSimulation.run(with("mode=ghost")));
+    }
+
+    @Test
+    public void animatedRingsAreRestored() throws Exception {
+        assertTrue(LoadSimulation.run(with("animated=true", "radius=24")));
+    }
+
+    @Test
+    public void unloadedChunksAreLeftAlone() throws Exception {
+        assertTrue(LoadSimulation.run(with("unloaded-chunks=30")));
+    }
+
+    private static String[] with(String... options) {
+
+        String[] args = new String[SMALL.length + options.length];
+        System.arraycopy(SMALL, 0, args, 0, SMALL.length);
+        System.arraycopy(options, 0, args, SMALL.length, options.length);
+
+        return args;
+    }
+
+}
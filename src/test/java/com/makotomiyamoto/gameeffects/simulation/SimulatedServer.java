@@ -0,0 +1,441 @@
+package com.makotomiyamoto.gameeffects.simulation;
+
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A stand-in for a Bukkit server with one {@link StubWorld}, so the plugin can
+ * be enabled, sent commands and disabled without a real server.
+ *
+ * Ticks only advance when {@link #tick()} is called, from the thread that
+ * created the server, which acts as the main thread. Sync tasks run on it
+ * during the tick they are due; async tasks run on a pool of their own, like
+ * the Bukkit scheduler's. Players are proxies that stand still and remember
+ * the block changes they are sent, so ghost blocks left behind can be counted.
+ *
+ * Only the Server, BukkitScheduler and Player methods the plugin calls are
+ * answered; everything else returns a default value.
+ *
+ */
+public final class SimulatedServer {
+
+    private final Server server;
+
+    private final StubWorld world;
+
+    private final Thread mainThread = Thread.currentThread();
+
+    private final Logger logger = Logger.getLogger("GameEffects Simulation");
+
+    private final ConcurrentLinkedQueue<Task> incoming = new ConcurrentLinkedQueue<>();
+
+    private final List<Task> tasks = new ArrayList<>();
+
+    private final ExecutorService async = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Simulated Async Task");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicInteger runningAsyncTasks = new AtomicInteger(), nextTaskId = new AtomicInteger();
+
+    private final LongAdder broadcasts = new LongAdder(), messages = new LongAdder(), blockChangesSent = new LongAdder();
+
+    private final HashMap<String, PluginCommand> commands = new HashMap<>();
+
+    private final List<Player> players = new ArrayList<>();
+
+    private final List<HashMap<Long, Integer>> shownBlocks = new ArrayList<>(); // per player, blocks shown unlike the world
+
+    private final int viewDistance;
+
+    private long tick;
+
+    /**
+     * @param world        - the server's only world
+     * @param viewDistance - the view distance the server reports, in chunks
+     */
+    public SimulatedServer(StubWorld world, int viewDistance) {
+
+        this.world = world;
+        this.viewDistance = viewDistance;
+
+        BukkitScheduler scheduler = (BukkitScheduler) Proxy.newProxyInstance(SimulatedServer.class.getClassLoader(),
+                new Class<?>[] { BukkitScheduler.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "runTask":
+                            return schedule((Runnable) args[1], 0, -1, false);
+                        case "runTaskLater":
+                            return schedule((Runnable) args[1], (Long) args[2], -1, false);
+                        case "runTaskTimer":
+                            return schedule((Runnable) args[1], (Long) args[2], (Long) args[3], false);
+                        case "runTaskAsynchronously":
+                            return schedule((Runnable) args[1], 0, -1, true);
+                        case "runTaskLaterAsynchronously":
+                            return schedule((Runnable) args[1], (Long) args[2], -1, true);
+                        case "runTaskTimerAsynchronously":
+                            return schedule((Runnable) args[1], (Long) args[2], (Long) args[3], true);
+                        case "scheduleSyncDelayedTask":
+                            return schedule((Runnable) args[1], args.length > 2 ? (Long) args[2] : 0, -1, false)
+                                    .getTaskId();
+                        case "cancelTasks":
+                            incoming.clear();
+                            tasks.forEach(task -> task.cancelled = true);
+                            return null;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+
+        ConsoleCommandSender console = (ConsoleCommandSender) Proxy.newProxyInstance(
+                SimulatedServer.class.getClassLoader(), new Class<?>[] { ConsoleCommandSender.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "sendMessage":
+                            if (args[0] instanceof String)
+                                logger.info(ChatColor.stripColor((String) args[0]));
+                            return null;
+                        case "getName":
+                            return "CONSOLE";
+                        case "hasPermission":
+                        case "isOp":
+                            return true;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+
+        server = (Server) Proxy.newProxyInstance(SimulatedServer.class.getClassLoader(), new Class<?>[] { Server.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getScheduler":
+                            return scheduler;
+                        case "getConsoleSender":
+                            return console;
+                        case "getLogger":
+                            return logger;
+                        case "broadcastMessage":
+                            broadcasts.increment();
+                            return players.size();
+                        case "getViewDistance":
+                            return viewDistance;
+                        case "getWorld":
+                            return args[0].equals(world.getWorld().getUID()) || args[0].equals("stub") ? world.getWorld()
+                                    : null;
+                        case "getWorlds":
+                            return Collections.singletonList(world.getWorld());
+                        case "getOnlinePlayers":
+                            return Collections.unmodifiableList(players);
+                        case "isPrimaryThread":
+                            return Thread.currentThread() == mainThread;
+                        case "getPluginCommand":
+                            return commands.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+                        case "getName":
+                            return "GameEffects Simulation";
+                        case "getVersion":
+                        case "getBukkitVersion":
+                            return "1.12.2";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "SimulatedServer";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Creates the commands a plugin declares in its description, as a server
+     * does before enabling the plugin
+     */
+    public void registerCommands(Plugin plugin, PluginDescriptionFile description) {
+
+        try {
+            Constructor<PluginCommand> constructor = PluginCommand.class.getDeclaredConstructor(String.class,
+                    Plugin.class);
+            constructor.setAccessible(true);
+            for (String name : description.getCommands().keySet())
+                commands.put(name.toLowerCase(Locale.ENGLISH), constructor.newInstance(name, plugin));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the plugin's commands", e);
+        }
+    }
+
+    /**
+     * Runs a command the way a player typing it would, skipping the permission
+     * check. Must be called on the main thread.
+     *
+     * @return false if the command showed its usage
+     */
+    public boolean dispatch(CommandSender sender, String label, String... args) {
+
+        PluginCommand command = commands.get(label.toLowerCase(Locale.ENGLISH));
+        if (command == null)
+            throw new IllegalArgumentException("Unknown command " + label);
+
+        return command.getExecutor().onCommand(sender, command, label, args);
+    }
+
+    /**
+     * Adds a player standing still at a position of the world
+     */
+    @SuppressWarnings("deprecation")
+    public Player addPlayer(String name, double x, double y, double z) {
+
+        UUID uid = UUID.nameUUIDFromBytes(name.getBytes());
+        Location location = new Location(world.getWorld(), x, y, z);
+        HashMap<Long, Integer> shown = new HashMap<>();
+
+        Player player = (Player) Proxy.newProxyInstance(SimulatedServer.class.getClassLoader(),
+                new Class<?>[] { Player.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUniqueId":
+                            return uid;
+                        case "getName":
+                        case "getDisplayName":
+                            return name;
+                        case "getLocation":
+                            return location.clone();
+                        case "getWorld":
+                            return world.getWorld();
+                        case "sendMessage":
+                            messages.increment();
+                            return null;
+                        case "sendBlockChange":
+                            Location at = (Location) args[0];
+                            int state = args[1] instanceof Material ? BlockStates.of((Material) args[1], (Byte) args[2])
+                                    : BlockStates.of(Material.getMaterial((Integer) args[1]), (Byte) args[2]);
+                            showBlock(shown, at.getBlockX(), at.getBlockY(), at.getBlockZ(), state);
+                            return null;
+                        case "hasPermission":
+                        case "isOp":
+                        case "isOnline":
+                            return true;
+                        case "hashCode":
+                            return uid.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "SimulatedPlayer{" + name + "}";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+
+        players.add(player);
+        shownBlocks.add(shown);
+        world.addPlayer(player);
+        return player;
+    }
+
+    /**
+     * Advances the server by one tick, running every sync task that is due and
+     * handing the async ones to their pool. Must be called on the main thread.
+     */
+    public void tick() {
+
+        tick++;
+
+        for (Task task; (task = incoming.poll()) != null; )
+            tasks.add(task);
+
+        // tasks scheduled while these run wait for the next tick, as on a server
+        int count = tasks.size();
+        for (int i = 0; i < count; i++) {
+            Task task = tasks.get(i);
+            if (task.cancelled || task.nextTick > tick)
+                continue;
+
+            if (task.async)
+                runAsync(task.runnable);
+            else
+                task.runnable.run();
+
+            if (task.period > 0)
+                task.nextTick = tick + task.period;
+            else
+                task.cancelled = true;
+        }
+
+        tasks.removeIf(task -> task.cancelled);
+    }
+
+    /**
+     * @return whether any task that only runs once is still waiting or running
+     */
+    public boolean hasPendingTasks() {
+
+        if (runningAsyncTasks.get() > 0)
+            return true;
+
+        for (Task task : incoming) {
+            if (task.period <= 0 && !task.cancelled)
+                return true;
+        }
+        for (Task task : tasks) {
+            if (task.period <= 0 && !task.cancelled)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops the async pool, waiting for the tasks still running
+     */
+    public void shutdown() throws InterruptedException {
+        async.shutdown();
+        async.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    /**
+     * @return how many chat messages players have been sent
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    /**
+     * @return how many block changes players have been sent
+     */
+    public long getBlockChangesSent() {
+        return blockChangesSent.sum();
+    }
+
+    /**
+     * @return how many blocks, summed over players, the last change sent shows
+     *         in a state other than the world's. Must be called on the main
+     *         thread.
+     */
+    public long countGhostBlocks() {
+
+        long count = 0;
+        for (HashMap<Long, Integer> shown : shownBlocks) {
+            // the world may have changed since the change was sent
+            for (Map.Entry<Long, Integer> entry : shown.entrySet()) {
+                long pos = entry.getKey();
+                if (world.getState(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)) != entry.getValue())
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private void showBlock(HashMap<Long, Integer> shown, int x, int y, int z, int state) {
+
+        blockChangesSent.increment();
+        if (state == world.getState(x, y, z))
+            shown.remove(BlockPos.pack(x, y, z));
+        else
+            shown.put(BlockPos.pack(x, y, z), state);
+    }
+
+    private BukkitTask schedule(Runnable runnable, long delay, long period, boolean async) {
+
+        Task task = new Task(runnable, nextTaskId.incrementAndGet(), tick + Math.max(delay, 1), period, async);
+        incoming.add(task);
+
+        return (BukkitTask) Proxy.newProxyInstance(SimulatedServer.class.getClassLoader(),
+                new Class<?>[] { BukkitTask.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTaskId":
+                            return task.id;
+                        case "isSync":
+                            return !task.async;
+                        case "isCancelled":
+                            return task.cancelled;
+                        case "cancel":
+                            task.cancelled = true;
+                            return null;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private void runAsync(Runnable runnable) {
+
+        runningAsyncTasks.incrementAndGet();
+        async.execute(() -> {
+            try {
+                runnable.run();
+            } finally {
+                runningAsyncTasks.decrementAndGet();
+            }
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        // a fresh one-element array holds the type's default value, boxed for primitives
+        return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+
+    private static final class Task {
+
+        final Runnable runnable;
+
+        final int id;
+
+        final long period;
+
+        final boolean async;
+
+        long nextTick;
+
+        volatile boolean cancelled;
+
+        Task(Runnable runnable, int id, long nextTick, long period, boolean async) {
+            this.runnable = runnable;
+            this.id = id;
+            this.nextTick = nextTick;
+            this.period = period;
+            this.async = async;
+        }
+
+    }
+
+}
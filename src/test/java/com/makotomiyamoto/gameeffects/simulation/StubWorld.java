@@ -0,0 +1,358 @@
+package com.makotomiyamoto.gameeffects.simulation;
+
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An in-memory stand-in for a Bukkit world, so the plugin's code can run
+ * without a server. Blocks are kept per chunk section in flat arrays of encoded
+ * states, allocated when a block in the section is first changed, and every
+ * block starts out as stone.
+ *
+ * Only the handful of World, Chunk, ChunkSnapshot and Block methods the plugin
+ * calls are answered; everything else returns a default value. Not
+ * thread-safe, except for reading chunk snapshots.
+ *
+ * Chunks can be marked as not loaded. They stay that way, but the world counts
+ * how often one is looked up anyway, which on a server would load it, and how
+ * many blocks are written in them, so skipping unloaded chunks can be checked.
+ *
+ * So that allocation profiles measure the plugin rather than the stub, chunks
+ * are created once per coordinate, and every block lookup returns the same
+ * block, moved to the coordinates asked for. A block is therefore only valid
+ * until the next lookup, which is as long as the plugin ever keeps one. Calls
+ * through the proxies still box their arguments and results.
+ *
+ */
+public final class StubWorld {
+
+    private static final int STONE = BlockStates.of(Material.STONE, (byte) 0);
+
+    private final HashMap<Long, int[][]> chunks = new HashMap<>();
+
+    private final HashMap<Long, Chunk> chunkProxies = new HashMap<>();
+
+    private final HashSet<Long> unloadedChunks = new HashSet<>();
+
+    private final List<Player> players = new ArrayList<>();
+
+    private final UUID uid = UUID.randomUUID();
+
+    private final World world;
+
+    private final Block block;
+
+    private int blockX, blockY, blockZ; // where the block currently stands
+
+    private long lastChunkKey = Long.MIN_VALUE; // blocks are mostly touched chunk by chunk, so skip the map when
+    // the chunk has not changed
+
+    private int[][] lastChunk;
+
+    private long lastChunkProxyKey = Long.MIN_VALUE;
+
+    private Chunk lastChunkProxy;
+
+    private long reads, writes;
+
+    private long unloadedChunkLookups, unloadedWrites;
+
+    public StubWorld() {
+        world = (World) Proxy.newProxyInstance(StubWorld.class.getClassLoader(), new Class<?>[] { World.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getBlockAt":
+                            return block((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+                        case "getChunkAt":
+                            if (!isChunkLoaded((Integer) args[0], (Integer) args[1]))
+                                unloadedChunkLookups++;
+                            return chunkProxy((Integer) args[0], (Integer) args[1]);
+                        case "isChunkLoaded":
+                            return isChunkLoaded((Integer) args[0], (Integer) args[1]);
+                        case "getUID":
+                            return uid;
+                        case "getName":
+                            return "stub";
+                        case "getPlayers":
+                            return new ArrayList<>(players);
+                        case "getMaxHeight":
+                            return 256;
+                        case "hashCode":
+                            return uid.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StubWorld";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+        block = blockProxy();
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getState(int x, int y, int z) {
+        int[] section = chunk(x >> 4, z >> 4)[y >> 4];
+        return section == null ? STONE : section[index(x, y, z)];
+    }
+
+    public void setState(int x, int y, int z, int state) {
+
+        int[][] sections = chunk(x >> 4, z >> 4);
+        if (sections[y >> 4] == null) {
+            sections[y >> 4] = new int[16 * 16 * 16];
+            Arrays.fill(sections[y >> 4], STONE);
+        }
+        sections[y >> 4][index(x, y, z)] = state;
+    }
+
+    /**
+     * Marks a chunk as loaded or not, as isChunkLoaded reports it
+     */
+    public void setChunkLoaded(int chunkX, int chunkZ, boolean loaded) {
+        if (loaded)
+            unloadedChunks.remove(chunkKey(chunkX, chunkZ));
+        else
+            unloadedChunks.add(chunkKey(chunkX, chunkZ));
+    }
+
+    public boolean isChunkLoaded(int chunkX, int chunkZ) {
+        return unloadedChunks.isEmpty() || !unloadedChunks.contains(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * @return how many chunks are marked as not loaded
+     */
+    public int getUnloadedChunks() {
+        return unloadedChunks.size();
+    }
+
+    /**
+     * @return how often a chunk marked as not loaded was looked up, which would
+     *         have loaded it
+     */
+    public long getUnloadedChunkLookups() {
+        return unloadedChunkLookups;
+    }
+
+    /**
+     * @return how many blocks were written in chunks marked as not loaded
+     */
+    public long getUnloadedWrites() {
+        return unloadedWrites;
+    }
+
+    /**
+     * Adds a player the world reports as standing in it
+     */
+    public void addPlayer(Player player) {
+        players.add(player);
+    }
+
+    /**
+     * @return how many blocks are no longer stone
+     */
+    public long countChangedBlocks() {
+
+        long changed = 0;
+        for (int[][] sections : chunks.values()) {
+            for (int[] section : sections) {
+                if (section == null)
+                    continue;
+                for (int state : section) {
+                    if (state != STONE)
+                        changed++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public void clear() {
+        chunks.clear();
+        chunkProxies.clear();
+        unloadedChunks.clear();
+        lastChunkProxyKey = Long.MIN_VALUE;
+        lastChunkProxy = null;
+        players.clear();
+        lastChunkKey = Long.MIN_VALUE;
+        lastChunk = null;
+        reads = writes = 0;
+        unloadedChunkLookups = unloadedWrites = 0;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private int[][] chunk(int chunkX, int chunkZ) {
+
+        long key = chunkKey(chunkX, chunkZ);
+        if (key != lastChunkKey) {
+            int[][] states = chunks.get(key);
+            if (states == null) {
+                states = new int[16][]; // a missing section is all stone
+                chunks.put(key, states);
+            }
+            lastChunkKey = key;
+            lastChunk = states;
+        }
+        return lastChunk;
+    }
+
+    private static int index(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private Chunk chunkProxy(int chunkX, int chunkZ) {
+
+        long key = chunkKey(chunkX, chunkZ);
+        if (key != lastChunkProxyKey) {
+            lastChunkProxy = chunkProxies.computeIfAbsent(key, k -> newChunkProxy(chunkX, chunkZ));
+            lastChunkProxyKey = key;
+        }
+        return lastChunkProxy;
+    }
+
+    private Chunk newChunkProxy(int chunkX, int chunkZ) {
+        return (Chunk) Proxy.newProxyInstance(StubWorld.class.getClassLoader(), new Class<?>[] { Chunk.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getBlock":
+                            return block((chunkX << 4) | (Integer) args[0], (Integer) args[1],
+                                    (chunkZ << 4) | (Integer) args[2]);
+                        case "getX":
+                            return chunkX;
+                        case "getZ":
+                            return chunkZ;
+                        case "getWorld":
+                            return world;
+                        case "isLoaded":
+                            return isChunkLoaded(chunkX, chunkZ);
+                        case "getChunkSnapshot":
+                            return snapshot(chunkX, chunkZ);
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    @SuppressWarnings("deprecation")
+    private ChunkSnapshot snapshot(int chunkX, int chunkZ) {
+
+        // copy the sections, so the snapshot keeps the states of the moment it
+        // was taken and can be read from any thread
+        int[][] sections = chunk(chunkX, chunkZ).clone();
+        for (int i = 0; i < sections.length; i++) {
+            if (sections[i] != null)
+                sections[i] = sections[i].clone();
+        }
+
+        return (ChunkSnapshot) Proxy.newProxyInstance(StubWorld.class.getClassLoader(),
+                new Class<?>[] { ChunkSnapshot.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getBlockTypeId":
+                        case "getBlockData":
+                            int y = (Integer) args[1];
+                            int[] section = sections[y >> 4];
+                            int state = section == null ? STONE : section[index((Integer) args[0], y, (Integer) args[2])];
+                            return method.getName().equals("getBlockData") ? (int) BlockStates.getData(state)
+                                    : BlockStates.getType(state).getId();
+                        case "isSectionEmpty":
+                            return false;
+                        case "getX":
+                            return chunkX;
+                        case "getZ":
+                            return chunkZ;
+                        case "getWorldName":
+                            return "stub";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private Block block(int x, int y, int z) {
+        blockX = x;
+        blockY = y;
+        blockZ = z;
+        return block;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Block blockProxy() {
+        return (Block) Proxy.newProxyInstance(StubWorld.class.getClassLoader(), new Class<?>[] { Block.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getType":
+                            reads++;
+                            return BlockStates.getType(getState(blockX, blockY, blockZ));
+                        case "getTypeId":
+                            reads++;
+                            return BlockStates.getType(getState(blockX, blockY, blockZ)).getId();
+                        case "getData":
+                            return BlockStates.getData(getState(blockX, blockY, blockZ));
+                        case "setType":
+                            written();
+                            setState(blockX, blockY, blockZ, BlockStates.of((Material) args[0], (byte) 0));
+                            return null;
+                        case "setTypeIdAndData":
+                            written();
+                            setState(blockX, blockY, blockZ,
+                                    BlockStates.of(Material.getMaterial((Integer) args[0]), (Byte) args[1]));
+                            return true;
+                        case "getX":
+                            return blockX;
+                        case "getY":
+                            return blockY;
+                        case "getZ":
+                            return blockZ;
+                        case "getWorld":
+                            return world;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private void written() {
+        writes++;
+        if (!isChunkLoaded(blockX >> 4, blockZ >> 4))
+            unloadedWrites++;
+    }
+
+    /**
+     * @return what a proxied method returning the given type answers when it
+     *         is not stubbed
+     */
+    public static Object defaultValue(Class<?> type) {
+        // a fresh one-element array holds the type's default value, boxed for primitives
+        return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.RingAnimation;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockSnapshot;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import com.makotomiyamoto.gameeffects.world.SnapshotJournal;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two overlapping rings, growing from radius 2 to 40, 3 thick, are animated in
+ * world mode over a {@link StubWorld} of random blocks. After every tick, the
+ * journal is read back as recovery would read it after a crash. Every block
+ * not in its original state must be covered by a live record, and, on ticks
+ * with no block change queued, no live record may cover a block no ring holds
+ * any more. A tick budget of 30 us spreads frames over several ticks.
+ *
+ */
+public class AnimatedRingEffectTest {
+
+    private static final long SEED = 0x47455231;
+
+    private static final int FROM_RADIUS = 2, TO_RADIUS = 40, THICKNESS = 3;
+
+    private static final int OFFSET_X = 9, OFFSET_Z = 5; // the second ring's center, from the first's
+
+    private static final int SECOND_DELAY_TICKS = 7;
+
+    private static final int HOLD_TICKS = 20;
+
+    private static final int Y = 64;
+
+    private static final int MAX_TICKS = 20000;
+
+    private static final Material[] MATERIALS = { Material.STONE, Material.DIRT, Material.GRASS, Material.GLASS,
+            Material.WOOL };
+
+    private Path folder;
+
+    private File file;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("gameeffects-ring-journal-test");
+        file = folder.resolve("snapshots.journal").toFile();
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.delete(folder);
+    }
+
+    @Test
+    public void journalFollowsTheRings() throws IOException {
+        animate(2_000_000L);
+    }
+
+    @Test
+    public void journalFollowsRingsSpreadOverTicks() throws IOException {
+        animate(30_000L);
+    }
+
+    /**
+     * Animates the two rings at a tick budget, checking the journal after every
+     * tick
+     */
+    private void animate(long tickBudgetNanos) throws IOException {
+
+        Random random = new Random(SEED);
+
+        StubWorld world = new StubWorld();
+        int min = -TO_RADIUS - 1, side = 2 * TO_RADIUS + 3 + Math.max(OFFSET_X, OFFSET_Z);
+        int[] originals = new int[side * side];
+        for (int i = 0; i < originals.length; i++) {
+            originals[i] = BlockStates.of(MATERIALS[random.nextInt(MATERIALS.length)], (byte) random.nextInt(16));
+            world.setState(min + i % side, Y, min + i / side, originals[i]);
+        }
+
+        SnapshotJournal journal = new SnapshotJournal(file);
+        BlockChangeScheduler scheduler = new BlockChangeScheduler(tickBudgetNanos);
+        EffectTimeline timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        BlockOwnershipIndex ownership = new BlockOwnershipIndex();
+        Logger logger = Logger.getLogger(AnimatedRingEffectTest.class.getName());
+        RingAnimation animation = new RingAnimation(FROM_RADIUS, TO_RADIUS, THICKNESS, CircleGenerator.Plane.XZ);
+
+        timeline.start(AnimatedRingEffect.inWorld(scheduler, journal, logger, ownership, timeline,
+                new Location(world.getWorld(), 0, Y, 0), animation, BlockStates.AIR, 1L, HOLD_TICKS), 0L);
+        timeline.start(AnimatedRingEffect.inWorld(scheduler, journal, logger, ownership, timeline,
+                new Location(world.getWorld(), OFFSET_X, Y, OFFSET_Z), animation,
+                BlockStates.of(Material.GLASS, (byte) 0), 1L, HOLD_TICKS), SECOND_DELAY_TICKS);
+
+        long unjournaled = 0, stale = 0;
+        int ticks = 0;
+        while (ticks < MAX_TICKS && (timeline.getPendingEvents() > 0 || scheduler.getQueuedChanges() > 0)) {
+            timeline.run();
+            scheduler.run();
+            ticks++;
+
+            HashSet<Long> journaled = new HashSet<>();
+            try (SnapshotJournal reader = new SnapshotJournal(file)) {
+                for (BlockSnapshot snapshot : reader.recover().values()) {
+                    for (int i = 0; i < snapshot.size(); i++)
+                        journaled.add(snapshot.getPosition(i));
+                }
+            }
+
+            for (int i = 0; i < originals.length; i++) {
+                long pos = BlockPos.pack(min + i % side, Y, min + i / side);
+                if (world.getState(min + i % side, Y, min + i / side) != originals[i] && !journaled.contains(pos))
+                    unjournaled++;
+            }
+
+            if (scheduler.getQueuedChanges() == 0) {
+                for (long pos : journaled) {
+                    if (ownership.getOwners(pos) == 0)
+                        stale++;
+                }
+            }
+        }
+
+        long wrong = 0;
+        for (int i = 0; i < originals.length; i++) {
+            if (world.getState(min + i % side, Y, min + i / side) != originals[i])
+                wrong++;
+        }
+        int unreleased = journal.getUnreleased();
+        journal.close();
+
+        assertTrue("the rings did not finish", ticks < MAX_TICKS);
+        assertEquals("unjournaled block-ticks", 0, unjournaled);
+        assertEquals("stale block-ticks", 0, stale);
+        assertEquals("blocks not restored", 0, wrong);
+        assertEquals("snapshots unreleased", 0, unreleased);
+    }
+
+}
@@ -0,0 +1,225 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.world.BlockOwnershipIndex;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Material;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The same overlapping air rings run twice over a {@link StubWorld} that is
+ * mostly air already, once reading every block on the main thread and once
+ * prefiltered on a pool. Both must restore every block, and the prefiltered
+ * run must read and write fewer.
+ *
+ * Then an effect holds 4096 blocks at air while a prefiltered effect captures
+ * their chunks, and releases them before the filter's result arrives. The
+ * prefiltered effect must still turn every one of them to air for its hold.
+ *
+ */
+public class ChunkSnapshotFilterTest {
+
+    private static final long SEED = 0x47455031;
+
+    private static final int AREA = 24, MIN_RADIUS = 8, MAX_RADIUS = 24, MAX_THICKNESS = 6;
+
+    private static final int EFFECTS = 40, INTERVAL = 3, MIN_HOLD = 10, MAX_HOLD = 60;
+
+    private static final int AIR_PERCENT = 60; // of the blocks under the rings, before any effect
+
+    private static final int SIDE = 64; // the second test's blocks are a square of SIDE x SIDE
+
+    private static final int MAX_SNAPSHOTS_PER_TICK = 64;
+
+    private static final int Y = 64;
+
+    private static final int MAX_TICKS = 20000;
+
+    private static final Material[] MATERIALS = { Material.STONE, Material.DIRT, Material.GRASS, Material.GLASS,
+            Material.WOOL };
+
+    @Test
+    public void prefilteringReadsAndWritesLess() throws InterruptedException {
+
+        long[] plain = simulate(false), filtered = simulate(true);
+
+        assertEquals("blocks left changed", 0, plain[2]);
+        assertEquals("blocks left changed, prefiltered", 0, filtered[2]);
+        assertTrue(plain[0] + " reads, prefiltered " + filtered[0], filtered[0] < plain[0]);
+        assertTrue(plain[1] + " writes, prefiltered " + filtered[1], filtered[1] < plain[1]);
+    }
+
+    /**
+     * Runs the overlapping rings to the end
+     *
+     * @return the main thread reads, the writes, and how many blocks were not
+     *         restored
+     */
+    private static long[] simulate(boolean prefilter) throws InterruptedException {
+
+        Random random = new Random(SEED); // the same rings both ways
+        StubWorld world = new StubWorld();
+        int min = -AREA - MAX_RADIUS, side = 2 * (AREA + MAX_RADIUS) + 1;
+        int[] originals = randomize(world, random, min, side, AIR_PERCENT);
+
+        BlockChangeScheduler scheduler = new BlockChangeScheduler(Long.MAX_VALUE / 2);
+        EffectTimeline timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        BlockOwnershipIndex ownership = new BlockOwnershipIndex();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ChunkSnapshotFilter filter = prefilter ? new ChunkSnapshotFilter(timeline, pool, MAX_SNAPSHOTS_PER_TICK)
+                : null;
+
+        for (int i = 0; i < EFFECTS; i++) {
+            int radius = MIN_RADIUS + random.nextInt(MAX_RADIUS - MIN_RADIUS + 1);
+            long[] positions = ring(random.nextInt(2 * AREA + 1) - AREA, random.nextInt(2 * AREA + 1) - AREA,
+                    radius, 1 + random.nextInt(MAX_THICKNESS));
+            long hold = MIN_HOLD + random.nextInt(MAX_HOLD - MIN_HOLD + 1);
+
+            timeline.start(new TemporaryBlockEffect(scheduler, null, null, ownership, world.getWorld(), positions,
+                    BlockStates.AIR, hold).prefilter(filter), (long) i * INTERVAL);
+        }
+
+        long readsBefore = world.getReads(), writesBefore = world.getWrites();
+        for (int tick = 0; tick < MAX_TICKS && (timeline.getActiveEffects() > 0
+                || timeline.getPendingEvents() > 0 || scheduler.getQueuedChanges() > 0); tick++) {
+            timeline.run();
+            scheduler.run();
+            if (prefilter)
+                Thread.sleep(0, 100_000); // gives the pool a moment, as a tick would
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        return new long[] { world.getReads() - readsBefore, world.getWrites() - writesBefore,
+                countWrong(world, originals, min, side) };
+    }
+
+    /**
+     * Has one effect hold a square of blocks at air while a prefiltered effect
+     * captures them, and release them before the filter's result arrives
+     */
+    @Test
+    public void blocksReleasedWhileFilteredAreStillChanged() {
+
+        Random random = new Random(SEED);
+        StubWorld world = new StubWorld();
+        int min = -SIDE / 2;
+        int[] originals = randomize(world, random, min, SIDE, 0);
+
+        long[] positions = new long[SIDE * SIDE];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = BlockPos.pack(min + i % SIDE, Y, min + i / SIDE);
+        Arrays.sort(positions);
+
+        ArrayDeque<Runnable> offThread = new ArrayDeque<>(); // run only when the test says so
+        BlockChangeScheduler scheduler = new BlockChangeScheduler(Long.MAX_VALUE / 2);
+        EffectTimeline timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        BlockOwnershipIndex ownership = new BlockOwnershipIndex();
+        ChunkSnapshotFilter filter = new ChunkSnapshotFilter(timeline, offThread::add, MAX_SNAPSHOTS_PER_TICK);
+
+        boolean[] firstFinished = { false };
+        long firstHold = 3, secondHold = 40;
+        timeline.start(new TemporaryBlockEffect(scheduler, null, null, ownership, world.getWorld(), positions,
+                BlockStates.AIR, firstHold).whenFinished(() -> firstFinished[0] = true), 0L);
+        tick(timeline, scheduler); // the first effect is applied
+
+        timeline.start(new TemporaryBlockEffect(scheduler, null, null, ownership, world.getWorld(), positions,
+                BlockStates.AIR, secondHold).prefilter(filter), 0L);
+        tick(timeline, scheduler); // the second asks for its positions to be filtered
+        runAll(offThread); // its chunks are found
+        tick(timeline, scheduler); // and captured, while the first effect holds them
+
+        assertTrue("captured while held", filter.getCapturedChunks() > 0 && ownership.size() == positions.length);
+
+        int ticks = 0;
+        while (!firstFinished[0] && ticks++ < MAX_TICKS)
+            tick(timeline, scheduler); // the first effect restores the blocks before the result arrives
+        assertTrue("the first effect finished", firstFinished[0]);
+        assertEquals("blocks not restored before the result", 0, countWrong(world, originals, min, SIDE));
+
+        runAll(offThread); // the comparison finishes
+        tick(timeline, scheduler); // the result arrives and the blocks are changed
+
+        long notAir = 0;
+        for (int tick = 0; tick < secondHold / 2; tick++) {
+            tick(timeline, scheduler);
+            for (long pos : positions) {
+                if (world.getState(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)) != BlockStates.AIR)
+                    notAir++;
+            }
+        }
+
+        ticks = 0;
+        while (timeline.getActiveEffects() > 0 && ticks++ < MAX_TICKS)
+            tick(timeline, scheduler);
+        assertEquals("block-ticks not air during the prefiltered hold", 0, notAir);
+        assertEquals("blocks not restored after it", 0, countWrong(world, originals, min, SIDE));
+    }
+
+    private static void tick(EffectTimeline timeline, BlockChangeScheduler scheduler) {
+        timeline.run();
+        scheduler.run();
+    }
+
+    private static void runAll(ArrayDeque<Runnable> tasks) {
+        for (Runnable task; (task = tasks.poll()) != null; )
+            task.run();
+    }
+
+    /**
+     * Fills a square of the world at y = 64 with random blocks, some of them air
+     *
+     * @return the states put in the square, row by row
+     */
+    private static int[] randomize(StubWorld world, Random random, int min, int side, int airPercent) {
+
+        int[] states = new int[side * side];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = random.nextInt(100) < airPercent ? BlockStates.AIR
+                    : BlockStates.of(MATERIALS[random.nextInt(MATERIALS.length)], (byte) random.nextInt(16));
+            world.setState(min + i % side, Y, min + i / side, states[i]);
+        }
+        return states;
+    }
+
+    private static long countWrong(StubWorld world, int[] originals, int min, int side) {
+
+        long wrong = 0;
+        for (int i = 0; i < originals.length; i++) {
+            if (world.getState(min + i % side, Y, min + i / side) != originals[i])
+                wrong++;
+        }
+        return wrong;
+    }
+
+    /**
+     * @return the positions of a ring at y = 64, sorted
+     */
+    private static long[] ring(int x, int z, int radius, int thickness) {
+
+        ShapeMask mask = CircleGenerator.generateAnnulusMask(radius - thickness, radius - 1,
+                CircleGenerator.Plane.XZ);
+        long[] positions = new long[mask.size()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = BlockPos.pack(x + mask.getX(i), Y + mask.getY(i), z + mask.getZ(i));
+        Arrays.sort(positions);
+
+        return positions;
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import org.bukkit.Location;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class DrawTemporaryCircleTest {
+
+    private static final int[] RADII = { 32, 64, 128, 256, 512 };
+
+    private static final int THREADS = 4; // splits the work even on a machine with fewer cores
+
+    private static final long STREAMED_WEIGHT = 1 << 12; // rings over a quarter of it are streamed
+
+    private final Location center = new Location(null, 100.5, 64, -200.5);
+
+    private ForkJoinPool pool;
+
+    private long maxWeight;
+
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(THREADS);
+        maxWeight = CircleGenerator.getCache().getMaxWeight();
+    }
+
+    @After
+    public void shutDownPool() {
+        pool.shutdown();
+        CircleGenerator.getCache().setMaxWeight(maxWeight);
+        CircleGenerator.getCache().invalidateAll();
+    }
+
+    @Test
+    public void ringsOnAPoolMatchTheCallingThread() {
+        compareRings();
+    }
+
+    @Test
+    public void streamedRingsOnAPoolMatchTheCallingThread() {
+        CircleGenerator.getCache().setMaxWeight(STREAMED_WEIGHT);
+        compareRings();
+    }
+
+    /**
+     * Builds every ring size without a pool and with one, with the cache
+     * emptied in between so both really generate, and compares both with the
+     * annulus placed around the center
+     */
+    private void compareRings() {
+
+        for (int radius : RADII) {
+            for (int thickness : new int[] { 1, 2, 4, radius / 4, radius / 2, radius }) {
+                String ring = "radius " + radius + ", thickness " + thickness;
+
+                CircleGenerator.getCache().invalidateAll();
+                long[] sequential = DrawTemporaryCircle.buildRing(center, radius, thickness);
+                CircleGenerator.getCache().invalidateAll();
+                long[] parallel = DrawTemporaryCircle.buildRing(center, radius, thickness, pool);
+
+                assertArrayEquals(ring, expected(radius, thickness), sequential);
+                assertArrayEquals(ring + ", parallel", sequential, parallel);
+            }
+        }
+    }
+
+    /**
+     * @return the positions of the annulus from radius - thickness to
+     *         radius - 1 around the center, sorted
+     */
+    private long[] expected(int radius, int thickness) {
+
+        long weight = CircleGenerator.getCache().getMaxWeight();
+        CircleGenerator.getCache().setMaxWeight(maxWeight); // so that the largest rings are not evicted at once
+        ShapeMask annulus = CircleGenerator.generateAnnulusMask(radius - thickness, radius - 1,
+                CircleGenerator.Plane.XZ);
+        CircleGenerator.getCache().setMaxWeight(weight);
+
+        long[] positions = new long[annulus.size()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = BlockPos.pack(center.getBlockX() + annulus.getX(i), center.getBlockY() + annulus.getY(i),
+                    center.getBlockZ() + annulus.getZ(i));
+        Arrays.sort(positions);
+
+        return positions;
+    }
+
+}
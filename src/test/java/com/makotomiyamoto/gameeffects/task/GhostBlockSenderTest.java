@@ -0,0 +1,130 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A ghost effect of 4096 blocks is shown to 50 players in a {@link StubWorld}.
+ * Once every change has been sent to them, one player moves to another world.
+ * Reverting it should read each block about once, not once per viewer, send
+ * every other viewer a revert for each block, and send the player who left
+ * nothing.
+ *
+ */
+public class GhostBlockSenderTest {
+
+    private static final int VIEWERS = 50;
+
+    private static final int SIDE = 64; // the effect is a square of SIDE x SIDE blocks
+
+    private static final int MAX_CHANGES_PER_PLAYER = 1024; // spreads each revert over a few ticks
+
+    private static final int VIEW_DISTANCE = 4;
+
+    private static final long HOLD_TICKS = 5;
+
+    private static final int MAX_TICKS = 1000;
+
+    @Test
+    public void revertsAreReadOnceAndSkipViewersWhoLeft() {
+
+        StubWorld world = new StubWorld(), elsewhere = new StubWorld();
+
+        long[] positions = new long[SIDE * SIDE];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = BlockPos.pack(i % SIDE - SIDE / 2, 64, i / SIDE - SIDE / 2);
+        Arrays.sort(positions); // chunk by chunk, as effects send them
+
+        Viewer[] viewers = new Viewer[VIEWERS];
+        for (int i = 0; i < VIEWERS; i++) {
+            viewers[i] = new Viewer("Viewer" + i, world.getWorld());
+            world.addPlayer(viewers[i].player);
+        }
+        Viewer leaving = viewers[VIEWERS - 1];
+
+        GhostBlockSender sender = new GhostBlockSender(MAX_CHANGES_PER_PLAYER);
+        EffectTimeline timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        timeline.start(new GhostBlockEffect(sender, world.getWorld(), positions, BlockStates.AIR, VIEW_DISTANCE,
+                HOLD_TICKS), 0L);
+
+        long readsBefore = world.getReads();
+        for (int tick = 0; tick < MAX_TICKS && timeline.getActiveEffects() > 0; tick++) {
+            timeline.run();
+            sender.run();
+
+            if (leaving.world == world.getWorld() && leaving.changes == positions.length)
+                leaving.world = elsewhere.getWorld(); // shown the effect, gone before the revert
+        }
+        long reads = world.getReads() - readsBefore;
+
+        assertEquals("effects still active", 0, timeline.getActiveEffects());
+        // reading per viewer would take a read per block per viewer
+        assertTrue(reads + " reads for " + positions.length + " blocks", reads < 2L * positions.length);
+        for (Viewer viewer : viewers) {
+            if (viewer != leaving)
+                assertEquals(viewer.player.getName(), 2L * positions.length, viewer.changes);
+        }
+        assertEquals("changes sent to the player who changed worlds", positions.length, leaving.changes);
+    }
+
+    /**
+     * A player standing at the origin of whichever world it is in, counting the
+     * block changes it is sent
+     */
+    private static final class Viewer {
+
+        final Player player;
+
+        World world;
+
+        long changes;
+
+        Viewer(String name, World world) {
+
+            this.world = world;
+            UUID uid = UUID.nameUUIDFromBytes(name.getBytes());
+
+            player = (Player) Proxy.newProxyInstance(GhostBlockSenderTest.class.getClassLoader(),
+                    new Class<?>[] { Player.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getUniqueId":
+                                return uid;
+                            case "getName":
+                                return name;
+                            case "getWorld":
+                                return this.world;
+                            case "getLocation":
+                                return new Location(this.world, 0, 64, 0);
+                            case "sendBlockChange":
+                                changes++;
+                                return null;
+                            case "isOnline":
+                                return true;
+                            case "hashCode":
+                                return uid.hashCode();
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return "Viewer{" + name + "}";
+                            default:
+                                return StubWorld.defaultValue(method.getReturnType());
+                        }
+                    });
+        }
+
+    }
+
+}
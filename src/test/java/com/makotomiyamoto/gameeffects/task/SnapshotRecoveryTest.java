@@ -0,0 +1,123 @@
+package com.makotomiyamoto.gameeffects.task;
+
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.world.BlockPos;
+import com.makotomiyamoto.gameeffects.world.BlockSnapshot;
+import com.makotomiyamoto.gameeffects.world.BlockStates;
+import com.makotomiyamoto.gameeffects.world.SnapshotJournal;
+import org.bukkit.Material;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+public class SnapshotRecoveryTest {
+
+    private static final int SIDE = 32; // each snapshot is a square of SIDE x SIDE blocks
+
+    private static final int Y = 64;
+
+    private static final int ORIGINAL = BlockStates.of(Material.STONE, (byte) 0);
+
+    private static final int BETWEEN = BlockStates.of(Material.WOOL, (byte) 3); // left by the older effect
+
+    private final StubWorld loaded = new StubWorld(), later = new StubWorld();
+
+    private Path folder;
+
+    private File file;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("gameeffects-recovery-test");
+        file = folder.resolve("snapshots.journal").toFile();
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.delete(folder);
+    }
+
+    /**
+     * Two overlapping effects in each world crash part way: the older one
+     * snapshotted the original blocks, the newer one the older one's. Both
+     * worlds must get their original blocks back, the second only once it
+     * loads, and each snapshot must stay in the journal until its batch has
+     * been applied.
+     */
+    @Test
+    public void restoresEachWorldOnceLoaded() throws IOException {
+
+        SnapshotJournal crashed = new SnapshotJournal(file);
+        for (StubWorld world : new StubWorld[] { loaded, later }) {
+            crashed.append(snapshot(world, ORIGINAL));
+            crashed.append(snapshot(world, BETWEEN));
+            fill(world, BlockStates.AIR);
+        }
+
+        SnapshotJournal journal = new SnapshotJournal(file);
+        BlockChangeScheduler scheduler = new BlockChangeScheduler(Long.MAX_VALUE / 2);
+        SnapshotRecovery recovery = new SnapshotRecovery(journal, scheduler, Logger.getAnonymousLogger());
+        assertEquals(4 * SIDE * SIDE, recovery.getPendingBlocks());
+
+        assertEquals(2 * SIDE * SIDE, recovery.restore(loaded.getWorld()));
+        assertEquals(2 * SIDE * SIDE, recovery.getPendingBlocks());
+        assertEquals("released before being applied", 4, journal.getUnreleased());
+
+        scheduler.flush();
+        assertEquals(SIDE * SIDE, count(loaded, ORIGINAL));
+        assertEquals(SIDE * SIDE, count(later, BlockStates.AIR));
+        assertEquals(2, journal.getUnreleased());
+        assertEquals(2, new SnapshotJournal(file).recover().size());
+
+        recovery.onWorldLoad(new WorldLoadEvent(later.getWorld()));
+        assertEquals(0, recovery.getPendingBlocks());
+        assertEquals("released before being applied", 2, journal.getUnreleased());
+
+        scheduler.flush();
+        assertEquals(SIDE * SIDE, count(later, ORIGINAL));
+        assertEquals(0, journal.getUnreleased());
+        assertEquals(0, new SnapshotJournal(file).recover().size());
+    }
+
+    /**
+     * Snapshots the square as if it held the given state, then sets it
+     */
+    private static BlockSnapshot snapshot(StubWorld world, int state) {
+
+        long[] positions = new long[SIDE * SIDE];
+        int[] states = new int[SIDE * SIDE];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = BlockPos.pack(i % SIDE, Y, i / SIDE);
+            states[i] = state;
+        }
+        fill(world, state);
+
+        return BlockSnapshot.of(world.getWorld().getUID(), positions, states);
+    }
+
+    private static void fill(StubWorld world, int state) {
+        for (int i = 0; i < SIDE * SIDE; i++)
+            world.setState(i % SIDE, Y, i / SIDE, state);
+    }
+
+    private static long count(StubWorld world, int state) {
+
+        long count = 0;
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            if (world.getState(i % SIDE, Y, i / SIDE) == state)
+                count++;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.makotomiyamoto.gameeffects.world;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks BlockOwnershipIndex, and in particular the backward-shift deletion
+ * that keeps its probe runs intact, against a plain HashMap.
+ *
+ */
+public class BlockOwnershipIndexTest {
+
+    private static final long SEED = 0x47454F31;
+
+    private static final int POOL = 4096;
+
+    private static final int OPERATIONS = 2_000_000;
+
+    private static final int FULL_CHECK_INTERVAL = 5000;
+
+    private static final int DRAIN_POSITIONS = 200_000, DRAIN_OWNERS = 3;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final Random random = new Random(SEED);
+
+    /**
+     * Random acquires, recorded originals and releases are applied to both,
+     * over a small pool of positions so the table keeps filling and emptying
+     * and its probe runs keep forming, wrapping and being cut. Every answer of
+     * the index must match the map, and every few thousand operations each
+     * position of the pool is looked up in both.
+     */
+    @Test
+    public void randomOperationsAgreeWithAHashMap() {
+
+        long[] pool = new long[POOL];
+        for (int i = 0; i < POOL; i++)
+            pool[i] = BlockPos.pack(random.nextInt(256) - 128, random.nextInt(256), random.nextInt(256) - 128);
+
+        BlockOwnershipIndex index = new BlockOwnershipIndex();
+        HashMap<Long, int[]> model = new HashMap<>(); // owners, original
+
+        for (int op = 1; op <= OPERATIONS; op++) {
+
+            long pos = pool[random.nextInt(POOL)];
+            int[] entry = model.get(pos);
+
+            // lean towards releasing once about half the pool is held, so the
+            // table keeps growing and shrinking around that
+            int choice = random.nextInt(10);
+            boolean release = model.size() > POOL / 2 ? choice < 6 : choice < 3;
+
+            if (release) {
+                int expected = BlockStates.NONE;
+                if (entry != null && --entry[0] == 0) {
+                    model.remove(pos);
+                    expected = entry[1];
+                }
+                assertEquals("release, operation " + op, expected, index.release(pos));
+            } else if (choice % 2 == 0 || entry == null) {
+                if (entry == null)
+                    model.put(pos, new int[] { 1, BlockStates.NONE });
+                else
+                    entry[0]++;
+                assertEquals("acquire, operation " + op, entry == null, index.acquire(pos));
+            } else {
+                int state = random.nextInt(1 << 12);
+                if (entry[1] == BlockStates.NONE)
+                    entry[1] = state;
+                assertEquals("recordOriginal, operation " + op, entry[1], index.recordOriginal(pos, state));
+            }
+
+            assertEquals("size, operation " + op, model.size(), index.size());
+
+            if (op % FULL_CHECK_INTERVAL == 0)
+                compare(index, model, pool);
+        }
+    }
+
+    /**
+     * Holds a large random set of positions several times over, then releases
+     * them all in a random order, so deletions cut probe runs in a table that
+     * grew by rehashing and then shrinks back
+     */
+    @Test
+    public void drainingAGrownTableAgreesWithAHashMap() {
+
+        BlockOwnershipIndex index = new BlockOwnershipIndex();
+        long[] held = new long[DRAIN_POSITIONS * DRAIN_OWNERS];
+        HashMap<Long, int[]> drained = new HashMap<>();
+
+        for (int i = 0; i < DRAIN_POSITIONS; i++) {
+            long pos = BlockPos.pack(random.nextInt(60000) - 30000, random.nextInt(256),
+                    random.nextInt(60000) - 30000);
+            int original = random.nextInt(1 << 12);
+            for (int k = 0; k < DRAIN_OWNERS; k++) {
+                held[i * DRAIN_OWNERS + k] = pos;
+                index.acquire(pos);
+                index.recordOriginal(pos, k == 0 ? original : original + 1);
+            }
+            drained.merge(pos, new int[] { DRAIN_OWNERS, original },
+                    (kept, added) -> new int[] { kept[0] + added[0], kept[1] });
+        }
+        for (int i = held.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = held[i];
+            held[i] = held[j];
+            held[j] = swap;
+        }
+
+        for (long pos : held) {
+            int[] entry = drained.get(pos);
+            int expected = BlockStates.NONE;
+            if (--entry[0] == 0) {
+                drained.remove(pos);
+                expected = entry[1];
+            }
+            assertEquals(expected, index.release(pos));
+            assertEquals(entry[0], index.getOwners(pos));
+            assertEquals(drained.size(), index.size());
+        }
+    }
+
+    @Test
+    public void shrinksOnceMostlyEmpty() {
+
+        BlockOwnershipIndex index = new BlockOwnershipIndex();
+        long[] positions = new long[DRAIN_POSITIONS];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = BlockPos.pack(i % 1024, 64, i / 1024);
+            index.acquire(positions[i]);
+        }
+        int grown = index.getCapacity();
+        assertTrue(grown + " slots for " + positions.length + " positions", grown >= 2 * positions.length);
+
+        for (int i = 0; i < positions.length; i++) {
+            index.release(positions[i]);
+            int capacity = index.getCapacity();
+            assertTrue(capacity + " slots for " + index.size() + " positions",
+                    capacity == MIN_CAPACITY || index.size() * 8 >= capacity);
+            if (i % 1000 == 0)
+                assertEquals(1, index.getOwners(positions[positions.length - 1]));
+        }
+        assertEquals(MIN_CAPACITY, index.getCapacity());
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Looks up each position of the pool in both the index and the map
+     */
+    private static void compare(BlockOwnershipIndex index, HashMap<Long, int[]> model, long[] pool) {
+        for (long pos : pool) {
+            int[] entry = model.get(pos);
+            assertEquals(entry == null ? 0 : entry[0], index.getOwners(pos));
+            assertEquals(entry == null ? BlockStates.NONE : entry[1], index.getOriginal(pos));
+        }
+    }
+
+}
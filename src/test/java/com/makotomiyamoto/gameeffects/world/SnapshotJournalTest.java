@@ -0,0 +1,301 @@
+package com.makotomiyamoto.gameeffects.world;
+
+import com.makotomiyamoto.gameeffects.antivirusdev.CircleGenerator;
+import com.makotomiyamoto.gameeffects.antivirusdev.ShapeMask;
+import com.makotomiyamoto.gameeffects.simulation.StubWorld;
+import com.makotomiyamoto.gameeffects.task.BlockChangeBatch;
+import com.makotomiyamoto.gameeffects.task.BlockChangeScheduler;
+import com.makotomiyamoto.gameeffects.task.EffectTimeline;
+import com.makotomiyamoto.gameeffects.task.TemporaryBlockEffect;
+import org.bukkit.Material;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Overlapping ring effects, each setting its own state, are run against a
+ * {@link StubWorld} of random blocks, with a small tick budget so some are
+ * still being applied when the process "crashes": the journal is abandoned
+ * without being closed or released, then reopened, and its snapshots are
+ * restored newest first, as SnapshotRecovery does. Every block must be back to
+ * its original material and data.
+ *
+ */
+public class SnapshotJournalTest {
+
+    private static final long SEED = 0x47454A31;
+
+    private static final int AREA = 40; // effect centers lie within this distance of the origin, so they overlap
+
+    private static final int MIN_RADIUS = 8, MAX_RADIUS = 24, MAX_THICKNESS = 4;
+
+    private static final int Y = 64;
+
+    private static final long TICK_BUDGET_NANOS = 200_000; // spreads each effect over a few ticks
+
+    private static final int LARGE_BLOCKS = 1 << 17; // a snapshot of about 1 MB of journal
+
+    private static final Material[] MATERIALS = { Material.STONE, Material.DIRT, Material.GRASS, Material.GLASS,
+            Material.WOOL };
+
+    private final Random random = new Random(SEED);
+
+    private Path folder;
+
+    private File file;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("gameeffects-journal-test");
+        file = folder.resolve("snapshots.journal").toFile();
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void recoversOverlappingEffects() throws IOException {
+        crashAndRecover(50, 2, 40, 400, 0, false);
+    }
+
+    /**
+     * One effect is held throughout, so the journal never empties and has to
+     * be compacted, then a record torn by the crash is left past its end
+     */
+    @Test
+    public void recoversACompactedJournalWithATornRecord() throws IOException {
+        assertTrue("compacted", crashAndRecover(1500, 1, 1, 40, 100_000, true) > 0);
+    }
+
+    @Test
+    public void recoveryLeavesOutPartialReleases() throws IOException {
+
+        SnapshotJournal journal = new SnapshotJournal(file);
+        BlockSnapshot first = snapshot(0, 100), second = snapshot(1, 100);
+        long firstId = journal.append(first), secondId = journal.append(second);
+        journal.release(firstId, Arrays.copyOf(first.getPositions(), 40));
+        journal.release(secondId, second.getPositions()); // every position, but not yet released as a whole
+
+        LinkedHashMap<Long, BlockSnapshot> recovered = new SnapshotJournal(file).recover();
+        assertArrayEquals(new Long[] { secondId, firstId }, recovered.keySet().toArray(new Long[0]));
+        assertEquals(0, recovered.get(secondId).size());
+        assertArrayEquals(Arrays.copyOfRange(first.getPositions(), 40, 100),
+                recovered.get(firstId).getPositions());
+        for (int i = 0; i < 60; i++)
+            assertEquals(first.getState(40 + i), recovered.get(firstId).getState(i));
+    }
+
+    /**
+     * A held snapshot is partially released, then enough large snapshots are
+     * appended and released to compact the journal, which must carry the
+     * partial release along
+     */
+    @Test
+    public void compactionKeepsPartialReleases() throws IOException {
+
+        SnapshotJournal journal = new SnapshotJournal(file);
+        BlockSnapshot held = snapshot(0, 100);
+        long heldId = journal.append(held);
+        journal.release(heldId, Arrays.copyOf(held.getPositions(), 30));
+
+        int peak = 0;
+        for (int i = 1; i <= 4; i++) {
+            long id = journal.append(snapshot(i, LARGE_BLOCKS));
+            peak = Math.max(peak, journal.getUsedBytes());
+            journal.release(id);
+        }
+        assertTrue(journal.getUsedBytes() + " bytes used, " + peak + " at the peak",
+                journal.getUsedBytes() < peak / 2);
+        journal.release(heldId, Arrays.copyOfRange(held.getPositions(), 30, 50));
+
+        SnapshotJournal reopened = new SnapshotJournal(file);
+        LinkedHashMap<Long, BlockSnapshot> recovered = reopened.recover();
+        assertArrayEquals(new Long[] { heldId }, recovered.keySet().toArray(new Long[0]));
+        assertArrayEquals(Arrays.copyOfRange(held.getPositions(), 50, 100), recovered.get(heldId).getPositions());
+
+        reopened.release(heldId);
+        assertEquals(0, reopened.getUnreleased());
+        assertEquals(0, new SnapshotJournal(file).recover().size());
+    }
+
+    @Test
+    public void readsVersionOneJournals() throws IOException {
+
+        SnapshotJournal journal = new SnapshotJournal(file);
+        BlockSnapshot snapshot = snapshot(0, 10);
+        long id = journal.append(snapshot);
+        journal.close();
+        writeVersion(1);
+
+        LinkedHashMap<Long, BlockSnapshot> recovered = new SnapshotJournal(file).recover();
+        assertArrayEquals(snapshot.getPositions(), recovered.get(id).getPositions());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNewerJournals() throws IOException {
+        new SnapshotJournal(file).close();
+        writeVersion(3);
+        new SnapshotJournal(file);
+    }
+
+    /**
+     * Runs effects against a fresh world and journal, abandons both part way,
+     * and restores the world from the reopened journal
+     *
+     * @param effects   - how many effects to start, one every interval ticks
+     * @param minHold   - the shortest hold of an effect, in ticks
+     * @param maxHold   - the longest hold of an effect, in ticks
+     * @param firstHold - if above 0, the hold of the first effect, which then
+     *                  outlives the others
+     * @param tear      - whether to leave a torn record past the end of the
+     *                  journal
+     * @return how many times the journal was compacted
+     */
+    private int crashAndRecover(int effects, int interval, int minHold, int maxHold, int firstHold, boolean tear)
+            throws IOException {
+
+        StubWorld world = new StubWorld();
+        int side = 2 * (AREA + MAX_RADIUS) + 1;
+        int[] originals = new int[side * side];
+        for (int i = 0; i < originals.length; i++) {
+            int state = BlockStates.of(MATERIALS[random.nextInt(MATERIALS.length)], (byte) random.nextInt(16));
+            originals[i] = state;
+            world.setState(i % side - AREA - MAX_RADIUS, Y, i / side - AREA - MAX_RADIUS, state);
+        }
+
+        SnapshotJournal journal = new SnapshotJournal(file);
+        BlockChangeScheduler scheduler = new BlockChangeScheduler(TICK_BUDGET_NANOS);
+        EffectTimeline timeline = new EffectTimeline(Logger.getAnonymousLogger());
+        BlockOwnershipIndex ownership = new BlockOwnershipIndex();
+        Logger logger = Logger.getLogger(SnapshotJournalTest.class.getName());
+
+        int compactions = 0, lastUsed = journal.getUsedBytes();
+        for (int i = 0; i < effects; i++) {
+
+            int radius = MIN_RADIUS + random.nextInt(MAX_RADIUS - MIN_RADIUS + 1);
+            int thickness = 1 + random.nextInt(MAX_THICKNESS);
+            long[] positions = ring(random.nextInt(2 * AREA + 1) - AREA, random.nextInt(2 * AREA + 1) - AREA,
+                    radius, thickness);
+            int state = i % 2 == 0 ? BlockStates.AIR
+                    : BlockStates.of(MATERIALS[random.nextInt(MATERIALS.length)], (byte) random.nextInt(16));
+            long hold = i == 0 && firstHold > 0 ? firstHold : minHold + random.nextInt(maxHold - minHold + 1);
+
+            timeline.start(new TemporaryBlockEffect(scheduler, journal, logger, ownership, world.getWorld(),
+                    positions, state, hold), 0L);
+
+            for (int tick = 0; tick < interval; tick++) {
+                timeline.run();
+                scheduler.run();
+
+                int used = journal.getUsedBytes();
+                if (used < lastUsed && journal.getUnreleased() > 0)
+                    compactions++;
+                lastUsed = used;
+            }
+        }
+
+        // the crash: nothing is flushed, restored, released or closed
+        assertTrue("snapshots left to recover", journal.getUnreleased() > 0);
+        assertTrue("blocks left changed", countWrong(world, originals, side) > 0);
+
+        if (tear) {
+            try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+                byte[] garbage = new byte[4096];
+                random.nextBytes(garbage);
+                garbage[0] = 1; // the start of a snapshot record, never finished
+                torn.seek(journal.getUsedBytes());
+                torn.write(garbage);
+            }
+        }
+
+        SnapshotJournal reopened = new SnapshotJournal(file);
+        LinkedHashMap<Long, BlockSnapshot> snapshots = reopened.recover();
+        BlockChangeScheduler recovery = new BlockChangeScheduler(Long.MAX_VALUE / 2);
+        for (Map.Entry<Long, BlockSnapshot> entry : snapshots.entrySet())
+            recovery.submit(BlockChangeBatch.restore(world.getWorld(), entry.getValue()));
+        recovery.flush();
+        for (long id : new ArrayList<>(snapshots.keySet()))
+            reopened.release(id);
+
+        assertEquals("blocks not restored", 0, countWrong(world, originals, side));
+        assertEquals(0, reopened.getUnreleased());
+        reopened.close();
+        assertEquals(0, new SnapshotJournal(file).recover().size());
+
+        return compactions;
+    }
+
+    /**
+     * @return how many blocks of the area are not in their original state
+     */
+    private static long countWrong(StubWorld world, int[] originals, int side) {
+
+        long wrong = 0;
+        for (int i = 0; i < originals.length; i++) {
+            if (world.getState(i % side - AREA - MAX_RADIUS, Y, i / side - AREA - MAX_RADIUS) != originals[i])
+                wrong++;
+        }
+        return wrong;
+    }
+
+    /**
+     * @return the positions of a ring at y = 64, sorted
+     */
+    private static long[] ring(int x, int z, int radius, int thickness) {
+
+        ShapeMask mask = CircleGenerator.generateAnnulusMask(radius - thickness, radius - 1,
+                CircleGenerator.Plane.XZ);
+        long[] positions = new long[mask.size()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = BlockPos.pack(x + mask.getX(i), Y + mask.getY(i), z + mask.getZ(i));
+        Arrays.sort(positions);
+
+        return positions;
+    }
+
+    /**
+     * @return a snapshot of random states in a row of blocks at the given z
+     */
+    private BlockSnapshot snapshot(int z, int blocks) {
+
+        long[] positions = new long[blocks];
+        int[] states = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            positions[i] = BlockPos.pack(i, Y, z);
+            states[i] = BlockStates.of(MATERIALS[random.nextInt(MATERIALS.length)], (byte) random.nextInt(16));
+        }
+
+        return BlockSnapshot.of(UUID.randomUUID(), positions, states);
+    }
+
+    private void writeVersion(int version) throws IOException {
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            journal.seek(4);
+            journal.writeInt(version);
+        }
+    }
+
+}